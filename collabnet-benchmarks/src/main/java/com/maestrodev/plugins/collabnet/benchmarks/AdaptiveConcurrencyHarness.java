@@ -0,0 +1,217 @@
+package com.maestrodev.plugins.collabnet.benchmarks;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import com.maestrodev.plugins.collabnet.frs.AdaptiveConcurrencyLimit;
+import com.maestrodev.plugins.collabnet.frs.BatchUploadResult;
+import com.maestrodev.plugins.collabnet.frs.FrsSession;
+import com.maestrodev.plugins.collabnet.frs.Package;
+import com.maestrodev.plugins.collabnet.frs.Release;
+import com.maestrodev.plugins.collabnet.log.Log;
+import com.maestrodev.plugins.collabnet.retry.ExponentialBackoffRetryPolicy;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Uploads a batch of files with an {@linkplain AdaptiveConcurrencyLimit} to a {@linkplain FakeTeamForge} whose upload
+ * capacity changes part way through, and reports how the limit follows it. Uploads beyond the fake's capacity fail
+ * with a transient error and are retried. The harness fails unless, over the second half of each phase, the average limit
+ * has settled within a factor of two of the capacity, bounded by the minimum and maximum limits.
+ *
+ * The harness is configured with system properties:
+ * <ul>
+ * <li><code>adaptive.capacities</code> - the fake's upload capacity in each phase of the run (default
+ * <code>8,2,12</code>)</li>
+ * <li><code>adaptive.phase</code> - the length of each phase in milliseconds (default 3000)</li>
+ * <li><code>adaptive.files</code> and <code>adaptive.fileSize</code> - the files uploaded (default 600 of 256 KB)</li>
+ * <li><code>adaptive.initial</code>, <code>adaptive.min</code> and <code>adaptive.max</code> - the limits of the
+ * number of uploads at once (default 4, 1 and 16)</li>
+ * <li><code>adaptive.latency</code> - the latency in milliseconds of every call (default 50)</li>
+ * <li><code>adaptive.bandwidth</code> - the upload bandwidth in bytes per second (default unlimited)</li>
+ * <li><code>adaptive.chunkSize</code> - if greater than zero, upload each file in chunks of this many bytes instead
+ * of as an attachment (default 0)</li>
+ * </ul>
+ */
+public class AdaptiveConcurrencyHarness {
+    private static final long SAMPLE_INTERVAL = 20;
+
+    private final String[] capacities = System.getProperty("adaptive.capacities", "8,2,12").split(",");
+
+    private final long phaseMillis = Long.getLong("adaptive.phase", 3000);
+
+    private final int fileCount = Integer.getInteger("adaptive.files", 600);
+
+    private final int fileSize = Integer.getInteger("adaptive.fileSize", 256 * 1024);
+
+    private final int initialLimit = Integer.getInteger("adaptive.initial", 4);
+
+    private final int minLimit = Integer.getInteger("adaptive.min", 1);
+
+    private final int maxLimit = Integer.getInteger("adaptive.max", 16);
+
+    private final long latency = Long.getLong("adaptive.latency", 50);
+
+    private final long bandwidth = Long.getLong("adaptive.bandwidth", 0);
+
+    private final int chunkSize = Integer.getInteger("adaptive.chunkSize", 0);
+
+    private final FakeTeamForge teamForge = new FakeTeamForge();
+
+    private final long startTime = System.nanoTime();
+
+    private volatile int capacity;
+
+    public static void main(String[] args) throws Exception {
+        if (!new AdaptiveConcurrencyHarness().run()) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return whether the limit followed the capacity in every phase
+     */
+    public boolean run() throws Exception {
+        teamForge.setLatency(latency);
+        teamForge.setBandwidth(bandwidth);
+        setCapacity(Integer.parseInt(capacities[0].trim()));
+
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(initialLimit, minLimit, maxLimit, new Log() {
+            public void debug(String msg) {
+            }
+
+            public void info(String msg) {
+                System.out.println(String.format("%6d ms  capacity %2d  %s", elapsedMillis(), capacity, msg));
+            }
+        });
+        FrsSession frsSession = teamForge.newFrsSession();
+        frsSession.setRetryPolicy(new ExponentialBackoffRetryPolicy(6, 50, 1000, Integer.MAX_VALUE), null);
+        frsSession.setAdaptiveConcurrency(limit);
+        frsSession.setUploadChunkSize(chunkSize);
+
+        Package pkg = new Package();
+        pkg.setTitle("adaptive");
+        String packageId = frsSession.findOrCreatePackage(pkg);
+        Release release = new Release();
+        release.setTitle("adaptive");
+        release.setStatus("active");
+        String releaseId = frsSession.findOrCreateRelease(release, packageId);
+
+        List<File> files = createFiles();
+        final AdaptiveConcurrencyLimit sampled = limit;
+        final List<List<Integer>> samples = new ArrayList<>();
+        Thread scheduler = new Thread("capacity-schedule") {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < capacities.length; i++) {
+                        if (i > 0) {
+                            setCapacity(Integer.parseInt(capacities[i].trim()));
+                        }
+                        // sample the limit over the second half of the phase, once it has had time to adjust
+                        Thread.sleep(phaseMillis / 2);
+                        List<Integer> phase = new ArrayList<>();
+                        synchronized (samples) {
+                            samples.add(phase);
+                        }
+                        for (long end = System.nanoTime() + phaseMillis * 500000; System.nanoTime() < end; ) {
+                            synchronized (samples) {
+                                phase.add(sampled.getLimit());
+                            }
+                            Thread.sleep(SAMPLE_INTERVAL);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // the uploads have finished
+                }
+            }
+        };
+        scheduler.setDaemon(true);
+        scheduler.start();
+
+        BatchUploadResult result;
+        try {
+            result = frsSession.uploadFiles(releaseId, files, false, initialLimit);
+        } finally {
+            scheduler.interrupt();
+            for (File file : files) {
+                file.delete();
+            }
+        }
+
+        long elapsed = elapsedMillis();
+        System.out.println();
+        System.out.println(String.format("Uploaded %d files (%d failed) in %d ms: %.1f files/s, final limit %d",
+                fileCount, result.getFailures().size(), elapsed, fileCount * 1000.0 / elapsed, limit.getLimit()));
+        if (chunkSize > 0) {
+            System.out.println(String.format("write calls: %d for %d files", teamForge.getCalls("write"), fileCount));
+        } else {
+            System.out.println(String.format("uploadFile calls: %d for %d files", teamForge.getCalls("uploadFile"),
+                    fileCount));
+        }
+
+        boolean passed = result.getFailures().isEmpty();
+        synchronized (samples) {
+            for (int i = 0; i < samples.size(); i++) {
+                List<Integer> phase = samples.get(i);
+                if (phase.isEmpty()) {
+                    continue;
+                }
+                int phaseCapacity = Integer.parseInt(capacities[i].trim());
+                double low = Math.max(minLimit, Math.min(maxLimit, phaseCapacity / 2.0));
+                double high = Math.min(maxLimit, Math.max(minLimit, phaseCapacity * 2.0));
+                double sum = 0;
+                for (int sample : phase) {
+                    sum += sample;
+                }
+                double average = sum / phase.size();
+                boolean settled = average >= low && average <= high;
+                System.out.println(String.format("Phase %d: capacity %d, average limit %.1f (expected %.1f to %.1f) %s",
+                        i + 1, phaseCapacity, average, low, high, settled ? "ok" : "FAILED"));
+                passed &= settled;
+            }
+        }
+        System.out.println(passed ? "PASSED" : "FAILED");
+        return passed;
+    }
+
+    private void setCapacity(int capacity) {
+        this.capacity = capacity;
+        teamForge.setUploadCapacity(capacity);
+        System.out.println(String.format("%6d ms  capacity %2d", elapsedMillis(), capacity));
+    }
+
+    private long elapsedMillis() {
+        return (System.nanoTime() - startTime) / 1000000;
+    }
+
+    private List<File> createFiles() throws IOException {
+        byte[] content = new byte[fileSize];
+        List<File> files = new ArrayList<>(fileCount);
+        for (int i = 0; i < fileCount; i++) {
+            File file = File.createTempFile("adaptive-" + i + "-", ".jar");
+            try (OutputStream os = new FileOutputStream(file)) {
+                os.write(content);
+            }
+            files.add(file);
+        }
+        return files;
+    }
+}
@@ -0,0 +1,211 @@
+package com.maestrodev.plugins.collabnet.benchmarks;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import com.maestrodev.plugins.collabnet.frs.FrsSession;
+import com.maestrodev.plugins.collabnet.frs.Package;
+import com.maestrodev.plugins.collabnet.frs.Release;
+import com.maestrodev.plugins.collabnet.frs.ReleaseFileIndex;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Uploads files from many threads through a single {@linkplain FrsSession} against a {@linkplain FakeTeamForge}, to
+ * check that it is safe for concurrent use. In the first phase each thread overwrites files of its own, which should
+ * run fully in parallel. In the second every thread overwrites the same few files in the same releases, which must be
+ * serialized so that no upload fails and each release ends up with exactly one copy of each file. The process exits
+ * with status 1 if any upload fails or a release is left in the wrong state.
+ *
+ * The harness is configured with system properties:
+ * <ul>
+ * <li><code>stress.threads</code> - the number of threads uploading at once (default 16)</li>
+ * <li><code>stress.iterations</code> - the number of uploads made by each thread in each phase (default 20)</li>
+ * <li><code>stress.releases</code> - the number of releases uploaded to (default 2)</li>
+ * <li><code>stress.files</code> - the number of filenames shared by the threads in the second phase (default 3)</li>
+ * <li><code>stress.latency</code> - the latency in milliseconds of every call (default 5)</li>
+ * </ul>
+ */
+public class ConcurrencyStressHarness {
+    private final int threads = Integer.getInteger("stress.threads", 16);
+
+    private final int iterations = Integer.getInteger("stress.iterations", 20);
+
+    private final int releaseCount = Integer.getInteger("stress.releases", 2);
+
+    private final int sharedFileCount = Integer.getInteger("stress.files", 3);
+
+    private final long latency = Long.getLong("stress.latency", 5);
+
+    private final FakeTeamForge teamForge = new FakeTeamForge();
+
+    private final ConcurrentMap<String, AtomicInteger> errors = new ConcurrentHashMap<>();
+
+    private final List<String> releaseIds = new ArrayList<>();
+
+    /**
+     * The names of the files uploaded to each release.
+     */
+    private final ConcurrentMap<String, Set<String>> uploaded = new ConcurrentHashMap<>();
+
+    private FrsSession frsSession;
+
+    private File dir;
+
+    public static void main(String[] args) throws Exception {
+        if (!new ConcurrencyStressHarness().run()) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return whether every upload succeeded and the releases were left in the expected state
+     */
+    public boolean run() throws Exception {
+        teamForge.setLatency(latency);
+        frsSession = teamForge.newFrsSession();
+        Package pkg = new Package();
+        pkg.setTitle("stress");
+        String packageId = frsSession.findOrCreatePackage(pkg);
+        for (int i = 0; i < releaseCount; i++) {
+            Release release = new Release();
+            release.setTitle("release-" + i);
+            release.setStatus("active");
+            String releaseId = frsSession.findOrCreateRelease(release, packageId);
+            releaseIds.add(releaseId);
+            uploaded.put(releaseId, Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()));
+        }
+
+        dir = Files.createTempDirectory("stress").toFile();
+        try {
+            long elapsed = runPhase(false);
+            // each upload of a new file is at least uploadFile, getFrsFileList and createFrsFile
+            long serial = (long) threads * iterations * 3 * latency;
+            System.out.println(String.format("Distinct files: %d uploads from %d threads in %d ms (%.1fx faster " +
+                    "than serial)", threads * iterations, threads, elapsed, (double) serial / Math.max(1, elapsed)));
+
+            elapsed = runPhase(true);
+            System.out.println(String.format("Shared files: %d overwrites of %d files in %d releases from %d " +
+                    "threads in %d ms", threads * iterations, sharedFileCount, releaseCount, threads, elapsed));
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+
+        boolean ok = errors.isEmpty();
+        for (String releaseId : releaseIds) {
+            ReleaseFileIndex index = frsSession.indexReleaseFiles(releaseId);
+            Set<String> names = uploaded.get(releaseId);
+            if (index.size() != names.size()) {
+                System.out.println(String.format("Release %s has %d files, expected %d", releaseId, index.size(),
+                        names.size()));
+                ok = false;
+            }
+            for (String name : names) {
+                if (index.getFileId(name) == null) {
+                    System.out.println(String.format("Release %s is missing %s", releaseId, name));
+                    ok = false;
+                }
+            }
+        }
+        if (!errors.isEmpty()) {
+            System.out.println("Errors:");
+            for (Map.Entry<String, AtomicInteger> entry : errors.entrySet()) {
+                System.out.println(String.format("%7d  %s", entry.getValue().get(), entry.getKey()));
+            }
+        }
+        System.out.println(ok ? "PASSED" : "FAILED");
+        return ok;
+    }
+
+    /**
+     * Have every thread upload its files at the same time, each thread overwriting the file it uploaded last time.
+     *
+     * @param shared whether the threads upload the same files, rather than a file of their own
+     * @return the time taken in milliseconds
+     */
+    private long runPhase(final boolean shared) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            final int thread = i;
+            futures.add(executor.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    start.await();
+                    for (int j = 0; j < iterations; j++) {
+                        String name = shared ? "shared-" + (thread + j) % sharedFileCount : "thread-" + thread;
+                        upload(releaseIds.get((thread + j) % releaseIds.size()), createFile(name + ".jar"));
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        long startTime = System.nanoTime();
+        start.countDown();
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        return (System.nanoTime() - startTime) / 1000000;
+    }
+
+    private void upload(String releaseId, File file) {
+        try {
+            // list the release for each upload, so that threads overwrite using indexes that may be out of date
+            frsSession.uploadFile(releaseId, file, true);
+            uploaded.get(releaseId).add(file.getName());
+        } catch (Exception e) {
+            String error = e.getMessage() != null ? e.getMessage() : e.toString();
+            errors.putIfAbsent(error, new AtomicInteger());
+            errors.get(error).incrementAndGet();
+        }
+    }
+
+    private File createFile(String name) throws IOException {
+        File file = new File(dir, name);
+        synchronized (this) {
+            if (!file.exists()) {
+                try (OutputStream os = new FileOutputStream(file)) {
+                    os.write(new byte[1024]);
+                }
+            }
+        }
+        return file;
+    }
+}
@@ -0,0 +1,181 @@
+package com.maestrodev.plugins.collabnet.benchmarks;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.maestrodev.plugins.collabnet.CollabNetSession;
+import com.maestrodev.plugins.collabnet.ResourceNotFoundException;
+import com.maestrodev.plugins.collabnet.frs.AsyncFrsSession;
+import com.maestrodev.plugins.collabnet.frs.BatchUploadResult;
+import com.maestrodev.plugins.collabnet.frs.FrsSession;
+import com.maestrodev.plugins.collabnet.frs.Package;
+import com.maestrodev.plugins.collabnet.frs.Release;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A complete deploy of a set of files, as performed by the Maven goal: log in, find the project, find or create the
+ * package and release, overwrite the files, and log off. The latency of each call dominates unless uploads run in
+ * parallel. Deploying to two releases compares resolving and uploading to each in turn with pipelining the steps
+ * through {@linkplain AsyncFrsSession}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class DeployBenchmark {
+    @Param({"10", "50"})
+    public int fileCount;
+
+    @Param({"262144"})
+    public int fileSize;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    @Param({"0", "20"})
+    public long latencyMillis;
+
+    private FakeTeamForge teamForge;
+
+    private List<File> files;
+
+    private ExecutorService executor;
+
+    @Setup
+    public void setUp() throws IOException {
+        teamForge = new FakeTeamForge();
+        teamForge.addReleases(teamForge.addPackages(100), 100);
+        teamForge.setLatency(latencyMillis);
+
+        byte[] content = new byte[fileSize];
+        files = new ArrayList<>(fileCount);
+        for (int i = 0; i < fileCount; i++) {
+            File file = File.createTempFile("deploy-" + i + "-", ".jar");
+            try (OutputStream os = new FileOutputStream(file)) {
+                os.write(content);
+            }
+            files.add(file);
+        }
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdown();
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    @Benchmark
+    public BatchUploadResult deploy() throws RemoteException {
+        CollabNetSession session = teamForge.login();
+        try {
+            String projectId = session.findProject("benchmark");
+            FrsSession frsSession = session.createFrsSession(projectId);
+
+            String packageId = frsSession.findOrCreatePackage(newPackage());
+            String releaseId = frsSession.findOrCreateRelease(newRelease("release-99"), packageId);
+            return check(frsSession.uploadFiles(releaseId, files, true, parallelism));
+        } finally {
+            session.logoff();
+        }
+    }
+
+    @Benchmark
+    public List<BatchUploadResult> deployTwoReleases() throws RemoteException {
+        CollabNetSession session = teamForge.login();
+        try {
+            FrsSession frsSession = session.createFrsSession(session.findProject("benchmark"));
+            List<BatchUploadResult> results = new ArrayList<>();
+            for (String title : new String[]{"release-98", "release-99"}) {
+                String packageId = frsSession.findOrCreatePackage(newPackage());
+                String releaseId = frsSession.findOrCreateRelease(newRelease(title), packageId);
+                results.add(check(frsSession.uploadFiles(releaseId, files, true, parallelism)));
+            }
+            return results;
+        } finally {
+            session.logoff();
+        }
+    }
+
+    @Benchmark
+    public List<BatchUploadResult> deployTwoReleasesPipelined() throws RemoteException, ResourceNotFoundException {
+        CollabNetSession session = teamForge.login();
+        try {
+            AsyncFrsSession frsSession = new AsyncFrsSession(
+                    session.createFrsSession(session.findProject("benchmark")), executor);
+            List<Future<BatchUploadResult>> futures = new ArrayList<>();
+            for (String title : new String[]{"release-98", "release-99"}) {
+                Future<String> packageId = frsSession.findOrCreatePackage(newPackage());
+                Future<String> releaseId = frsSession.findOrCreateRelease(newRelease(title), packageId);
+                futures.add(frsSession.uploadFiles(releaseId, files, true, parallelism));
+            }
+            List<BatchUploadResult> results = new ArrayList<>();
+            for (Future<BatchUploadResult> future : futures) {
+                results.add(check(AsyncFrsSession.get(future)));
+            }
+            return results;
+        } finally {
+            session.logoff();
+        }
+    }
+
+    private static Package newPackage() {
+        Package pkg = new Package();
+        pkg.setTitle("package-99");
+        return pkg;
+    }
+
+    private static Release newRelease(String title) {
+        Release release = new Release();
+        release.setTitle(title);
+        release.setStatus("active");
+        return release;
+    }
+
+    private static BatchUploadResult check(BatchUploadResult result) {
+        if (result.hasFailures()) {
+            throw new IllegalStateException(result.getErrorSummary());
+        }
+        return result;
+    }
+}
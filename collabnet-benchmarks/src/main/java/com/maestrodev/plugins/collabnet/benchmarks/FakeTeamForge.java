@@ -0,0 +1,606 @@
+package com.maestrodev.plugins.collabnet.benchmarks;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.collabnet.ce.soap60.webservices.cemain.ICollabNetSoap;
+import com.collabnet.ce.soap60.webservices.cemain.ProjectSoapDO;
+import com.collabnet.ce.soap60.webservices.cemain.UserSoapDO;
+import com.collabnet.ce.soap60.webservices.filestorage.IFileStorageAppSoap;
+import com.collabnet.ce.soap60.webservices.filestorage.ISimpleFileStorageAppSoap;
+import com.collabnet.ce.soap60.webservices.frs.FrsFileSoapDO;
+import com.collabnet.ce.soap60.webservices.frs.FrsFileSoapList;
+import com.collabnet.ce.soap60.webservices.frs.FrsFileSoapRow;
+import com.collabnet.ce.soap60.webservices.frs.IFrsAppSoap;
+import com.collabnet.ce.soap60.webservices.frs.PackageSoapDO;
+import com.collabnet.ce.soap60.webservices.frs.PackageSoapList;
+import com.collabnet.ce.soap60.webservices.frs.PackageSoapRow;
+import com.collabnet.ce.soap60.webservices.frs.ReleaseSoapDO;
+import com.collabnet.ce.soap60.webservices.frs.ReleaseSoapList;
+import com.collabnet.ce.soap60.webservices.frs.ReleaseSoapRow;
+import com.maestrodev.plugins.collabnet.CollabNetSession;
+import com.maestrodev.plugins.collabnet.frs.FrsSession;
+import com.maestrodev.plugins.collabnet.log.Log;
+import com.maestrodev.plugins.collabnet.transport.SoapStubFactory;
+
+import javax.activation.DataHandler;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.RemoteException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process stand-in for the TeamForge SOAP services used by the FRS client, holding its projects, packages,
+ * releases and files in memory. The stubs it returns are dynamic proxies, so only the operations the client uses are
+ * implemented.
+ *
+ * Faults can be injected to model a real server under load: a fixed latency for every call, a bandwidth cap shared by
+ * all uploads, a rate of transient failures reported as HTTP 503, a number of uploads that can be handled at once
+ * beyond which further uploads fail the same way, and sessions that expire when idle.
+ *
+ * The size and SHA-1 digest of the content received for each file are recorded, without keeping the content, so that
+ * harnesses can check what was uploaded.
+ */
+public class FakeTeamForge implements SoapStubFactory {
+    public static final String URL = "http://teamforge.invalid";
+
+    public static final String PROJECT_ID = "proj1001";
+
+    private static final Log QUIET_LOG = new Log() {
+        public void debug(String msg) {
+        }
+
+        public void info(String msg) {
+        }
+    };
+
+    private final AtomicInteger nextId = new AtomicInteger(1000);
+
+    private final Map<String, Map<String, String>> packages = new ConcurrentHashMap<>();
+
+    private final Map<String, Map<String, String>> releases = new ConcurrentHashMap<>();
+
+    private final Map<String, Map<String, FrsFileSoapRow>> files = new ConcurrentHashMap<>();
+
+    private final Map<String, String> fileReleases = new ConcurrentHashMap<>();
+
+    private final Map<String, Long> storedFiles = new ConcurrentHashMap<>();
+
+    /**
+     * The stored file that each release file was created from.
+     */
+    private final Map<String, String> fileStoredIds = new ConcurrentHashMap<>();
+
+    /**
+     * The SHA-1 digests of the content of stored files, and of uploads still being written in chunks.
+     */
+    private final Map<String, MessageDigest> storedDigests = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, AtomicLong> calls = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, Long> sessions = new ConcurrentHashMap<>();
+
+    private volatile long latencyMillis;
+
+    private volatile long bytesPerSecond;
+
+    private volatile double errorRate;
+
+    private volatile long sessionTimeoutMillis;
+
+    private volatile int uploadCapacity;
+
+    private final AtomicInteger activeUploads = new AtomicInteger();
+
+    private long linkFreeAt;
+
+    public FakeTeamForge() {
+        packages.put(PROJECT_ID, new LinkedHashMap<String, String>());
+    }
+
+    /**
+     * @param latencyMillis the time in milliseconds to delay each call by
+     */
+    public void setLatency(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * @param bytesPerSecond the upload bandwidth shared by all clients, or <code>0</code> for no limit
+     */
+    public void setBandwidth(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * @param errorRate the fraction of calls, other than <code>logoff</code>, to fail with a transient error
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * @param sessionTimeoutMillis the time in milliseconds after which an idle session expires, or <code>0</code> for
+     *                             sessions to last until logged off
+     */
+    public void setSessionTimeout(long sessionTimeoutMillis) {
+        this.sessionTimeoutMillis = sessionTimeoutMillis;
+    }
+
+    /**
+     * @param uploads the number of uploads sent as attachments or chunks that can be handled at once, beyond which
+     *                further uploads fail with a transient error, or <code>0</code> for no limit. Each upload or chunk
+     *                occupies the server for the latency again as well as for its transfer. It can be changed while
+     *                uploads are running, to model a server whose load varies.
+     */
+    public void setUploadCapacity(int uploads) {
+        this.uploadCapacity = uploads;
+    }
+
+    /**
+     * Expire all current sessions, as if TeamForge had been restarted.
+     */
+    public void expireSessions() {
+        sessions.clear();
+    }
+
+    /**
+     * Add packages named <code>package-0</code> to <code>package-<i>count-1</i></code> to the project.
+     *
+     * @return the ID of the last package added
+     */
+    public String addPackages(int count) {
+        String id = null;
+        for (int i = 0; i < count; i++) {
+            id = newPackage("package-" + i);
+        }
+        return id;
+    }
+
+    /**
+     * Add releases named <code>release-0</code> to <code>release-<i>count-1</i></code> to a package.
+     *
+     * @return the ID of the last release added
+     */
+    public String addReleases(String packageId, int count) {
+        String id = null;
+        for (int i = 0; i < count; i++) {
+            id = newRelease(packageId, "release-" + i);
+        }
+        return id;
+    }
+
+    /**
+     * Add files named <code>file-0.jar</code> to <code>file-<i>count-1</i>.jar</code> to a release.
+     */
+    public void addFiles(String releaseId, int count, long size) {
+        for (int i = 0; i < count; i++) {
+            newFile(releaseId, "file-" + i + ".jar", size);
+        }
+    }
+
+    /**
+     * Log in to the fake.
+     */
+    public CollabNetSession login() throws RemoteException {
+        return new CollabNetSession(URL, "admin", "admin", QUIET_LOG, this);
+    }
+
+    public static Log getQuietLog() {
+        return QUIET_LOG;
+    }
+
+    /**
+     * Start an FRS session on the project directly, without logging in.
+     */
+    public FrsSession newFrsSession() {
+        return new FrsSession(getSoapStub(IFrsAppSoap.class, URL), getSoapStub(IFileStorageAppSoap.class, URL),
+                getSoapStub(ISimpleFileStorageAppSoap.class, URL), newSession(), PROJECT_ID, QUIET_LOG);
+    }
+
+    /**
+     * @return the number of times an operation has been called
+     */
+    public long getCalls(String operation) {
+        AtomicLong count = calls.get(operation);
+        return count != null ? count.get() : 0;
+    }
+
+    public void resetCalls() {
+        calls.clear();
+    }
+
+    /**
+     * @return the number of files stored, whether or not they were added to a release
+     */
+    public int getStoredFileCount() {
+        return storedFiles.size();
+    }
+
+    /**
+     * @param fileId the ID of a file in a release
+     * @return the size of the content received for the file
+     */
+    public long getFileSize(String fileId) throws RemoteException {
+        return lookup(storedFiles, lookup(fileStoredIds, fileId));
+    }
+
+    /**
+     * @param fileId the ID of a file in a release
+     * @return the SHA-1 digest of the content received for the file, in hex
+     */
+    public String getFileDigest(String fileId) throws RemoteException {
+        MessageDigest digest = lookup(storedDigests, lookup(fileStoredIds, fileId));
+        StringBuilder hex = new StringBuilder();
+        try {
+            for (byte b : ((MessageDigest) digest.clone()).digest()) {
+                hex.append(String.format("%02x", b));
+            }
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+        return hex.toString();
+    }
+
+    public <T> T getSoapStub(Class<T> type, String teamForgeUrl) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getDeclaringClass() == Object.class) {
+                    return method.invoke(this, args);
+                }
+                return call(method.getName(), args);
+            }
+        }));
+    }
+
+    /**
+     * Perform a SOAP operation. Override to change how operations behave.
+     */
+    protected Object call(String operation, Object[] args) throws RemoteException {
+        AtomicLong count = calls.get(operation);
+        if (count == null) {
+            calls.putIfAbsent(operation, new AtomicLong());
+            count = calls.get(operation);
+        }
+        count.incrementAndGet();
+        delay(latencyMillis);
+
+        if (operation.equals("login")) {
+            return newSession();
+        }
+        if (operation.equals("logoff")) {
+            sessions.remove((String) args[0]);
+            return null;
+        }
+        checkSession((String) args[0]);
+        if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+            throw new RemoteException("(503)Service Temporarily Unavailable");
+        }
+
+        switch (operation) {
+            case "getUserData":
+                UserSoapDO user = new UserSoapDO();
+                user.setUsername((String) args[1]);
+                return user;
+            case "getProjectByPath":
+                ProjectSoapDO project = new ProjectSoapDO();
+                project.setId(PROJECT_ID);
+                project.setPath((String) args[1]);
+                return project;
+            case "getPackageList":
+                return packageList(lookup(packages, (String) args[1]));
+            case "getReleaseList":
+                return releaseList(lookup(releases, (String) args[1]));
+            case "getPackageData":
+                return packageData((String) args[1]);
+            case "getReleaseData":
+                return releaseData((String) args[1]);
+            case "createPackage":
+                lookup(packages, (String) args[1]);
+                return packageData(newPackage((String) args[2]));
+            case "createRelease":
+                lookup(releases, (String) args[1]);
+                return releaseData(newRelease((String) args[1], (String) args[2]));
+            case "getFrsFileList":
+                Map<String, FrsFileSoapRow> releaseFiles = lookup(files, (String) args[1]);
+                FrsFileSoapList list = new FrsFileSoapList();
+                synchronized (releaseFiles) {
+                    list.setDataRows(releaseFiles.values().toArray(new FrsFileSoapRow[releaseFiles.size()]));
+                }
+                return list;
+            case "deleteFrsFile":
+                deleteFile((String) args[1]);
+                return null;
+            case "createFrsFile":
+                return createFile((String) args[1], (String) args[2], (String) args[4]);
+            case "uploadFile":
+                return storeAttachment((DataHandler) args[1]);
+            case "startFileUpload":
+                return store(0, newDigest());
+            case "write":
+                writeChunk((String) args[1], (byte[]) args[2]);
+                return null;
+            case "endFileUpload":
+                lookup(storedFiles, (String) args[1]);
+                return null;
+            default:
+                throw new UnsupportedOperationException(operation);
+        }
+    }
+
+    protected static void delay(long millis) {
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private String newSession() {
+        String id = "session" + nextId.incrementAndGet();
+        sessions.put(id, System.nanoTime());
+        return id;
+    }
+
+    private void checkSession(String sessionId) throws RemoteException {
+        long now = System.nanoTime();
+        Long lastUsed = sessions.get(sessionId);
+        if (lastUsed == null || (sessionTimeoutMillis > 0 &&
+                now - lastUsed > TimeUnit.MILLISECONDS.toNanos(sessionTimeoutMillis))) {
+            sessions.remove(sessionId);
+            throw new RemoteException("Session is invalid or timed out");
+        }
+        sessions.put(sessionId, now);
+    }
+
+    /**
+     * Wait for bytes to pass over the shared link, behind any transfers already in progress.
+     */
+    private void transfer(long bytes) {
+        long bandwidth = bytesPerSecond;
+        if (bandwidth <= 0) {
+            return;
+        }
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            long start = Math.max(now, linkFreeAt);
+            linkFreeAt = start + bytes * TimeUnit.SECONDS.toNanos(1) / bandwidth;
+            waitNanos = linkFreeAt - now;
+        }
+        delay(TimeUnit.NANOSECONDS.toMillis(waitNanos));
+    }
+
+    private String newPackage(String title) {
+        String id = "pkg" + nextId.incrementAndGet();
+        Map<String, String> projectPackages = packages.get(PROJECT_ID);
+        synchronized (projectPackages) {
+            projectPackages.put(id, title);
+        }
+        releases.put(id, new LinkedHashMap<String, String>());
+        return id;
+    }
+
+    private String newRelease(String packageId, String title) {
+        String id = "rel" + nextId.incrementAndGet();
+        Map<String, String> packageReleases = releases.get(packageId);
+        synchronized (packageReleases) {
+            packageReleases.put(id, title);
+        }
+        files.put(id, new LinkedHashMap<String, FrsFileSoapRow>());
+        return id;
+    }
+
+    private FrsFileSoapRow newFile(String releaseId, String filename, long size) {
+        FrsFileSoapRow row = new FrsFileSoapRow();
+        row.setId("frs" + nextId.incrementAndGet());
+        row.setFilename(filename);
+        row.setSize(size);
+        Map<String, FrsFileSoapRow> releaseFiles = files.get(releaseId);
+        synchronized (releaseFiles) {
+            releaseFiles.put(row.getId(), row);
+        }
+        fileReleases.put(row.getId(), releaseId);
+        return row;
+    }
+
+    private FrsFileSoapDO createFile(String releaseId, String filename, String storedFileId) throws RemoteException {
+        Long size = lookup(storedFiles, storedFileId);
+        Map<String, FrsFileSoapRow> releaseFiles = lookup(files, releaseId);
+        FrsFileSoapRow row;
+        synchronized (releaseFiles) {
+            for (FrsFileSoapRow existing : releaseFiles.values()) {
+                if (existing.getFilename().equals(filename)) {
+                    throw new RemoteException("File '" + filename + "' already exists in release " + releaseId);
+                }
+            }
+            row = newFile(releaseId, filename, size);
+        }
+        fileStoredIds.put(row.getId(), storedFileId);
+        FrsFileSoapDO file = new FrsFileSoapDO();
+        file.setId(row.getId());
+        file.setFilename(filename);
+        file.setSize(size);
+        return file;
+    }
+
+    private void deleteFile(String fileId) throws RemoteException {
+        String releaseId = fileReleases.remove(fileId);
+        if (releaseId == null) {
+            throw new RemoteException("No such file: " + fileId);
+        }
+        Map<String, FrsFileSoapRow> releaseFiles = files.get(releaseId);
+        synchronized (releaseFiles) {
+            releaseFiles.remove(fileId);
+        }
+    }
+
+    private String storeAttachment(DataHandler dh) throws RemoteException {
+        int active = activeUploads.incrementAndGet();
+        try {
+            occupyUploadCapacity(active);
+            MessageDigest digest = newDigest();
+            return store(drain(dh, digest), digest);
+        } finally {
+            activeUploads.decrementAndGet();
+        }
+    }
+
+    private void writeChunk(String storedFileId, byte[] chunk) throws RemoteException {
+        int active = activeUploads.incrementAndGet();
+        try {
+            occupyUploadCapacity(active);
+            transfer(chunk.length);
+            MessageDigest digest = lookup(storedDigests, storedFileId);
+            synchronized (digest) {
+                digest.update(chunk);
+                storedFiles.put(storedFileId, lookup(storedFiles, storedFileId) + chunk.length);
+            }
+        } finally {
+            activeUploads.decrementAndGet();
+        }
+    }
+
+    /**
+     * Reject an upload beyond the capacity, or hold the server for the latency again while it is handled.
+     */
+    private void occupyUploadCapacity(int active) throws RemoteException {
+        int capacity = uploadCapacity;
+        if (capacity > 0 && active > capacity) {
+            throw new RemoteException("(503)Service Temporarily Unavailable");
+        }
+        if (capacity > 0) {
+            delay(latencyMillis);
+        }
+    }
+
+    private String store(long size, MessageDigest digest) {
+        String id = "stored" + nextId.incrementAndGet();
+        storedFiles.put(id, size);
+        storedDigests.put(id, digest);
+        return id;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private long drain(DataHandler dh, MessageDigest digest) throws RemoteException {
+        try (InputStream is = dh.getInputStream()) {
+            byte[] buf = new byte[65536];
+            long total = 0;
+            int n;
+            while ((n = is.read(buf)) != -1) {
+                transfer(n);
+                digest.update(buf, 0, n);
+                total += n;
+            }
+            return total;
+        } catch (IOException e) {
+            throw new RemoteException("Unable to read upload: " + e.getLocalizedMessage(), e);
+        }
+    }
+
+    private PackageSoapDO packageData(String packageId) throws RemoteException {
+        for (Map<String, String> projectPackages : packages.values()) {
+            String title;
+            synchronized (projectPackages) {
+                title = projectPackages.get(packageId);
+            }
+            if (title != null) {
+                PackageSoapDO p = new PackageSoapDO();
+                p.setId(packageId);
+                p.setTitle(title);
+                return p;
+            }
+        }
+        throw new RemoteException("No such package: " + packageId);
+    }
+
+    private ReleaseSoapDO releaseData(String releaseId) throws RemoteException {
+        for (Map<String, String> packageReleases : releases.values()) {
+            String title;
+            synchronized (packageReleases) {
+                title = packageReleases.get(releaseId);
+            }
+            if (title != null) {
+                ReleaseSoapDO r = new ReleaseSoapDO();
+                r.setId(releaseId);
+                r.setTitle(title);
+                return r;
+            }
+        }
+        throw new RemoteException("No such release: " + releaseId);
+    }
+
+    private static PackageSoapList packageList(Map<String, String> titles) {
+        List<PackageSoapRow> rows = new ArrayList<>();
+        synchronized (titles) {
+            for (Map.Entry<String, String> entry : titles.entrySet()) {
+                PackageSoapRow row = new PackageSoapRow();
+                row.setId(entry.getKey());
+                row.setTitle(entry.getValue());
+                rows.add(row);
+            }
+        }
+        PackageSoapList list = new PackageSoapList();
+        list.setDataRows(rows.toArray(new PackageSoapRow[rows.size()]));
+        return list;
+    }
+
+    private static ReleaseSoapList releaseList(Map<String, String> titles) {
+        List<ReleaseSoapRow> rows = new ArrayList<>();
+        synchronized (titles) {
+            for (Map.Entry<String, String> entry : titles.entrySet()) {
+                ReleaseSoapRow row = new ReleaseSoapRow();
+                row.setId(entry.getKey());
+                row.setTitle(entry.getValue());
+                rows.add(row);
+            }
+        }
+        ReleaseSoapList list = new ReleaseSoapList();
+        list.setDataRows(rows.toArray(new ReleaseSoapRow[rows.size()]));
+        return list;
+    }
+
+    private static <V> V lookup(Map<String, V> map, String id) throws RemoteException {
+        V value = map.get(id);
+        if (value == null) {
+            throw new RemoteException("No such object: " + id);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,269 @@
+package com.maestrodev.plugins.collabnet.benchmarks;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import com.maestrodev.plugins.collabnet.CollabNetSessionPool;
+import com.maestrodev.plugins.collabnet.FrsCopyWorker;
+import com.maestrodev.plugins.collabnet.RepositoryMirrors;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copies an artifact many times with Maestro copy tasks from a primary repository that sometimes stalls before
+ * answering, first on its own and then with a mirror and {@linkplain RepositoryMirrors hedged requests}, and reports
+ * the latency percentiles of the copies. The repositories are served in-process and the artifacts are copied to a
+ * {@linkplain FakeTeamForge}. The process exits with status 1 if any copy fails.
+ *
+ * The harness is configured with system properties:
+ * <ul>
+ * <li><code>hedge.copies</code> - the number of copies in each run (default 100)</li>
+ * <li><code>hedge.threads</code> - the number of copies running at once (default 8)</li>
+ * <li><code>hedge.fileSize</code> - the size of the artifact (default 1 MB)</li>
+ * <li><code>hedge.latency</code> - the time in milliseconds both repositories take to answer normally (default
+ * 20)</li>
+ * <li><code>hedge.stallRate</code> and <code>hedge.stall</code> - the fraction of requests the primary repository
+ * stalls, and for how many milliseconds (default 0.1 and 3000)</li>
+ * <li><code>hedge.mirrorLatency</code> - the time in milliseconds the mirror takes to answer (default 100)</li>
+ * <li><code>hedge.delay</code> - the hedge delay in milliseconds (default 300)</li>
+ * </ul>
+ */
+public class HedgedFetchHarness {
+    private final int copies = Integer.getInteger("hedge.copies", 100);
+
+    private final int threads = Integer.getInteger("hedge.threads", 8);
+
+    private final int fileSize = Integer.getInteger("hedge.fileSize", 1024 * 1024);
+
+    private final long latency = Long.getLong("hedge.latency", 20);
+
+    private final double stallRate = Double.parseDouble(System.getProperty("hedge.stallRate", "0.1"));
+
+    private final long stall = Long.getLong("hedge.stall", 3000);
+
+    private final long mirrorLatency = Long.getLong("hedge.mirrorLatency", 100);
+
+    private final int hedgeDelay = Integer.getInteger("hedge.delay", 300);
+
+    private final FakeTeamForge teamForge = new FakeTeamForge();
+
+    private final CollabNetSessionPool pool = new CollabNetSessionPool(threads, 10 * 60 * 1000L, 60 * 1000L,
+            teamForge);
+
+    private final ConcurrentHashMap<String, AtomicInteger> errors = new ConcurrentHashMap<>();
+
+    private final AtomicInteger primaryRequests = new AtomicInteger();
+
+    private final AtomicInteger mirrorRequests = new AtomicInteger();
+
+    private HttpServer primary;
+
+    private HttpServer mirror;
+
+    public static void main(String[] args) throws Exception {
+        if (!new HedgedFetchHarness().run()) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return whether every copy succeeded
+     */
+    public boolean run() throws Exception {
+        // separate servers, so that the repositories have separate connection limits as they would on separate hosts
+        primary = startServer(new RepositoryHandler(latency, stallRate, primaryRequests));
+        mirror = startServer(new RepositoryHandler(mirrorLatency, 0, mirrorRequests));
+
+        try {
+            System.out.println(String.format("%d copies of %d KB with %d threads, primary stalls %.0f%% of requests "
+                    + "for %d ms", copies, fileSize / 1024, threads, stallRate * 100, stall));
+            report("Primary only", copyAll(false));
+            primaryRequests.set(0);
+            mirrorRequests.set(0);
+            report("Primary and mirror, hedge delay " + hedgeDelay + " ms", copyAll(true));
+            System.out.println(String.format("Requests: %d to the primary, %d to the mirror", primaryRequests.get(),
+                    mirrorRequests.get()));
+        } finally {
+            for (HttpServer server : new HttpServer[]{primary, mirror}) {
+                server.stop(0);
+                ((ExecutorService) server.getExecutor()).shutdown();
+            }
+            pool.close();
+        }
+
+        for (String error : errors.keySet()) {
+            System.out.println(String.format("%7d  %s", errors.get(error).get(), error));
+        }
+        boolean ok = errors.isEmpty();
+        System.out.println(ok ? "PASSED" : "FAILED");
+        return ok;
+    }
+
+    private static HttpServer startServer(HttpHandler handler) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/repository", handler);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        return server;
+    }
+
+    private List<Long> copyAll(final boolean mirror) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Long>> futures = new ArrayList<>();
+        try {
+            for (int i = 0; i < copies; i++) {
+                final int copy = i;
+                futures.add(executor.submit(new Callable<Long>() {
+                    public Long call() {
+                        long start = System.nanoTime();
+                        copy(copy, mirror);
+                        return (System.nanoTime() - start) / 1000000;
+                    }
+                }));
+            }
+            List<Long> times = new ArrayList<>();
+            for (Future<Long> future : futures) {
+                times.add(future.get());
+            }
+            Collections.sort(times);
+            return times;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void report(String name, List<Long> times) {
+        System.out.println(String.format("%-40s p50 %5d ms  p90 %5d ms  p99 %5d ms  max %5d ms", name,
+                percentile(times, 0.5), percentile(times, 0.9), percentile(times, 0.99), times.get(times.size() - 1)));
+    }
+
+    private static long percentile(List<Long> sorted, double p) {
+        return sorted.get(Math.min(sorted.size() - 1, (int) Math.ceil(p * sorted.size()) - 1));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void copy(int copy, boolean mirror) {
+        JSONObject fields = new JSONObject();
+        fields.put("teamForgeUrl", FakeTeamForge.URL);
+        fields.put("teamForgeUsername", "admin");
+        fields.put("teamForgePassword", "admin");
+        fields.put("project", "hedge");
+        fields.put("package", "hedge");
+        fields.put("release", (mirror ? "mirror-" : "primary-") + copy);
+        fields.put("releaseStatus", "active");
+        fields.put("createRelease", "true");
+        fields.put("repositoryUrl", "http://127.0.0.1:" + primary.getAddress().getPort() + "/repository");
+        if (mirror) {
+            JSONArray mirrorUrls = new JSONArray();
+            mirrorUrls.add("http://127.0.0.1:" + this.mirror.getAddress().getPort() + "/repository");
+            fields.put("mirrorUrls", mirrorUrls);
+        }
+        fields.put("hedgeDelay", String.valueOf(hedgeDelay));
+        fields.put("artifactGroupId", "com.example");
+        fields.put("artifactId", "example");
+        fields.put("artifactVersion", "1.0");
+        fields.put("artifactType", "jar");
+        JSONObject workitem = new JSONObject();
+        workitem.put("fields", fields);
+
+        HedgedWorker worker = new HedgedWorker();
+        worker.setWorkitem(workitem);
+        worker.frsCopy();
+        if (worker.error != null) {
+            errors.putIfAbsent(worker.error, new AtomicInteger());
+            errors.get(worker.error).incrementAndGet();
+        }
+    }
+
+    /**
+     * Serves the same artifact for every path, after a delay that is occasionally much longer.
+     */
+    private class RepositoryHandler implements HttpHandler {
+        private final long latency;
+
+        private final double stallRate;
+
+        private final AtomicInteger requests;
+
+        private final byte[] content = new byte[fileSize];
+
+        private RepositoryHandler(long latency, double stallRate, AtomicInteger requests) {
+            this.latency = latency;
+            this.stallRate = stallRate;
+            this.requests = requests;
+            new Random(0).nextBytes(content);
+        }
+
+        public void handle(HttpExchange exchange) throws IOException {
+            requests.incrementAndGet();
+            try {
+                Thread.sleep(ThreadLocalRandom.current().nextDouble() < stallRate ? stall : latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            boolean head = "HEAD".equals(exchange.getRequestMethod());
+            try {
+                exchange.sendResponseHeaders(200, head ? -1 : content.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    if (!head) {
+                        os.write(content);
+                    }
+                }
+            } catch (IOException e) {
+                // the client abandoned the request for another repository
+            }
+        }
+    }
+
+    /**
+     * The Maestro copy task, taking its sessions from the harness's pool.
+     */
+    private class HedgedWorker extends FrsCopyWorker {
+        private String error;
+
+        @Override
+        protected CollabNetSessionPool getSessionPool() {
+            return pool;
+        }
+
+        @Override
+        public void setError(String error) {
+            this.error = error.trim();
+        }
+
+        @Override
+        public void writeOutput(String output) {
+            // keep the output of concurrent tasks out of the report
+        }
+    }
+}
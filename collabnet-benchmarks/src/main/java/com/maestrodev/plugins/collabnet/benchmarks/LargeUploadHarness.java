@@ -0,0 +1,110 @@
+package com.maestrodev.plugins.collabnet.benchmarks;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import com.maestrodev.plugins.collabnet.frs.FrsSession;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Random;
+
+/**
+ * Uploads a file several times larger than the heap to a {@linkplain FakeTeamForge} in chunks, and checks that the
+ * fake received every byte. An upload that buffered the file in memory would fail with an
+ * <code>OutOfMemoryError</code>, so the harness should be run with a small heap, for example <code>-Xmx64m</code>. The
+ * process exits with status 1 if the upload fails or the content received differs from the file.
+ *
+ * The harness is configured with system properties:
+ * <ul>
+ * <li><code>largeupload.size</code> - the size of the file in bytes (default four times the maximum heap size)</li>
+ * <li><code>largeupload.chunkSize</code> - the size of each chunk sent (default 1 MB)</li>
+ * </ul>
+ */
+public class LargeUploadHarness {
+    private final long maxHeap = Runtime.getRuntime().maxMemory();
+
+    private final long size = Long.getLong("largeupload.size", 4 * maxHeap);
+
+    private final int chunkSize = Integer.getInteger("largeupload.chunkSize", 1024 * 1024);
+
+    public static void main(String[] args) throws Exception {
+        if (!new LargeUploadHarness().run()) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return whether the content received matched the file
+     */
+    public boolean run() throws Exception {
+        File file = File.createTempFile("large-upload", ".bin");
+        try {
+            String sha1 = writeFile(file);
+
+            FakeTeamForge teamForge = new FakeTeamForge();
+            String releaseId = teamForge.addReleases(teamForge.addPackages(1), 1);
+            FrsSession session = teamForge.newFrsSession();
+            session.setUploadChunkSize(chunkSize);
+
+            long start = System.nanoTime();
+            String fileId = session.uploadFile(releaseId, file, false);
+            long elapsed = (System.nanoTime() - start) / 1000000;
+
+            long received = teamForge.getFileSize(fileId);
+            String receivedSha1 = teamForge.getFileDigest(fileId);
+            System.out.println(String.format("Uploaded %d MB in %d KB chunks with a %d MB heap in %d ms",
+                    size / (1024 * 1024), chunkSize / 1024, maxHeap / (1024 * 1024), elapsed));
+            System.out.println(String.format("Sent %d bytes, SHA-1 %s", size, sha1));
+            System.out.println(String.format("Received %d bytes, SHA-1 %s", received, receivedSha1));
+
+            boolean ok = received == size && sha1.equals(receivedSha1);
+            if (size <= maxHeap) {
+                System.out.println("The file is not larger than the heap - run with a smaller -Xmx");
+                ok = false;
+            }
+            System.out.println(ok ? "PASSED" : "FAILED");
+            return ok;
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Fill the file with pseudo-random content.
+     *
+     * @return the SHA-1 digest of the content, in hex
+     */
+    private String writeFile(File file) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        Random random = new Random(0);
+        byte[] block = new byte[65536];
+        try (OutputStream os = new FileOutputStream(file)) {
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                int n = (int) Math.min(block.length, size - written);
+                os.write(block, 0, n);
+                digest.update(block, 0, n);
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
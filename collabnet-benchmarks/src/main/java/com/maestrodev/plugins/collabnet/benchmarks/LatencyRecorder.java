@@ -0,0 +1,99 @@
+package com.maestrodev.plugins.collabnet.benchmarks;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.maestrodev.plugins.collabnet.metrics.FrsMetrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps every duration reported for each operation, so that tail latencies can be calculated at the end of a load
+ * test. Not intended for long running processes, as nothing is discarded.
+ */
+public class LatencyRecorder implements FrsMetrics {
+    private final Map<String, Samples> operations = new LinkedHashMap<>();
+
+    private long totalBytes;
+
+    public synchronized void callCompleted(String operation, long durationNanos, boolean success) {
+        Samples samples = operations.get(operation);
+        if (samples == null) {
+            samples = new Samples();
+            operations.put(operation, samples);
+        }
+        samples.add(durationNanos, success);
+    }
+
+    public synchronized void fileUploaded(String name, long bytes, long durationNanos) {
+        totalBytes += bytes;
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Format the count, failures and latency percentiles of each operation as a table.
+     *
+     * @return the lines of the table
+     */
+    public synchronized List<String> getSummary() {
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("%-24s %7s %7s %9s %9s %9s %9s", "Operation", "Calls", "Errors", "p50 (ms)",
+                "p95 (ms)", "p99 (ms)", "Max (ms)"));
+        for (Map.Entry<String, Samples> entry : operations.entrySet()) {
+            Samples samples = entry.getValue();
+            long[] sorted = Arrays.copyOf(samples.durations, samples.count);
+            Arrays.sort(sorted);
+            lines.add(String.format("%-24s %7d %7d %9.1f %9.1f %9.1f %9.1f", entry.getKey(), samples.count,
+                    samples.failures, percentile(sorted, 50), percentile(sorted, 95), percentile(sorted, 99),
+                    percentile(sorted, 100)));
+        }
+        return lines;
+    }
+
+    private static double percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(rank, 1) - 1] / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    private static class Samples {
+        private long[] durations = new long[64];
+
+        private int count;
+
+        private int failures;
+
+        private void add(long durationNanos, boolean success) {
+            if (count == durations.length) {
+                durations = Arrays.copyOf(durations, count * 2);
+            }
+            durations[count++] = durationNanos;
+            if (!success) {
+                failures++;
+            }
+        }
+    }
+}
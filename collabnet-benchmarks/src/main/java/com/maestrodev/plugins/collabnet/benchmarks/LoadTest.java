@@ -0,0 +1,320 @@
+package com.maestrodev.plugins.collabnet.benchmarks;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.maestrodev.plugins.collabnet.CollabNetSession;
+import com.maestrodev.plugins.collabnet.CollabNetSessionPool;
+import com.maestrodev.plugins.collabnet.FrsDeployWorker;
+import com.maestrodev.plugins.collabnet.frs.BatchUploadResult;
+import com.maestrodev.plugins.collabnet.frs.FrsSession;
+import com.maestrodev.plugins.collabnet.frs.Package;
+import com.maestrodev.plugins.collabnet.frs.Release;
+import com.maestrodev.plugins.collabnet.retry.CircuitBreaker;
+import com.maestrodev.plugins.collabnet.retry.ExponentialBackoffRetryPolicy;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many deploys at once against a {@linkplain FakeTeamForge} with faults injected, and reports the throughput
+ * and the latency percentiles of the deploys and of each SOAP operation. Deploys are either performed the way the
+ * Maven goal does them, logging in for each, or by running the Maestro deploy task with a shared session pool.
+ *
+ * The test is configured with system properties:
+ * <ul>
+ * <li><code>loadtest.mode</code> - <code>mojo</code> or <code>worker</code> (default <code>worker</code>)</li>
+ * <li><code>loadtest.clients</code> - the number of concurrent clients (default 8)</li>
+ * <li><code>loadtest.deploys</code> - the number of deploys made by each client (default 20)</li>
+ * <li><code>loadtest.releases</code> - the number of releases the clients deploy to, so that clients share releases
+ * when fewer than the number of clients (default the number of clients)</li>
+ * <li><code>loadtest.files</code> and <code>loadtest.fileSize</code> - the files in each deploy (default 5 of 1 MB)</li>
+ * <li><code>loadtest.parallelUploads</code> - the files uploaded at once by each deploy (default 2)</li>
+ * <li><code>loadtest.latency</code> - the latency in milliseconds of every call (default 20)</li>
+ * <li><code>loadtest.bandwidth</code> - the upload bandwidth in bytes per second shared by all clients (default
+ * unlimited)</li>
+ * <li><code>loadtest.errorRate</code> - the fraction of calls that fail with a transient error (default 0)</li>
+ * <li><code>loadtest.sessionTimeout</code> - the time in milliseconds after which an idle session expires (default
+ * never)</li>
+ * <li><code>loadtest.validateAfter</code> - the idle time in milliseconds after which a pooled session is checked
+ * before reuse (default 60000)</li>
+ * <li><code>loadtest.retries</code> and <code>loadtest.retryDelay</code> - the retry settings of each deploy
+ * (default 3 and 100)</li>
+ * </ul>
+ */
+public class LoadTest {
+    private final String mode = System.getProperty("loadtest.mode", "worker");
+
+    private final int clients = Integer.getInteger("loadtest.clients", 8);
+
+    private final int deploys = Integer.getInteger("loadtest.deploys", 20);
+
+    private final int releases = Integer.getInteger("loadtest.releases", clients);
+
+    private final int fileCount = Integer.getInteger("loadtest.files", 5);
+
+    private final int fileSize = Integer.getInteger("loadtest.fileSize", 1024 * 1024);
+
+    private final int parallelUploads = Integer.getInteger("loadtest.parallelUploads", 2);
+
+    private final long latency = Long.getLong("loadtest.latency", 20);
+
+    private final long bandwidth = Long.getLong("loadtest.bandwidth", 0);
+
+    private final double errorRate = Double.parseDouble(System.getProperty("loadtest.errorRate", "0"));
+
+    private final long sessionTimeout = Long.getLong("loadtest.sessionTimeout", 0);
+
+    private final long validateAfter = Long.getLong("loadtest.validateAfter", 60 * 1000L);
+
+    private final int retries = Integer.getInteger("loadtest.retries", 3);
+
+    private final int retryDelay = Integer.getInteger("loadtest.retryDelay", 100);
+
+    private final FakeTeamForge teamForge = new FakeTeamForge();
+
+    private final LatencyRecorder recorder = new LatencyRecorder();
+
+    private final ConcurrentMap<String, AtomicInteger> errors = new ConcurrentHashMap<>();
+
+    private CollabNetSessionPool pool;
+
+    private List<File> files;
+
+    public static void main(String[] args) throws Exception {
+        new LoadTest().run();
+    }
+
+    public void run() throws Exception {
+        if (!mode.equals("mojo") && !mode.equals("worker")) {
+            throw new IllegalArgumentException("loadtest.mode must be 'mojo' or 'worker', but is: '" + mode + "'");
+        }
+        teamForge.setLatency(latency);
+        teamForge.setBandwidth(bandwidth);
+        teamForge.setErrorRate(errorRate);
+        teamForge.setSessionTimeout(sessionTimeout);
+        pool = new CollabNetSessionPool(clients, 10 * 60 * 1000L, validateAfter, teamForge);
+        files = createFiles();
+
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            final String release = "release-" + (i % releases);
+            futures.add(executor.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    start.await();
+                    for (int j = 0; j < deploys; j++) {
+                        timeDeploy(release);
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        long startTime = System.nanoTime();
+        start.countDown();
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+            pool.close();
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        report(System.nanoTime() - startTime);
+    }
+
+    private void timeDeploy(String release) {
+        long start = System.nanoTime();
+        String error = mode.equals("mojo") ? deployAsMojo(release) : deployAsWorker(release);
+        recorder.callCompleted("(deploy)", System.nanoTime() - start, error == null);
+        if (error != null) {
+            errors.putIfAbsent(error, new AtomicInteger());
+            errors.get(error).incrementAndGet();
+        }
+    }
+
+    /**
+     * Deploy the way <code>FrsDeployMojo</code> does: log in, deploy with retries and a circuit breaker of its own,
+     * and log off.
+     *
+     * @return the error, or <code>null</code> if the deploy succeeded
+     */
+    private String deployAsMojo(String releaseTitle) {
+        CollabNetSession session;
+        try {
+            session = new CollabNetSession(FakeTeamForge.URL, "admin", "admin", FakeTeamForge.getQuietLog(),
+                    teamForge);
+        } catch (RemoteException e) {
+            return "login: " + e.getMessage();
+        }
+        session.setMetrics(recorder);
+        session.setRetryPolicy(new ExponentialBackoffRetryPolicy(retries + 1, retryDelay, 30 * 1000L, 20),
+                new CircuitBreaker(FakeTeamForge.URL, 5, 60 * 1000L));
+        try {
+            String projectId = session.findProject("loadtest");
+            FrsSession frsSession = session.createFrsSession(projectId);
+
+            Package pkg = new Package();
+            pkg.setTitle("loadtest");
+            String packageId = frsSession.findOrCreatePackage(pkg);
+
+            Release release = new Release();
+            release.setTitle(releaseTitle);
+            release.setStatus("active");
+            String releaseId = frsSession.findOrCreateRelease(release, packageId);
+
+            BatchUploadResult result = frsSession.uploadFiles(releaseId, files, true, parallelUploads);
+            return result.hasFailures() ? result.getErrorSummary().trim() : null;
+        } catch (Exception e) {
+            return e.getMessage() != null ? e.getMessage() : e.toString();
+        } finally {
+            try {
+                session.logoff();
+            } catch (RemoteException e) {
+                // ignore, as the mojo does
+            }
+        }
+    }
+
+    /**
+     * Deploy by running the Maestro deploy task, with sessions from the pool shared by all clients.
+     *
+     * @return the error, or <code>null</code> if the deploy succeeded
+     */
+    @SuppressWarnings("unchecked")
+    private String deployAsWorker(String releaseTitle) {
+        JSONArray fileNames = new JSONArray();
+        for (File file : files) {
+            fileNames.add(file.getAbsolutePath());
+        }
+
+        JSONObject fields = new JSONObject();
+        fields.put("teamForgeUrl", FakeTeamForge.URL);
+        fields.put("teamForgeUsername", "admin");
+        fields.put("teamForgePassword", "admin");
+        fields.put("project", "loadtest");
+        fields.put("package", "loadtest");
+        fields.put("release", releaseTitle);
+        fields.put("releaseStatus", "active");
+        fields.put("createRelease", "true");
+        fields.put("overwrite", "true");
+        fields.put("files", fileNames);
+        fields.put("parallelUploads", Integer.toString(parallelUploads));
+        fields.put("retries", Integer.toString(retries));
+        fields.put("retryDelay", Integer.toString(retryDelay));
+        JSONObject workitem = new JSONObject();
+        workitem.put("fields", fields);
+
+        LoadTestWorker worker = new LoadTestWorker();
+        worker.setWorkitem(workitem);
+        worker.frsDeploy();
+        return worker.error;
+    }
+
+    private List<File> createFiles() throws IOException {
+        byte[] content = new byte[fileSize];
+        List<File> files = new ArrayList<>(fileCount);
+        for (int i = 0; i < fileCount; i++) {
+            File file = File.createTempFile("loadtest-" + i + "-", ".jar");
+            try (OutputStream os = new FileOutputStream(file)) {
+                os.write(content);
+            }
+            files.add(file);
+        }
+        return files;
+    }
+
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        int total = clients * deploys;
+        int failed = 0;
+        for (AtomicInteger count : errors.values()) {
+            failed += count.get();
+        }
+
+        System.out.println(String.format("Mode %s: %d clients x %d deploys to %d releases, %d files of %d bytes, " +
+                "%d uploads at once", mode, clients, deploys, releases, fileCount, fileSize, parallelUploads));
+        System.out.println(String.format("Faults: latency %d ms, bandwidth %s, error rate %.3f, session timeout %s",
+                latency, bandwidth > 0 ? bandwidth + " bytes/s" : "unlimited", errorRate,
+                sessionTimeout > 0 ? sessionTimeout + " ms" : "none"));
+        System.out.println(String.format("Completed %d deploys (%d failed) in %.1f s: %.2f deploys/s, %.2f MB/s",
+                total, failed, seconds, total / seconds, recorder.getTotalBytes() / seconds / (1024 * 1024)));
+        System.out.println(String.format("Logins: %d, logoffs: %d", teamForge.getCalls("login"),
+                teamForge.getCalls("logoff")));
+        System.out.println();
+        for (String line : recorder.getSummary()) {
+            System.out.println(line);
+        }
+        if (!errors.isEmpty()) {
+            System.out.println();
+            System.out.println("Errors:");
+            for (Map.Entry<String, AtomicInteger> entry : errors.entrySet()) {
+                System.out.println(String.format("%7d  %s", entry.getValue().get(), entry.getKey()));
+            }
+        }
+    }
+
+    /**
+     * The Maestro deploy task, taking its sessions from the load test's pool and recording its calls with the load
+     * test's recorder.
+     */
+    private class LoadTestWorker extends FrsDeployWorker {
+        private String error;
+
+        @Override
+        protected CollabNetSessionPool getSessionPool() {
+            return pool;
+        }
+
+        @Override
+        protected CollabNetSession createSession() throws RemoteException {
+            CollabNetSession session = super.createSession();
+            session.setMetrics(recorder);
+            return session;
+        }
+
+        @Override
+        public void setError(String error) {
+            this.error = error.trim();
+        }
+
+        @Override
+        public void writeOutput(String output) {
+            // keep the output of concurrent tasks out of the report
+        }
+    }
+}
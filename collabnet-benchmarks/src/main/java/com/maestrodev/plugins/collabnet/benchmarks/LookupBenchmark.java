@@ -0,0 +1,99 @@
+package com.maestrodev.plugins.collabnet.benchmarks;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.maestrodev.plugins.collabnet.ResourceNotFoundException;
+import com.maestrodev.plugins.collabnet.frs.FrsSession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.rmi.RemoteException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finding a package and release by title, in projects and packages of increasing size. The cold benchmarks use a new
+ * FRS session for each lookup, so the list is retrieved and scanned each time, as in the first lookup of a deploy. The
+ * warm benchmarks repeat the lookup in the same session, which should be answered from its cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class LookupBenchmark {
+    @Param({"10", "1000", "100000"})
+    public int rows;
+
+    @Param({"0"})
+    public long latencyMillis;
+
+    private FakeTeamForge teamForge;
+
+    private FrsSession warmSession;
+
+    private String packageId;
+
+    private String packageTitle;
+
+    private String releaseTitle;
+
+    @Setup
+    public void setUp() throws RemoteException, ResourceNotFoundException {
+        teamForge = new FakeTeamForge();
+        packageId = teamForge.addPackages(rows);
+        teamForge.addReleases(packageId, rows);
+        teamForge.setLatency(latencyMillis);
+
+        // the last entries are the worst case for a linear scan
+        packageTitle = "package-" + (rows - 1);
+        releaseTitle = "release-" + (rows - 1);
+
+        warmSession = teamForge.newFrsSession();
+        warmSession.findPackage(packageTitle);
+        warmSession.findRelease(releaseTitle, packageId);
+    }
+
+    @Benchmark
+    public String findPackageCold() throws RemoteException, ResourceNotFoundException {
+        return teamForge.newFrsSession().findPackage(packageTitle);
+    }
+
+    @Benchmark
+    public String findPackageWarm() throws RemoteException, ResourceNotFoundException {
+        return warmSession.findPackage(packageTitle);
+    }
+
+    @Benchmark
+    public String findReleaseCold() throws RemoteException, ResourceNotFoundException {
+        return teamForge.newFrsSession().findRelease(releaseTitle, packageId);
+    }
+
+    @Benchmark
+    public String findReleaseWarm() throws RemoteException, ResourceNotFoundException {
+        return warmSession.findRelease(releaseTitle, packageId);
+    }
+}
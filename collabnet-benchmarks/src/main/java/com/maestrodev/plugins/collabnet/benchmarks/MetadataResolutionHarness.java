@@ -0,0 +1,266 @@
+package com.maestrodev.plugins.collabnet.benchmarks;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import com.maestrodev.plugins.collabnet.ArtifactVersionResolver;
+import com.maestrodev.plugins.collabnet.CollabNetSessionPool;
+import com.maestrodev.plugins.collabnet.FrsCopyWorker;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.json.simple.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs rounds of Maestro copy tasks for the <code>1.2-SNAPSHOT</code>, <code>LATEST</code> and <code>RELEASE</code>
+ * versions of an artifact, against an in-process repository that publishes a new snapshot build part way through,
+ * to check that each copy fetches the right file and that the {@linkplain ArtifactVersionResolver} revalidates its
+ * cached metadata rather than fetching it again. The process exits with status 1 if any copy fails or fetches the
+ * wrong file.
+ *
+ * The harness is configured with system properties:
+ * <ul>
+ * <li><code>metadata.rounds</code> - the number of rounds of copies (default 20)</li>
+ * <li><code>metadata.copies</code> - the number of copies of each version in a round, run at once (default 4)</li>
+ * </ul>
+ */
+public class MetadataResolutionHarness {
+    private static final String GROUP_PATH = "/repo/com/example/example/";
+
+    private static final String[] VERSIONS = {"1.2-SNAPSHOT", "LATEST", "RELEASE"};
+
+    private static final String TIMESTAMP = "20121010.120000";
+
+    private final int rounds = Integer.getInteger("metadata.rounds", 20);
+
+    private final int copies = Integer.getInteger("metadata.copies", 4);
+
+    private final FakeTeamForge teamForge = new FakeTeamForge();
+
+    private final CollabNetSessionPool pool = new CollabNetSessionPool(copies * 3, 10 * 60 * 1000L, 60 * 1000L,
+            teamForge);
+
+    private final AtomicInteger buildNumber = new AtomicInteger(1);
+
+    private final AtomicInteger metadataFetched = new AtomicInteger();
+
+    private final AtomicInteger metadataNotModified = new AtomicInteger();
+
+    private final Set<String> wrongFiles = ConcurrentHashMap.newKeySet();
+
+    private final Set<String> errors = ConcurrentHashMap.newKeySet();
+
+    private HttpServer server;
+
+    public static void main(String[] args) throws Exception {
+        if (!new MetadataResolutionHarness().run()) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return whether every copy fetched the file expected for its version
+     */
+    public boolean run() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/repo", new RepositoryHandler());
+        server.setExecutor(Executors.newFixedThreadPool(copies * 3));
+        server.start();
+
+        ExecutorService executor = Executors.newFixedThreadPool(copies * 3);
+        long startTime = System.nanoTime();
+        try {
+            for (int round = 0; round < rounds; round++) {
+                if (round == rounds / 2) {
+                    // a new snapshot build is deployed
+                    buildNumber.incrementAndGet();
+                }
+                List<Future<?>> futures = new ArrayList<>();
+                for (int i = 0; i < copies; i++) {
+                    for (final String version : VERSIONS) {
+                        // each copy goes to its own package, so that copies of the same file do not overwrite each other
+                        final String pkg = version + "-" + i;
+                        futures.add(executor.submit(new Callable<Void>() {
+                            public Void call() {
+                                copy(version, pkg);
+                                return null;
+                            }
+                        }));
+                    }
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            }
+        } finally {
+            executor.shutdown();
+            server.stop(0);
+            ((ExecutorService) server.getExecutor()).shutdown();
+            pool.close();
+        }
+        long elapsed = (System.nanoTime() - startTime) / 1000000;
+
+        System.out.println(String.format("Completed %d copies in %d ms", rounds * copies * 3, elapsed));
+        System.out.println(String.format("Metadata requests: %d fetched, %d not modified",
+                metadataFetched.get(), metadataNotModified.get()));
+        for (String error : errors) {
+            System.out.println("Error: " + error);
+        }
+        for (String file : wrongFiles) {
+            System.out.println("Wrong file: " + file);
+        }
+        boolean ok = errors.isEmpty() && wrongFiles.isEmpty() && metadataNotModified.get() > 0;
+        System.out.println(ok ? "PASSED" : "FAILED");
+        return ok;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void copy(String version, String pkg) {
+        JSONObject fields = new JSONObject();
+        fields.put("teamForgeUrl", FakeTeamForge.URL);
+        fields.put("teamForgeUsername", "admin");
+        fields.put("teamForgePassword", "admin");
+        fields.put("project", "metadata");
+        fields.put("package", pkg);
+        fields.put("createRelease", "true");
+        fields.put("releaseStatus", "active");
+        fields.put("overwrite", "true");
+        fields.put("repositoryUrl", "http://127.0.0.1:" + server.getAddress().getPort() + "/repo");
+        fields.put("artifactGroupId", "com.example");
+        fields.put("artifactId", "example");
+        fields.put("artifactVersion", version);
+        fields.put("artifactType", "jar");
+        JSONObject workitem = new JSONObject();
+        workitem.put("fields", fields);
+
+        boolean release = "RELEASE".equals(version);
+        String expectedFile = release ? GROUP_PATH + "1.1/example-1.1.jar"
+                : GROUP_PATH + "1.2-SNAPSHOT/example-1.2-" + TIMESTAMP + "-" + buildNumber.get() + ".jar";
+        String expectedRelease = release ? "1.1" : "1.2-SNAPSHOT";
+
+        ResolutionWorker worker = new ResolutionWorker();
+        worker.setWorkitem(workitem);
+        worker.frsCopy();
+        if (worker.uploading != null && !worker.uploading.contains(expectedFile + "'")) {
+            wrongFiles.add(worker.uploading + " (expected " + expectedFile + ")");
+        }
+        String expectedName = "example-" + expectedRelease + ".jar";
+        if (worker.uploading != null && !worker.uploading.contains("as '" + expectedName + "'")) {
+            wrongFiles.add(worker.uploading + " (expected the file to be named " + expectedName + ")");
+        }
+        if (worker.release != null && !worker.release.equals(expectedRelease)) {
+            wrongFiles.add(version + " copied to release '" + worker.release + "' (expected " + expectedRelease + ")");
+        }
+    }
+
+    /**
+     * The Maestro copy task, taking its sessions from the harness's pool and recording what it copied.
+     */
+    private class ResolutionWorker extends FrsCopyWorker {
+        private String uploading;
+
+        private String release;
+
+        @Override
+        protected CollabNetSessionPool getSessionPool() {
+            return pool;
+        }
+
+        @Override
+        public void setError(String error) {
+            errors.add(error.trim());
+        }
+
+        @Override
+        public void writeOutput(String output) {
+            if (output.startsWith("Uploading")) {
+                uploading = output.trim();
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected JSONObject addCollabnetReleaseToContext(String projectId, String packageId, String releaseId,
+                                                          List<String> fileIds, List<String> skippedFiles) {
+            JSONObject record = super.addCollabnetReleaseToContext(projectId, packageId, releaseId, fileIds,
+                    skippedFiles);
+            release = (String) record.get("release");
+            return record;
+        }
+    }
+
+    private String artifactMetadata() {
+        return "<metadata><groupId>com.example</groupId><artifactId>example</artifactId><versioning>"
+                + "<latest>1.2-SNAPSHOT</latest><release>1.1</release>"
+                + "<versions><version>1.0</version><version>1.1</version><version>1.2-SNAPSHOT</version></versions>"
+                + "</versioning></metadata>";
+    }
+
+    private String snapshotMetadata() {
+        return "<metadata><groupId>com.example</groupId><artifactId>example</artifactId><version>1.2-SNAPSHOT</version>"
+                + "<versioning><snapshot><timestamp>" + TIMESTAMP + "</timestamp><buildNumber>" + buildNumber.get()
+                + "</buildNumber></snapshot></versioning></metadata>";
+    }
+
+    /**
+     * Serves the metadata with an ETag, answering conditional requests for unchanged metadata with
+     * <code>304 Not Modified</code>, and any other path as an artifact.
+     */
+    private class RepositoryHandler implements HttpHandler {
+        public void handle(HttpExchange exchange) throws IOException {
+            String path = exchange.getRequestURI().getPath();
+            byte[] content;
+            if (path.equals(GROUP_PATH + "maven-metadata.xml")) {
+                content = artifactMetadata().getBytes(StandardCharsets.UTF_8);
+            } else if (path.equals(GROUP_PATH + "1.2-SNAPSHOT/maven-metadata.xml")) {
+                content = snapshotMetadata().getBytes(StandardCharsets.UTF_8);
+            } else {
+                content = new byte[1024];
+            }
+
+            if (path.endsWith("/maven-metadata.xml")) {
+                String etag = "\"" + Integer.toHexString(new String(content, StandardCharsets.UTF_8).hashCode()) + "\"";
+                exchange.getResponseHeaders().set("ETag", etag);
+                if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    metadataNotModified.incrementAndGet();
+                    // the JDK's server drops the connection after a 304, so don't let the client try to reuse it
+                    exchange.getResponseHeaders().set("Connection", "close");
+                    exchange.sendResponseHeaders(304, -1);
+                    exchange.close();
+                    return;
+                }
+                metadataFetched.incrementAndGet();
+            }
+            exchange.sendResponseHeaders(200, content.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(content);
+            }
+        }
+    }
+}
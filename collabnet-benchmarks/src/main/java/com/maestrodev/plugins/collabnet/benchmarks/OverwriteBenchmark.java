@@ -0,0 +1,104 @@
+package com.maestrodev.plugins.collabnet.benchmarks;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.maestrodev.plugins.collabnet.frs.FrsSession;
+import com.maestrodev.plugins.collabnet.frs.ReleaseFileIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.rmi.RemoteException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Overwriting a file in a release that already holds many files. The scan benchmark passes the overwrite flag, so the
+ * release is listed for each file uploaded. The index benchmark reuses a {@linkplain ReleaseFileIndex}, as a batch
+ * upload does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class OverwriteBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int filesInRelease;
+
+    @Param({"0"})
+    public long latencyMillis;
+
+    private FrsSession frsSession;
+
+    private String releaseId;
+
+    private ReleaseFileIndex index;
+
+    private File file;
+
+    private URL url;
+
+    private String name;
+
+    @Setup
+    public void setUp() throws IOException {
+        FakeTeamForge teamForge = new FakeTeamForge();
+        releaseId = teamForge.addReleases(teamForge.addPackages(1), 1);
+        teamForge.addFiles(releaseId, filesInRelease, 1024);
+        teamForge.setLatency(latencyMillis);
+
+        file = File.createTempFile("overwrite", ".jar");
+        try (OutputStream os = new FileOutputStream(file)) {
+            os.write(new byte[1024]);
+        }
+        url = file.toURI().toURL();
+        name = "file-" + (filesInRelease / 2) + ".jar";
+
+        frsSession = teamForge.newFrsSession();
+        index = frsSession.indexReleaseFiles(releaseId);
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public String overwriteWithScan() throws RemoteException {
+        return frsSession.uploadFileFromUrl(releaseId, url, name, true);
+    }
+
+    @Benchmark
+    public String overwriteWithIndex() throws RemoteException {
+        return frsSession.uploadFileFromUrl(releaseId, url, name, index);
+    }
+}
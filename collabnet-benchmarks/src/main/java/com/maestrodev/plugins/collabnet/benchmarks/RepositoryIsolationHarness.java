@@ -0,0 +1,220 @@
+package com.maestrodev.plugins.collabnet.benchmarks;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import com.maestrodev.plugins.collabnet.CollabNetSessionPool;
+import com.maestrodev.plugins.collabnet.FrsCopyWorker;
+import com.sun.net.httpserver.BasicAuthenticator;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.json.simple.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many Maestro copy tasks at once in one JVM, half of them copying from one password protected repository and
+ * half from another, to check that each task's repository credentials are only ever sent to its own repository. The
+ * repositories are served by an in-process HTTP server that records any request carrying the other repository's
+ * credentials, and the artifacts are copied to a {@linkplain FakeTeamForge}. The process exits with status 1 if any
+ * credentials leak or any copy fails.
+ *
+ * The harness is configured with system properties:
+ * <ul>
+ * <li><code>isolation.tasks</code> - the number of copy tasks (default 64)</li>
+ * <li><code>isolation.threads</code> - the number of tasks running at once (default 16)</li>
+ * <li><code>isolation.fileSize</code> - the size of the artifact served by each repository (default 64 KB)</li>
+ * </ul>
+ */
+public class RepositoryIsolationHarness {
+    private final int tasks = Integer.getInteger("isolation.tasks", 64);
+
+    private final int threads = Integer.getInteger("isolation.threads", 16);
+
+    private final int fileSize = Integer.getInteger("isolation.fileSize", 64 * 1024);
+
+    private final FakeTeamForge teamForge = new FakeTeamForge();
+
+    private final CollabNetSessionPool pool = new CollabNetSessionPool(threads, 10 * 60 * 1000L, 60 * 1000L,
+            teamForge);
+
+    private final AtomicInteger leaks = new AtomicInteger();
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private final ConcurrentMap<String, AtomicInteger> errors = new ConcurrentHashMap<>();
+
+    private HttpServer server;
+
+    public static void main(String[] args) throws Exception {
+        if (!new RepositoryIsolationHarness().run()) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return whether every copy succeeded without any credentials being sent to the wrong repository
+     */
+    public boolean run() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        addRepository("repo-a", "alice");
+        addRepository("repo-b", "bob");
+        server.setExecutor(Executors.newFixedThreadPool(threads));
+        server.start();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        long startTime = System.nanoTime();
+        try {
+            for (int i = 0; i < tasks; i++) {
+                final int task = i;
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        start.await();
+                        copy(task);
+                        return null;
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+            server.stop(0);
+            ((ExecutorService) server.getExecutor()).shutdown();
+            pool.close();
+        }
+        long elapsed = (System.nanoTime() - startTime) / 1000000;
+
+        int failed = 0;
+        for (AtomicInteger count : errors.values()) {
+            failed += count.get();
+        }
+        System.out.println(String.format("Completed %d copy tasks (%d failed) from 2 repositories with %d threads " +
+                "in %d ms", tasks, failed, threads, elapsed));
+        System.out.println(String.format("Repository requests: %d, sent with the other repository's credentials: %d",
+                requests.get(), leaks.get()));
+        if (!errors.isEmpty()) {
+            System.out.println("Errors:");
+            for (Map.Entry<String, AtomicInteger> entry : errors.entrySet()) {
+                System.out.println(String.format("%7d  %s", entry.getValue().get(), entry.getKey()));
+            }
+        }
+        boolean ok = leaks.get() == 0 && errors.isEmpty();
+        System.out.println(ok ? "PASSED" : "FAILED");
+        return ok;
+    }
+
+    /**
+     * Serve a repository that only accepts its own user, whose password is the same as the username.
+     */
+    private void addRepository(final String name, final String user) {
+        final byte[] content = new byte[fileSize];
+        HttpContext context = server.createContext("/" + name, new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.sendResponseHeaders(200, "HEAD".equals(exchange.getRequestMethod()) ? -1 : content.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    if (!"HEAD".equals(exchange.getRequestMethod())) {
+                        os.write(content);
+                    }
+                }
+            }
+        });
+        context.setAuthenticator(new BasicAuthenticator(name) {
+            @Override
+            public boolean checkCredentials(String username, String password) {
+                requests.incrementAndGet();
+                if (!username.equals(user)) {
+                    leaks.incrementAndGet();
+                    return false;
+                }
+                return password.equals(user);
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private void copy(int task) {
+        String repository = task % 2 == 0 ? "repo-a" : "repo-b";
+        String user = task % 2 == 0 ? "alice" : "bob";
+
+        JSONObject fields = new JSONObject();
+        fields.put("teamForgeUrl", FakeTeamForge.URL);
+        fields.put("teamForgeUsername", "admin");
+        fields.put("teamForgePassword", "admin");
+        fields.put("project", "isolation");
+        fields.put("package", "isolation");
+        fields.put("release", "release-" + task);
+        fields.put("releaseStatus", "active");
+        fields.put("createRelease", "true");
+        fields.put("repositoryUrl", "http://127.0.0.1:" + server.getAddress().getPort() + "/" + repository);
+        fields.put("repositoryUsername", user);
+        fields.put("repositoryPassword", user);
+        fields.put("artifactGroupId", "com.example");
+        fields.put("artifactId", "example");
+        fields.put("artifactVersion", "1.0");
+        fields.put("artifactType", "jar");
+        JSONObject workitem = new JSONObject();
+        workitem.put("fields", fields);
+
+        IsolationWorker worker = new IsolationWorker();
+        worker.setWorkitem(workitem);
+        worker.frsCopy();
+        if (worker.error != null) {
+            errors.putIfAbsent(worker.error, new AtomicInteger());
+            errors.get(worker.error).incrementAndGet();
+        }
+    }
+
+    /**
+     * The Maestro copy task, taking its sessions from the harness's pool.
+     */
+    private class IsolationWorker extends FrsCopyWorker {
+        private String error;
+
+        @Override
+        protected CollabNetSessionPool getSessionPool() {
+            return pool;
+        }
+
+        @Override
+        public void setError(String error) {
+            this.error = error.trim();
+        }
+
+        @Override
+        public void writeOutput(String output) {
+            // keep the output of concurrent tasks out of the report
+        }
+    }
+}
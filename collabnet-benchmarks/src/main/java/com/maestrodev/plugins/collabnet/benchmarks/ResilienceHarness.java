@@ -0,0 +1,211 @@
+package com.maestrodev.plugins.collabnet.benchmarks;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import com.maestrodev.plugins.collabnet.frs.FrsSession;
+import com.maestrodev.plugins.collabnet.retry.CircuitBreaker;
+import com.maestrodev.plugins.collabnet.retry.CircuitOpenException;
+import com.maestrodev.plugins.collabnet.retry.ExponentialBackoffRetryPolicy;
+import com.maestrodev.plugins.collabnet.retry.RetryPolicy;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks the retries and circuit breaker of {@linkplain FrsSession} against a {@linkplain FakeTeamForge} that fails
+ * some or all calls with a transient error. Several threads list the files of a release repeatedly, in three phases:
+ * <ol>
+ * <li>a fraction of calls fail, once without retries and once with them, and retrying should hide nearly all of the
+ * failures;</li>
+ * <li>every call fails for a while, and the circuit breaker should open so that few calls reach the fake;</li>
+ * <li>the fake recovers, and calls should succeed again soon after the circuit's open period has passed.</li>
+ * </ol>
+ * The process exits with status 1 if any phase does not behave as expected.
+ *
+ * The harness is configured with system properties:
+ * <ul>
+ * <li><code>resilience.threads</code> - the number of threads making calls (default 8)</li>
+ * <li><code>resilience.calls</code> - the number of calls each thread makes in the first phase (default 200)</li>
+ * <li><code>resilience.errorRate</code> - the fraction of calls that fail in the first phase (default 0.2)</li>
+ * <li><code>resilience.attempts</code> - the number of attempts at each call when retrying (default 5)</li>
+ * <li><code>resilience.threshold</code> - the number of consecutive failures that opens the circuit (default 5)</li>
+ * <li><code>resilience.openTime</code> - the time in milliseconds the circuit stays open (default 200)</li>
+ * <li><code>resilience.outage</code> - the length of the outage in milliseconds (default 2000)</li>
+ * <li><code>resilience.latency</code> - the latency in milliseconds of every call (default 5)</li>
+ * </ul>
+ */
+public class ResilienceHarness {
+    private final int threads = Integer.getInteger("resilience.threads", 8);
+
+    private final int calls = Integer.getInteger("resilience.calls", 200);
+
+    private final double errorRate = Double.parseDouble(System.getProperty("resilience.errorRate", "0.2"));
+
+    private final int attempts = Integer.getInteger("resilience.attempts", 5);
+
+    private final int threshold = Integer.getInteger("resilience.threshold", 5);
+
+    private final long openTime = Long.getLong("resilience.openTime", 200);
+
+    private final long outage = Long.getLong("resilience.outage", 2000);
+
+    private final long latency = Long.getLong("resilience.latency", 5);
+
+    private final FakeTeamForge teamForge = new FakeTeamForge();
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+    private String releaseId;
+
+    public static void main(String[] args) throws Exception {
+        ResilienceHarness harness = new ResilienceHarness();
+        boolean ok;
+        try {
+            ok = harness.run();
+        } finally {
+            harness.executor.shutdown();
+        }
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return whether every phase behaved as expected
+     */
+    public boolean run() throws Exception {
+        teamForge.setLatency(latency);
+        releaseId = teamForge.addReleases(teamForge.addPackages(1), 1);
+        teamForge.addFiles(releaseId, 10, 1024);
+
+        boolean ok = checkTransientErrors();
+        ok &= checkOutage();
+        System.out.println(ok ? "PASSED" : "FAILED");
+        return ok;
+    }
+
+    private boolean checkTransientErrors() throws Exception {
+        teamForge.setErrorRate(errorRate);
+        int withoutRetries = countFailures(RetryPolicy.NEVER);
+        int withRetries = countFailures(new ExponentialBackoffRetryPolicy(attempts, 5, 50, Integer.MAX_VALUE));
+        teamForge.setErrorRate(0);
+
+        int total = threads * calls;
+        System.out.println(String.format("Error rate %.2f: %d of %d calls failed without retries, %d with %d attempts",
+                errorRate, withoutRetries, total, withRetries, attempts));
+        // with independent failures, a call should only fail if every attempt does
+        double expected = total * Math.pow(errorRate, attempts);
+        boolean ok = withRetries <= Math.max(1, 10 * expected) && withRetries < withoutRetries;
+        if (!ok) {
+            System.out.println(String.format("Expected about %.1f failures with retries", expected));
+        }
+        return ok;
+    }
+
+    private int countFailures(RetryPolicy retryPolicy) throws Exception {
+        final FrsSession session = teamForge.newFrsSession();
+        session.setRetryPolicy(retryPolicy, null);
+        final AtomicInteger failures = new AtomicInteger();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                public Void call() {
+                    for (int i = 0; i < calls; i++) {
+                        try {
+                            session.indexReleaseFiles(releaseId);
+                        } catch (RemoteException e) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        return failures.get();
+    }
+
+    /**
+     * Call the fake through an outage and its recovery, counting the calls that reached it while it was down and the
+     * time it took for calls to succeed again once it was back.
+     */
+    private boolean checkOutage() throws Exception {
+        final FrsSession session = teamForge.newFrsSession();
+        CircuitBreaker circuitBreaker = new CircuitBreaker("fake", threshold, openTime);
+        session.setRetryPolicy(new ExponentialBackoffRetryPolicy(attempts, 5, 50, Integer.MAX_VALUE), circuitBreaker);
+
+        final AtomicLong recoveredAt = new AtomicLong();
+        final AtomicInteger attempted = new AtomicInteger();
+        final AtomicInteger rejected = new AtomicInteger();
+        final long outageStart = System.nanoTime();
+        final long outageEnd = outageStart + outage * 1000000L;
+        teamForge.setErrorRate(1);
+        teamForge.resetCalls();
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                public Void call() throws InterruptedException {
+                    while (System.nanoTime() < outageEnd + 4 * openTime * 1000000L) {
+                        boolean down = System.nanoTime() < outageEnd;
+                        if (down) {
+                            attempted.incrementAndGet();
+                        }
+                        try {
+                            session.indexReleaseFiles(releaseId);
+                            if (!down) {
+                                recoveredAt.compareAndSet(0, System.nanoTime());
+                            }
+                        } catch (CircuitOpenException e) {
+                            if (down) {
+                                rejected.incrementAndGet();
+                            }
+                        } catch (RemoteException e) {
+                            // the call reached the fake while it was down
+                        }
+                        Thread.sleep(5);
+                    }
+                    return null;
+                }
+            }));
+        }
+        Thread.sleep(outage);
+        long reachedDuringOutage = teamForge.getCalls("getFrsFileList");
+        teamForge.setErrorRate(0);
+        for (Future<?> future : futures) {
+            future.get();
+        }
+
+        long recovery = recoveredAt.get() == 0 ? -1 : (recoveredAt.get() - outageEnd) / 1000000;
+        System.out.println(String.format("Outage of %d ms: %d calls attempted, %d rejected by the open circuit, "
+                + "%d reached the fake", outage, attempted.get(), rejected.get(), reachedDuringOutage));
+        System.out.println(recovery < 0 ? "Calls did not succeed again after the outage"
+                : String.format("Calls succeeded again %d ms after the outage ended (circuit open time %d ms)",
+                recovery, openTime));
+        // the circuit lets one trial call through per open period, besides the calls in flight when it opened
+        long allowed = threshold + threads * attempts + 2 * outage / openTime;
+        return reachedDuringOutage <= allowed && recovery >= 0 && recovery <= 2 * openTime + 500;
+    }
+}
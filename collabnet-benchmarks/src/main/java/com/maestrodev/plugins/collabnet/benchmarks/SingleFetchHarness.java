@@ -0,0 +1,223 @@
+package com.maestrodev.plugins.collabnet.benchmarks;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import com.maestrodev.plugins.collabnet.CollabNetSessionPool;
+import com.maestrodev.plugins.collabnet.FrsCopyWorker;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.json.simple.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs Maestro copy tasks with <code>skipUnchanged</code> enabled against an in-process repository that counts the
+ * requests for the artifact, to check that each copy fetches the artifact at most once. The artifact is copied
+ * repeatedly, with a new build published part way through, both with a published <code>.sha1</code> file and without
+ * one. With a checksum, only the copies of a new build should fetch the artifact; without one, every copy should fetch
+ * it exactly once. The process exits with status 1 if any copy fails or the counts differ.
+ *
+ * The harness is configured with system properties:
+ * <ul>
+ * <li><code>singlefetch.copies</code> - the number of copies of each build (default 5)</li>
+ * <li><code>singlefetch.size</code> - the size of the artifact in bytes (default 1 MB)</li>
+ * </ul>
+ */
+public class SingleFetchHarness {
+    private static final String ARTIFACT_PATH = "/repo/com/example/example/1.0/example-1.0.jar";
+
+    private final int copies = Integer.getInteger("singlefetch.copies", 5);
+
+    private final int size = Integer.getInteger("singlefetch.size", 1024 * 1024);
+
+    private final FakeTeamForge teamForge = new FakeTeamForge();
+
+    private final CollabNetSessionPool pool = new CollabNetSessionPool(2, 10 * 60 * 1000L, 60 * 1000L, teamForge);
+
+    private final AtomicInteger artifactFetched = new AtomicInteger();
+
+    private final List<String> errors = new ArrayList<>();
+
+    private volatile byte[] artifact;
+
+    private volatile boolean publishChecksum;
+
+    private HttpServer server;
+
+    private File idCacheFile;
+
+    public static void main(String[] args) throws Exception {
+        if (!new SingleFetchHarness().run()) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return whether every copy succeeded and fetched the artifact no more often than expected
+     */
+    public boolean run() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/repo", new RepositoryHandler());
+        server.setExecutor(Executors.newFixedThreadPool(4));
+        server.start();
+        idCacheFile = File.createTempFile("singlefetch", ".properties");
+        idCacheFile.delete();
+
+        boolean ok;
+        try {
+            ok = check(true, "example-checksum", 2);
+            ok &= check(false, "example-no-checksum", 2 * copies);
+        } finally {
+            server.stop(0);
+            ((ExecutorService) server.getExecutor()).shutdown();
+            pool.close();
+            idCacheFile.delete();
+            new File(idCacheFile.getPath() + ".lock").delete();
+        }
+
+        for (String error : errors) {
+            System.out.println("Error: " + error);
+        }
+        ok &= errors.isEmpty();
+        System.out.println(ok ? "PASSED" : "FAILED");
+        return ok;
+    }
+
+    /**
+     * Copy two builds of the artifact into a package several times each, one copy at a time.
+     *
+     * @return whether the artifact was fetched the expected number of times
+     */
+    private boolean check(boolean checksum, String pkg, int expectedFetches) {
+        publishChecksum = checksum;
+        artifactFetched.set(0);
+        for (int build = 0; build < 2; build++) {
+            artifact = new byte[size];
+            new Random(build).nextBytes(artifact);
+            for (int i = 0; i < copies; i++) {
+                copy(pkg);
+            }
+        }
+        int fetched = artifactFetched.get();
+        System.out.println(String.format("%s checksum: %d copies of 2 builds fetched the artifact %d times "
+                + "(expected %d)", checksum ? "With" : "Without", 2 * copies, fetched, expectedFetches));
+        return fetched == expectedFetches;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void copy(String pkg) {
+        JSONObject fields = new JSONObject();
+        fields.put("teamForgeUrl", FakeTeamForge.URL);
+        fields.put("teamForgeUsername", "admin");
+        fields.put("teamForgePassword", "admin");
+        fields.put("project", "singlefetch");
+        fields.put("package", pkg);
+        fields.put("release", "1.0");
+        fields.put("createRelease", "true");
+        fields.put("releaseStatus", "active");
+        fields.put("overwrite", "true");
+        fields.put("skipUnchanged", "true");
+        fields.put("idCacheFile", idCacheFile.getPath());
+        fields.put("repositoryUrl", "http://127.0.0.1:" + server.getAddress().getPort() + "/repo");
+        fields.put("artifactGroupId", "com.example");
+        fields.put("artifactId", "example");
+        fields.put("artifactVersion", "1.0");
+        fields.put("artifactType", "jar");
+        JSONObject workitem = new JSONObject();
+        workitem.put("fields", fields);
+
+        CopyWorker worker = new CopyWorker();
+        worker.setWorkitem(workitem);
+        worker.frsCopy();
+    }
+
+    /**
+     * The Maestro copy task, taking its sessions from the harness's pool.
+     */
+    private class CopyWorker extends FrsCopyWorker {
+        @Override
+        protected CollabNetSessionPool getSessionPool() {
+            return pool;
+        }
+
+        @Override
+        public void setError(String error) {
+            synchronized (errors) {
+                errors.add(error.trim());
+            }
+        }
+
+        @Override
+        public void writeOutput(String output) {
+        }
+    }
+
+    /**
+     * Serves the current build of the artifact and, if enabled, its checksum, counting the requests for the content
+     * of the artifact.
+     */
+    private class RepositoryHandler implements HttpHandler {
+        public void handle(HttpExchange exchange) throws IOException {
+            String path = exchange.getRequestURI().getPath();
+            byte[] content = artifact;
+            if (path.equals(ARTIFACT_PATH + ".sha1") && publishChecksum) {
+                content = sha1(content).getBytes(StandardCharsets.US_ASCII);
+            } else if (!path.equals(ARTIFACT_PATH)) {
+                exchange.sendResponseHeaders(404, -1);
+                exchange.close();
+                return;
+            }
+
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Content-Length", String.valueOf(content.length));
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+                return;
+            }
+            if (path.equals(ARTIFACT_PATH)) {
+                artifactFetched.incrementAndGet();
+            }
+            exchange.sendResponseHeaders(200, content.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(content);
+            }
+        }
+    }
+
+    private static String sha1(byte[] content) {
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-1").digest(content)) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
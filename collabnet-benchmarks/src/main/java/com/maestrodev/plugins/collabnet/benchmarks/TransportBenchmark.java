@@ -0,0 +1,162 @@
+package com.maestrodev.plugins.collabnet.benchmarks;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.collabnet.ce.soap60.webservices.ClientSoapStubFactory;
+import com.collabnet.ce.soap60.webservices.cemain.ICollabNetSoap;
+import com.maestrodev.plugins.collabnet.transport.PooledSoapStubFactory;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.rmi.RemoteException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * SOAP calls over HTTP to a local stand-in server, comparing the SDK's default transport with the pooled keep-alive
+ * transport. The stand-in answers every call with a SOAP fault padded with list rows to the configured size, which the
+ * client parses in full, so no TeamForge schema is needed. The number of connections and bytes sent by the server are
+ * printed at the end of each trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Threads(4)
+public class TransportBenchmark {
+    @Param({"default", "pooled"})
+    public String transport;
+
+    @Param({"1024", "262144"})
+    public int responseSize;
+
+    private HttpServer server;
+
+    private ICollabNetSoap stub;
+
+    private final Set<Integer> clientPorts = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    @Setup
+    public void setUp() throws IOException {
+        final byte[] response = createFault(responseSize);
+        final byte[] gzipResponse = gzip(response);
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try (InputStream is = exchange.getRequestBody()) {
+                    byte[] buf = new byte[8192];
+                    while (is.read(buf) != -1) {
+                        // discard the request
+                    }
+                }
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+                requests.incrementAndGet();
+
+                String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                byte[] body = response;
+                if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                    body = gzipResponse;
+                    exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                }
+                exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=utf-8");
+                exchange.sendResponseHeaders(500, body.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(body);
+                }
+                bytesSent.addAndGet(body.length);
+            }
+        });
+        server.start();
+
+        String url = "http://127.0.0.1:" + server.getAddress().getPort();
+        if ("pooled".equals(transport)) {
+            stub = new PooledSoapStubFactory(32, 8, 30000, 60000, true).getSoapStub(ICollabNetSoap.class, url);
+        } else {
+            stub = (ICollabNetSoap) ClientSoapStubFactory.getSoapStub(ICollabNetSoap.class, url);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop(0);
+        System.out.println();
+        System.out.println(transport + " transport: " + requests.get() + " requests over " + clientPorts.size() +
+                " connections, " + bytesSent.get() + " response bytes");
+    }
+
+    @Benchmark
+    public Object call() {
+        try {
+            return stub.getUserData("session", "admin");
+        } catch (RemoteException e) {
+            // the stand-in always responds with a fault
+            return e;
+        }
+    }
+
+    private static byte[] createFault(int size) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        sb.append("<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\"><soapenv:Body>");
+        sb.append("<soapenv:Fault><faultcode>soapenv:Server</faultcode><faultstring>stand-in</faultstring><detail>");
+        for (int i = 0; sb.length() < size; i++) {
+            sb.append("<row><id>rel").append(1000 + i).append("</id><title>release-").append(i).append("</title></row>");
+        }
+        sb.append("</detail></soapenv:Fault></soapenv:Body></soapenv:Envelope>");
+        return sb.toString().getBytes("UTF-8");
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream os = new GZIPOutputStream(bytes)) {
+            os.write(data);
+        }
+        return bytes.toByteArray();
+    }
+}
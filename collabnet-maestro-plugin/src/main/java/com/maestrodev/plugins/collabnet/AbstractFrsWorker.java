@@ -19,11 +19,23 @@ package com.maestrodev.plugins.collabnet;
 import com.maestrodev.maestro.plugins.MaestroWorker;
 import com.maestrodev.plugins.collabnet.frs.FrsSession;
 import com.maestrodev.plugins.collabnet.frs.Release;
+import com.maestrodev.plugins.collabnet.frs.ReleaseTarget;
 import com.maestrodev.plugins.collabnet.log.Log;
+import com.maestrodev.plugins.collabnet.metrics.FileTransferStats;
+import com.maestrodev.plugins.collabnet.metrics.MetricsCollector;
+import com.maestrodev.plugins.collabnet.metrics.OperationStats;
+import com.maestrodev.plugins.collabnet.metrics.UploadProgress;
+import com.maestrodev.plugins.collabnet.metrics.UploadProgressListener;
+import com.maestrodev.plugins.collabnet.retry.CircuitBreaker;
+import com.maestrodev.plugins.collabnet.retry.ExponentialBackoffRetryPolicy;
+import com.maestrodev.plugins.collabnet.retry.RetryingInvoker;
+import org.apache.commons.lang3.StringUtils;
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
 import java.util.List;
@@ -87,6 +99,56 @@ public abstract class AbstractFrsWorker extends MaestroWorker
      * Whether to overwrite the file if it already exists.
      */
     protected boolean overwrite;
+    /**
+     * The (optional) file to remember package and release IDs in between tasks, to avoid listing all of the packages
+     * and releases in the project each time.
+     */
+    protected String idCacheFile;
+    /**
+     * Whether to skip uploading files that are identical to those already in the release, when overwriting. This
+     * requires <code>{@linkplain #idCacheFile}</code> to be set, as it holds the digests of uploaded files.
+     */
+    protected boolean skipUnchanged;
+    /**
+     * If greater than zero, stream each file to TeamForge in chunks of this many bytes instead of sending it as a
+     * single attachment.
+     */
+    protected int uploadChunkSize;
+    /**
+     * If greater than zero, the maximum rate in bytes per second at which the task uploads. A limit for all tasks on
+     * the agent can also be set with the <code>collabnet.upload.bandwidth</code> system property, and both apply.
+     */
+    protected int uploadBandwidth;
+    /**
+     * The number of times to retry a call to TeamForge that failed for a reason likely to be temporary.
+     */
+    protected int retries;
+    /**
+     * The time in milliseconds to wait before the first retry, doubling for each further retry of the same call.
+     */
+    protected int retryDelay;
+    /**
+     * The maximum number of retries to make over the whole task.
+     */
+    protected int retryBudget;
+    /**
+     * The number of consecutive temporary failures after which TeamForge is considered unavailable by all tasks on
+     * this agent, and calls fail immediately for {@link #circuitBreakerOpenTime}.
+     */
+    protected int circuitBreakerThreshold;
+    /**
+     * The time in milliseconds for which calls fail immediately once TeamForge is considered unavailable.
+     */
+    protected int circuitBreakerOpenTime;
+    /**
+     * The interval in milliseconds at which to write the progress of each file that takes longer than this to upload
+     * to the task output, or <code>0</code> not to.
+     */
+    protected int progressInterval;
+    /**
+     * Measurements of the calls made to TeamForge by this task, published to the context when it finishes.
+     */
+    protected MetricsCollector metrics;
 
     @Override
     public void setWorkitem(JSONObject workitem) {
@@ -108,6 +170,28 @@ public abstract class AbstractFrsWorker extends MaestroWorker
         }
 
         this.overwrite = Boolean.valueOf(getField("overwrite"));
+        this.idCacheFile = getField("idCacheFile");
+        this.skipUnchanged = Boolean.valueOf(getField("skipUnchanged"));
+    }
+
+    /**
+     * Retrieve a numeric field from the workitem.
+     *
+     * @param name         the name of the field
+     * @param defaultValue the value to use if the field is not set
+     * @return the value of the field
+     * @throws IllegalArgumentException if the field is not a number
+     */
+    protected int getIntField(String name, int defaultValue) throws IllegalArgumentException {
+        String value = getField(name);
+        if (StringUtils.isBlank(value)) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Field '" + name + "' must be a number, but is: '" + value + "'");
+        }
     }
 
     protected void verifyConfiguration() throws IllegalArgumentException {
@@ -121,6 +205,15 @@ public abstract class AbstractFrsWorker extends MaestroWorker
         if (!"active".equals(releaseStatus) && !"pending".equals(releaseStatus)) {
             throw new IllegalArgumentException("Release status must be 'active' or 'pending', but is: '" + releaseStatus + "'");
         }
+
+        this.uploadChunkSize = getIntField("uploadChunkSize", 0);
+        this.uploadBandwidth = getIntField("uploadBandwidth", 0);
+        this.retries = getIntField("retries", 3);
+        this.retryDelay = getIntField("retryDelay", 1000);
+        this.retryBudget = getIntField("retryBudget", 20);
+        this.circuitBreakerThreshold = getIntField("circuitBreakerThreshold", 5);
+        this.circuitBreakerOpenTime = getIntField("circuitBreakerOpenTime", 60000);
+        this.progressInterval = getIntField("progressInterval", 10000);
     }
 
     protected com.maestrodev.plugins.collabnet.frs.Package createPackageTemplate() {
@@ -139,12 +232,118 @@ public abstract class AbstractFrsWorker extends MaestroWorker
         return template;
     }
 
+    /**
+     * Obtain a TeamForge session from the process-wide pool, so that consecutive tasks for the same user do not each
+     * need to log in. The session must be released with {@linkplain #logoff(CollabNetSession)}.
+     */
+    protected CollabNetSession createSession() throws RemoteException {
+        CollabNetSession session = getSessionPool().borrowSession(teamForgeUrl, teamForgeUsername, teamForgePassword,
+                new MaestroPluginLog());
+        if (StringUtils.isNotBlank(idCacheFile)) {
+            session.setIdCache(new IdCache(new File(idCacheFile)));
+        }
+        metrics = new MetricsCollector();
+        session.setMetrics(metrics);
+        CircuitBreaker circuitBreaker = null;
+        if (circuitBreakerThreshold > 0) {
+            circuitBreaker = CircuitBreaker.getShared(teamForgeUrl, circuitBreakerThreshold, circuitBreakerOpenTime);
+        }
+        session.setRetryPolicy(new ExponentialBackoffRetryPolicy(retries + 1, retryDelay, 30 * 1000L, retryBudget),
+                circuitBreaker);
+        return session;
+    }
+
+    protected FrsSession createFrsSession(CollabNetSession session, String projectId) {
+        FrsSession frsSession = session.createFrsSession(projectId);
+        frsSession.setSkipUnchanged(skipUnchanged);
+        frsSession.setUploadChunkSize(uploadChunkSize);
+        frsSession.setBandwidthLimit(uploadBandwidth);
+        if (progressInterval > 0) {
+            frsSession.setProgressListener(new MaestroPluginLog(), progressInterval);
+        }
+        return frsSession;
+    }
+
+    /**
+     * Return a session obtained from {@linkplain #createSession()} to the pool, and publish the measurements of the
+     * calls made with it. It is logged off when it has been idle for some time, or when the agent shuts down.
+     */
     protected void logoff(CollabNetSession session) {
-        try {
-            session.logoff();
-        } catch (RemoteException e) {
-            logger.error("Error logging off from CollabNet TeamForge (ignoring): " + e.getLocalizedMessage(), e);
+        logoff(session, null);
+    }
+
+    /**
+     * Release a session obtained from {@linkplain #createSession()} after the task failed. If the failure suggests the
+     * session is no longer usable - it expired, or the connection to TeamForge failed - it is logged off rather than
+     * returned to the pool for another task to reuse.
+     *
+     * @param session the session
+     * @param failure the failure that ended the task, or <code>null</code> if it did not fail talking to TeamForge
+     */
+    protected void logoff(CollabNetSession session, RemoteException failure) {
+        if (failure != null && (RetryingInvoker.isSessionExpired(failure)
+                || ExponentialBackoffRetryPolicy.isTransient(failure))) {
+            logger.debug("Not reusing TeamForge session after failure: " + failure.getLocalizedMessage());
+            getSessionPool().invalidateSession(session);
+        } else {
+            getSessionPool().returnSession(session);
         }
+        addMetricsToContext();
+    }
+
+    /**
+     * @return the pool to obtain TeamForge sessions from, shared by all tasks on this agent
+     */
+    protected CollabNetSessionPool getSessionPool() {
+        return CollabNetSessionPool.getInstance();
+    }
+
+    /**
+     * Add the time taken by each TeamForge operation, and the size and upload rate of each file, to the context
+     * outputs as <code>collabnetMetrics</code>.
+     */
+    @SuppressWarnings("unchecked")
+    protected void addMetricsToContext() {
+        JSONObject collabnetMetrics = new JSONObject();
+
+        JSONArray operations = new JSONArray();
+        for (OperationStats stats : metrics.getOperationStats()) {
+            JSONObject operation = new JSONObject();
+            operation.put("operation", stats.getOperation());
+            operation.put("calls", stats.getCalls());
+            operation.put("failures", stats.getFailures());
+            operation.put("totalMillis", stats.getTotalMillis());
+            operation.put("meanMillis", stats.getMeanMillis());
+            operation.put("maxMillis", stats.getMaxMillis());
+            operations.add(operation);
+        }
+        collabnetMetrics.put("operations", operations);
+
+        JSONArray files = new JSONArray();
+        for (FileTransferStats stats : metrics.getFileStats()) {
+            JSONObject file = new JSONObject();
+            file.put("name", stats.getName());
+            file.put("bytes", stats.getBytes());
+            file.put("millis", stats.getMillis());
+            file.put("bytesPerSecond", stats.getBytesPerSecond());
+            files.add(file);
+        }
+        collabnetMetrics.put("files", files);
+        collabnetMetrics.put("totalBytes", metrics.getTotalBytes());
+
+        getContextOutputs().put("collabnetMetrics", collabnetMetrics);
+        for (String line : metrics.getSummary()) {
+            logger.debug(line);
+        }
+    }
+
+    private JSONObject getContextOutputs() {
+        JSONObject context = (JSONObject) getFields().get("__context_outputs__");
+        if (context == null) {
+            context = new JSONObject();
+            setField("__context_outputs__", context);
+        }
+        return context;
     }
 
     protected String preparePackage(FrsSession frsSession) throws RemoteException, ResourceNotFoundException {
@@ -169,12 +368,15 @@ public abstract class AbstractFrsWorker extends MaestroWorker
         return releaseId;
     }
 
-    protected JSONObject addCollabnetReleaseToContext(String projectId, String packageId, String releaseId, List<String> fileIds) {
-        JSONObject context = (JSONObject) getFields().get("__context_outputs__");
-        if (context == null) {
-            context = new JSONObject();
-            setField("__context_outputs__", context);
-        }
+    protected JSONObject addCollabnetReleaseToContext(String projectId, String packageId, String releaseId, List<String> fileIds,
+                                                      List<String> skippedFiles) {
+        return addCollabnetReleaseToContext(new ReleaseTarget(project, pkg, release), projectId, packageId, releaseId,
+                fileIds, skippedFiles);
+    }
+
+    protected JSONObject addCollabnetReleaseToContext(ReleaseTarget target, String projectId, String packageId,
+                                                      String releaseId, List<String> fileIds, List<String> skippedFiles) {
+        JSONObject context = getContextOutputs();
         List<JSONObject> collabnetReleases = (List<JSONObject>) context.get("collabnetReleases");
         if (collabnetReleases == null) {
             collabnetReleases = new ArrayList<JSONObject>();
@@ -183,18 +385,19 @@ public abstract class AbstractFrsWorker extends MaestroWorker
 
         JSONObject collabnetRelease = new JSONObject();
         collabnetRelease.put("fileIds", fileIds);
+        collabnetRelease.put("skippedFiles", skippedFiles);
         collabnetRelease.put("projectId", projectId);
-        collabnetRelease.put("project", project);
+        collabnetRelease.put("project", target.getProject());
         collabnetRelease.put("packageId", packageId);
-        collabnetRelease.put("package", pkg);
+        collabnetRelease.put("package", target.getPackageTitle());
         collabnetRelease.put("releaseId", releaseId);
-        collabnetRelease.put("release", release);
+        collabnetRelease.put("release", target.getReleaseTitle());
         collabnetReleases.add(collabnetRelease);
 
         return collabnetRelease;
     }
 
-    protected class MaestroPluginLog implements Log {
+    protected class MaestroPluginLog implements Log, UploadProgressListener {
         public void debug(String msg) {
             logger.debug(msg);
 
@@ -207,5 +410,9 @@ public abstract class AbstractFrsWorker extends MaestroWorker
 
             writeOutput(msg + "\n");
         }
+
+        public void uploadProgress(UploadProgress progress) {
+            info(progress.toString());
+        }
     }
 }
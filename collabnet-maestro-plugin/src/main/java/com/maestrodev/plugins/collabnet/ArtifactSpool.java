@@ -0,0 +1,419 @@
+package com.maestrodev.plugins.collabnet;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A local spool of artifacts fetched from a repository, so that retried copies and copies of the same artifact to
+ * several releases only fetch it once. Entries are keyed by the artifact coordinates and the checksum published by the
+ * repository, so a changed artifact is never served from a stale entry.
+ *
+ * The spool can be shared by concurrent workers in the same JVM and in other processes. Each entry is fetched under a
+ * lock, verified against the checksum, and moved into place only once complete. While an entry is in use it holds a
+ * shared lock, so that it is not removed from under its users. When the spool grows beyond its maximum size, the least
+ * recently used entries that are not in use are removed.
+ */
+public class ArtifactSpool {
+    /**
+     * The entries in use in this JVM, by path. An entry is removed when its last user releases it.
+     */
+    private static final ConcurrentMap<File, Pin> PINS = new ConcurrentHashMap<File, Pin>();
+
+    private static final long LOCK_POLL_INTERVAL = 10;
+
+    private final File directory;
+
+    private final long maxSize;
+
+    /**
+     * @param directory the directory to keep the spool in
+     * @param maxSize   the size in bytes the spool may grow to before entries are evicted
+     */
+    public ArtifactSpool(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get an artifact from the spool, fetching it first if it is not already present. The entry is kept in the spool
+     * until it is {@linkplain Entry#release() released}.
+     *
+     * @param coordinates the coordinates of the artifact
+     * @param sha1        the SHA-1 checksum of the artifact published by the repository
+     * @param source      the URL to fetch the artifact from if it is not in the spool
+     * @return the spooled entry
+     * @throws IOException if the artifact could not be fetched, or did not match the checksum
+     */
+    public Entry get(String coordinates, String sha1, URL source) throws IOException {
+        String key = hex(digest(coordinates + "@" + sha1.toLowerCase()));
+        File file = new File(directory, key).getAbsoluteFile();
+
+        Pin pin = Pin.acquire(file);
+        try {
+            synchronized (pin) {
+                if (pin.lock == null) {
+                    if (!directory.exists() && !directory.mkdirs() && !directory.exists()) {
+                        throw new IOException("Unable to create spool directory: " + directory);
+                    }
+                    pin.open();
+                    try {
+                        share(pin, source, sha1);
+                    } catch (IOException e) {
+                        pin.close();
+                        throw e;
+                    }
+                }
+                file.setLastModified(System.currentTimeMillis());
+            }
+        } catch (IOException e) {
+            pin.release();
+            throw e;
+        }
+
+        evict();
+        return new Entry(pin);
+    }
+
+    /**
+     * Fetch the entry if needed while holding an exclusive lock, to guard against other processes fetching the same
+     * entry, and then hold a shared lock while it is in use. Another process may remove the entry between the two, in
+     * which case it is fetched again. A lock obtained on a lock file that has since been deleted does not guard
+     * anything, so the lock file is opened again.
+     */
+    private void share(Pin pin, URL source, String sha1) throws IOException {
+        while (true) {
+            FileLock exclusive = lock(pin.lockFile, false);
+            try {
+                if (pin.isDeleted()) {
+                    pin.reopen();
+                    continue;
+                }
+                if (!pin.file.exists()) {
+                    fetch(source, sha1, pin.file);
+                }
+            } finally {
+                if (exclusive.isValid()) {
+                    exclusive.release();
+                }
+            }
+
+            pin.lock = lock(pin.lockFile, true);
+            if (!pin.isDeleted() && pin.file.exists()) {
+                return;
+            }
+            pin.lock.release();
+            pin.lock = null;
+            if (pin.isDeleted()) {
+                pin.reopen();
+            }
+        }
+    }
+
+    /**
+     * Wait for a lock on a lock file. Locks are held by the whole process, so the kernel may report a deadlock when
+     * threads of two processes each wait for a lock while holding another - polling never waits inside the kernel.
+     */
+    private static FileLock lock(RandomAccessFile lockFile, boolean shared) throws IOException {
+        while (true) {
+            FileLock lock = lockFile.getChannel().tryLock(0, Long.MAX_VALUE, shared);
+            if (lock != null) {
+                return lock;
+            }
+            try {
+                Thread.sleep(LOCK_POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a lock on the spool");
+            }
+        }
+    }
+
+    private void fetch(URL source, String sha1, File entry) throws IOException {
+        MessageDigest digest = newDigest();
+        File tmp = File.createTempFile(entry.getName(), ".tmp", directory);
+        try {
+            InputStream is = source.openStream();
+            try {
+                OutputStream os = new FileOutputStream(tmp);
+                try {
+                    byte[] buf = new byte[8192];
+                    int n;
+                    while ((n = is.read(buf)) != -1) {
+                        digest.update(buf, 0, n);
+                        os.write(buf, 0, n);
+                    }
+                } finally {
+                    os.close();
+                }
+            } finally {
+                is.close();
+            }
+
+            String actual = hex(digest.digest());
+            if (!actual.equalsIgnoreCase(sha1)) {
+                throw new IOException("Checksum mismatch for '" + source + "': expected " + sha1 + " but was " + actual);
+            }
+            if (!tmp.renameTo(entry)) {
+                throw new IOException("Unable to move '" + tmp + "' to '" + entry + "'");
+            }
+        } finally {
+            if (tmp.exists()) {
+                tmp.delete();
+            }
+        }
+    }
+
+    private void evict() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        List<File> entries = new ArrayList<File>();
+        long total = 0;
+        for (File file : files) {
+            if (file.isFile() && file.getName().indexOf('.') < 0) {
+                entries.add(file.getAbsoluteFile());
+                total += file.length();
+            }
+        }
+        if (total <= maxSize) {
+            return;
+        }
+
+        File[] oldestFirst = entries.toArray(new File[entries.size()]);
+        Arrays.sort(oldestFirst, new Comparator<File>() {
+            public int compare(File f1, File f2) {
+                long diff = f1.lastModified() - f2.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (File file : oldestFirst) {
+            if (total <= maxSize) {
+                break;
+            }
+            long length = file.length();
+            if (remove(file)) {
+                total -= length;
+            }
+        }
+    }
+
+    /**
+     * Remove an entry if it is not in use in this JVM or any other process.
+     *
+     * @return whether the entry was removed
+     */
+    private boolean remove(File file) {
+        if (PINS.containsKey(file)) {
+            return false;
+        }
+        Pin pin = Pin.acquire(file);
+        try {
+            synchronized (pin) {
+                if (pin.lock != null || pin.users > 1) {
+                    return false;
+                }
+                pin.open();
+                try {
+                    FileLock exclusive = pin.lockFile.getChannel().tryLock();
+                    if (exclusive == null) {
+                        return false;
+                    }
+                    try {
+                        if (pin.isDeleted()) {
+                            return false;
+                        }
+                        // the entry may already have been removed by another process, leaving only the lock file
+                        boolean removed = file.delete();
+                        // mark the lock file before deleting it, so that processes waiting to lock it open it again
+                        pin.lockFile.write(1);
+                        new File(file.getPath() + ".lock").delete();
+                        return removed;
+                    } finally {
+                        exclusive.release();
+                    }
+                } finally {
+                    pin.close();
+                }
+            }
+        } catch (IOException e) {
+            return false;
+        } catch (OverlappingFileLockException e) {
+            return false;
+        } finally {
+            pin.release();
+        }
+    }
+
+    private static byte[] digest(String value) {
+        try {
+            return newDigest().digest(value.getBytes("UTF-8"));
+        } catch (IOException e) {
+            throw new IllegalStateException("UTF-8 is not supported by this JVM", e);
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not supported by this JVM", e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * An artifact in the spool, which is kept until it is released.
+     */
+    public static class Entry {
+        private final Pin pin;
+
+        private boolean released;
+
+        private Entry(Pin pin) {
+            this.pin = pin;
+        }
+
+        /**
+         * @return the spooled file
+         */
+        public File getFile() {
+            return pin.file;
+        }
+
+        /**
+         * Allow the entry to be evicted once it has no other users. Releasing an entry more than once has no effect.
+         */
+        public synchronized void release() {
+            if (!released) {
+                released = true;
+                pin.release();
+            }
+        }
+    }
+
+    /**
+     * The users of an entry in this JVM, and the shared lock held on its behalf while there are any.
+     */
+    private static class Pin {
+        private final File file;
+
+        private int users;
+
+        private boolean removed;
+
+        private RandomAccessFile lockFile;
+
+        private FileLock lock;
+
+        private Pin(File file) {
+            this.file = file;
+        }
+
+        static Pin acquire(File file) {
+            while (true) {
+                Pin pin = PINS.get(file);
+                if (pin == null) {
+                    Pin created = new Pin(file);
+                    pin = PINS.putIfAbsent(file, created);
+                    if (pin == null) {
+                        pin = created;
+                    }
+                }
+                synchronized (pin) {
+                    // a pin that was released by its last user is no longer in the map, so start again
+                    if (!pin.removed) {
+                        pin.users++;
+                        return pin;
+                    }
+                }
+            }
+        }
+
+        synchronized void release() {
+            if (--users == 0) {
+                // unlock before a new pin for the file can be created, as locks held by the JVM must not overlap
+                close();
+                removed = true;
+                PINS.remove(file, this);
+            }
+        }
+
+        void open() throws IOException {
+            lockFile = new RandomAccessFile(new File(file.getPath() + ".lock"), "rw");
+        }
+
+        /**
+         * Open the lock file again, after finding that the one open was deleted by the eviction of the entry.
+         */
+        void reopen() throws IOException {
+            close();
+            open();
+        }
+
+        /**
+         * @return whether the lock file open was marked as deleted by the eviction of the entry. Lock files are empty
+         *         until then.
+         */
+        boolean isDeleted() throws IOException {
+            return lockFile.length() > 0;
+        }
+
+        void close() {
+            try {
+                if (lock != null) {
+                    lock.release();
+                }
+                if (lockFile != null) {
+                    lockFile.close();
+                }
+            } catch (IOException e) {
+                // closing the file releases any lock
+            } finally {
+                lock = null;
+                lockFile = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.maestrodev.plugins.collabnet;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.repository.metadata.Metadata;
+import org.apache.maven.artifact.repository.metadata.Snapshot;
+import org.apache.maven.artifact.repository.metadata.Versioning;
+import org.apache.maven.artifact.repository.metadata.io.xpp3.MetadataXpp3Reader;
+import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resolves the <code>LATEST</code> and <code>RELEASE</code> versions of an artifact, and <code>SNAPSHOT</code>
+ * versions, to the version of a file in a repository using the repository's <code>maven-metadata.xml</code>.
+ *
+ * Metadata is cached for the whole process and revalidated with a conditional request each time it is used, so that
+ * resolving a version normally costs one request that the repository answers with <code>304 Not Modified</code>. The
+ * cache is keyed by the repository user as well as the URL, so that metadata fetched with one user's credentials is
+ * never used for another. The number of metadata files kept can be set with the
+ * <code>collabnet.repository.metadataCacheSize</code> system property.
+ */
+public class ArtifactVersionResolver {
+    private static final int CACHE_SIZE = Integer.getInteger("collabnet.repository.metadataCacheSize", 256);
+
+    private static final Map<String, CachedMetadata> CACHE = Collections.synchronizedMap(
+            new LinkedHashMap<String, CachedMetadata>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedMetadata> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            });
+
+    private final RepositoryClient repository;
+
+    private final String repositoryUrl;
+
+    private final String username;
+
+    /**
+     * Create a resolver for a repository.
+     *
+     * @param repository    the client to fetch metadata with
+     * @param repositoryUrl the URL of the repository
+     * @param username      the user the client authenticates as, or <code>null</code> if it is anonymous
+     */
+    public ArtifactVersionResolver(RepositoryClient repository, String repositoryUrl, String username) {
+        this.repository = repository;
+        this.repositoryUrl = repositoryUrl;
+        this.username = username != null ? username : "";
+    }
+
+    /**
+     * Determine the version of the file to fetch for an artifact. <code>LATEST</code> and <code>RELEASE</code> are
+     * resolved to the newest version and the newest release version, and a <code>SNAPSHOT</code> version to the
+     * timestamped version of its newest build. Other versions, and snapshots in repositories that do not keep
+     * timestamped builds, are returned as they are.
+     *
+     * @param groupId    the group ID of the artifact
+     * @param artifactId the artifact ID of the artifact
+     * @param version    the version to resolve
+     * @return the version of the file in the repository
+     * @throws ResourceNotFoundException if the repository has no metadata to resolve <code>LATEST</code> or
+     *                                   <code>RELEASE</code> from
+     * @throws IOException               if the metadata could not be fetched
+     */
+    public String resolve(String groupId, String artifactId, String version)
+            throws ResourceNotFoundException, IOException {
+        String artifactPath = groupId.replace('.', '/') + "/" + artifactId;
+        String resolved = version;
+
+        if (Artifact.LATEST_VERSION.equals(version) || Artifact.RELEASE_VERSION.equals(version)) {
+            Metadata metadata = getMetadata(artifactPath + "/maven-metadata.xml");
+            Versioning versioning = metadata != null ? metadata.getVersioning() : null;
+            if (versioning != null) {
+                resolved = Artifact.LATEST_VERSION.equals(version) ? findLatest(versioning) : findRelease(versioning);
+            } else {
+                resolved = null;
+            }
+            if (resolved == null) {
+                throw new ResourceNotFoundException("Unable to find the " + version + " version of '" + groupId + ":"
+                        + artifactId + "' in '" + repositoryUrl + "'");
+            }
+        }
+
+        if (resolved.endsWith("-" + Artifact.SNAPSHOT_VERSION)) {
+            Metadata metadata = getMetadata(artifactPath + "/" + resolved + "/maven-metadata.xml");
+            Versioning versioning = metadata != null ? metadata.getVersioning() : null;
+            Snapshot snapshot = versioning != null ? versioning.getSnapshot() : null;
+            if (snapshot != null && snapshot.getTimestamp() != null && !snapshot.isLocalCopy()) {
+                resolved = resolved.substring(0, resolved.length() - Artifact.SNAPSHOT_VERSION.length())
+                        + snapshot.getTimestamp() + "-" + snapshot.getBuildNumber();
+            }
+        }
+        return resolved;
+    }
+
+    private static String findLatest(Versioning versioning) {
+        if (versioning.getLatest() != null) {
+            return versioning.getLatest();
+        }
+        List<String> versions = versioning.getVersions();
+        return versions.isEmpty() ? null : versions.get(versions.size() - 1);
+    }
+
+    private static String findRelease(Versioning versioning) {
+        if (versioning.getRelease() != null) {
+            return versioning.getRelease();
+        }
+        List<String> versions = versioning.getVersions();
+        for (int i = versions.size() - 1; i >= 0; i--) {
+            if (!versions.get(i).endsWith("-" + Artifact.SNAPSHOT_VERSION)) {
+                return versions.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Fetch metadata from the repository, or reuse the cached copy if the repository reports that it has not
+     * changed.
+     *
+     * @return the metadata, or <code>null</code> if the repository has none at that path
+     */
+    private Metadata getMetadata(String path) throws IOException {
+        String url = repositoryUrl + "/" + path;
+        String key = username + "@" + url;
+
+        CachedMetadata cached = CACHE.get(key);
+        RepositoryClient.CachedFile file;
+        try {
+            file = repository.fetch(url, cached != null ? cached.file : null);
+        } catch (FileNotFoundException e) {
+            CACHE.remove(key);
+            return null;
+        }
+        if (cached != null && file == cached.file) {
+            return cached.metadata;
+        }
+
+        Metadata metadata;
+        try {
+            metadata = new MetadataXpp3Reader().read(new InputStreamReader(
+                    new ByteArrayInputStream(file.getContent()), "UTF-8"), false);
+        } catch (XmlPullParserException e) {
+            throw new IOException("Unable to parse '" + url + "': " + e.getLocalizedMessage());
+        }
+        if (file.isRevalidatable()) {
+            CACHE.put(key, new CachedMetadata(file, metadata));
+        }
+        return metadata;
+    }
+
+    private static class CachedMetadata {
+        private final RepositoryClient.CachedFile file;
+
+        private final Metadata metadata;
+
+        private CachedMetadata(RepositoryClient.CachedFile file, Metadata metadata) {
+            this.file = file;
+            this.metadata = metadata;
+        }
+    }
+}
@@ -16,7 +16,10 @@ package com.maestrodev.plugins.collabnet;
  * limitations under the License.
  */
 
+import com.maestrodev.plugins.collabnet.frs.ContentDigest;
 import com.maestrodev.plugins.collabnet.frs.FrsSession;
+import com.maestrodev.plugins.collabnet.frs.ReleaseFileIndex;
+import com.maestrodev.plugins.collabnet.frs.UploadResult;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.artifact.DefaultArtifact;
@@ -25,22 +28,57 @@ import org.apache.maven.artifact.repository.layout.DefaultRepositoryLayout;
 import org.apache.maven.artifact.versioning.VersionRange;
 import org.json.simple.JSONObject;
 
-import java.net.Authenticator;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.net.MalformedURLException;
-import java.net.PasswordAuthentication;
 import java.net.URL;
+import java.net.URLConnection;
 import java.rmi.RemoteException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 public class FrsCopyWorker extends AbstractFrsWorker {
 
+    private static final Map<String, String> CONTENT_TYPES = new HashMap<String, String>();
+
+    static {
+        CONTENT_TYPES.put("jar", "application/java-archive");
+        CONTENT_TYPES.put("war", "application/java-archive");
+        CONTENT_TYPES.put("ear", "application/java-archive");
+        CONTENT_TYPES.put("pom", "text/xml");
+        CONTENT_TYPES.put("xml", "text/xml");
+        CONTENT_TYPES.put("zip", "application/zip");
+        CONTENT_TYPES.put("gz", "application/x-gzip");
+        CONTENT_TYPES.put("tgz", "application/x-gzip");
+        CONTENT_TYPES.put("bz2", "application/x-bzip2");
+    }
+
     /**
      * The URL of the repository to copy the artifact from.
      */
     private String repositoryUrl;
 
     /**
-     * The username to authenticate to the repository if necessary.
+     * Further repositories holding the same artifacts, such as mirrors of the first, to fetch the artifact from if they
+     * answer faster or the first repository fails.
+     */
+    private List<String> mirrorUrls;
+
+    /**
+     * The time in milliseconds to wait for a repository to start sending the artifact before also requesting it from
+     * the next, or <code>0</code> to only try the next if the repository fails.
+     */
+    private int hedgeDelay;
+
+    /**
+     * The username to authenticate to the repositories if necessary.
      */
     private String repositoryUsername;
 
@@ -60,7 +98,8 @@ public class FrsCopyWorker extends AbstractFrsWorker {
     private String artifactId;
 
     /**
-     * The version of the artifact to copy.
+     * The version of the artifact to copy. <code>LATEST</code>, <code>RELEASE</code> and <code>SNAPSHOT</code>
+     * versions are resolved from the repository metadata.
      */
     private String artifactVersion;
 
@@ -75,15 +114,33 @@ public class FrsCopyWorker extends AbstractFrsWorker {
     private String artifactClassifier;
 
     /**
-     * The (optional) filename to use for the remote file.
+     * The (optional) filename to use for the remote file. Defaults to the artifact's filename, using the
+     * <code>-SNAPSHOT</code> version rather than the timestamp for a snapshot.
      */
     private String filename;
 
+    /**
+     * The (optional) directory to keep fetched artifacts in, so that retries and copies of the same artifact to other
+     * releases do not fetch it again.
+     */
+    private String spoolDirectory;
+
+    /**
+     * The size in megabytes that the spool directory may grow to before the least recently used artifacts are removed.
+     */
+    private int spoolMaxSize;
+
+    /**
+     * Whether the release is named after the artifact version, and so should be named after the resolved version.
+     */
+    private boolean releaseFromVersion;
+
     @Override
     public void setWorkitem(JSONObject workitem) {
         super.setWorkitem(workitem);
 
         this.repositoryUrl = getField("repositoryUrl");
+        this.mirrorUrls = getArrayField(String.class, "mirrorUrls");
         this.repositoryUsername = getField("repositoryUsername");
         this.repositoryPassword = getField("repositoryPassword");
         this.artifactGroupId = getField("artifactGroupId");
@@ -92,9 +149,11 @@ public class FrsCopyWorker extends AbstractFrsWorker {
         this.artifactType = getField("artifactType");
         this.artifactClassifier = getField("artifactClassifier");
         this.filename = getField("filename");
+        this.spoolDirectory = getField("spoolDirectory");
 
         if (StringUtils.isBlank(this.release)) {
             this.release = this.artifactVersion;
+            this.releaseFromVersion = true;
         }
     }
 
@@ -107,9 +166,55 @@ public class FrsCopyWorker extends AbstractFrsWorker {
             return;
         }
 
+        List<String> repositoryUrls = new ArrayList<String>();
+        repositoryUrls.add(repositoryUrl);
+        if (mirrorUrls != null) {
+            repositoryUrls.addAll(mirrorUrls);
+        }
+
+        // the credentials are only used by this task, so that concurrent tasks for other repositories can not see them
+        RepositoryMirrors repositories;
+        try {
+            repositories = new RepositoryMirrors(repositoryUrls, repositoryUsername, repositoryPassword, hedgeDelay,
+                    new MaestroPluginLog());
+        } catch (MalformedURLException e) {
+            String msg = e.getLocalizedMessage();
+            logger.error(msg, e);
+            setError(msg + "\n");
+            return;
+        }
+
+        try {
+            frsCopy(repositories);
+        } finally {
+            repositories.close();
+        }
+    }
+
+    private void frsCopy(RepositoryMirrors repositories) {
+        Artifact artifact;
+        try {
+            artifact = resolveArtifact(repositories);
+        } catch (MalformedURLException e) {
+            String msg = e.getLocalizedMessage();
+            logger.error(msg, e);
+            setError(msg + "\n");
+            return;
+        } catch (IOException e) {
+            String msg = "Failed to resolve version '" + artifactVersion + "' of the artifact: " + e.getLocalizedMessage();
+            logger.error(msg, e);
+            setError(msg + "\n");
+            return;
+        } catch (ResourceNotFoundException e) {
+            String msg = e.getLocalizedMessage();
+            logger.error(msg, e);
+            setError(msg + "\n");
+            return;
+        }
+
         CollabNetSession session;
         try {
-            session = new CollabNetSession(teamForgeUrl, teamForgeUsername, teamForgePassword, new MaestroPluginLog());
+            session = createSession();
         } catch (RemoteException e) {
             String msg = "Failed to login to TeamForge: " + e.getLocalizedMessage();
             logger.error(msg, e);
@@ -123,28 +228,35 @@ public class FrsCopyWorker extends AbstractFrsWorker {
         } catch (RemoteException e) {
             logger.error("Exception retrieving TeamForge project: " + e.getLocalizedMessage(), e);
             setError("Failed to retrieve TeamForge project '" + project + "': " + e.getLocalizedMessage() + "\n");
+            logoff(session, e);
             return;
         }
         logger.debug("Found CollabNet project '" + projectId + "'");
         setField("projectId", projectId);
 
+        RemoteException failure = null;
         try {
-            FrsSession frsSession = session.createFrsSession(projectId);
+            FrsSession frsSession = createFrsSession(session, projectId);
             String packageId = preparePackage(frsSession);
             String releaseId = prepareRelease(frsSession, packageId);
 
-            String fileId = copyArtifact(frsSession, releaseId);
+            UploadResult result = copyArtifact(frsSession, releaseId, repositories, artifact);
+            String fileId = result.getFileId();
             setField("fileId", fileId);
-            JSONObject record = addCollabnetReleaseToContext(projectId, packageId, releaseId, Collections.singletonList(fileId));
+            List<String> skippedFiles = result.isSkipped() ? Collections.singletonList(result.getName())
+                    : Collections.<String>emptyList();
+            JSONObject record = addCollabnetReleaseToContext(projectId, packageId, releaseId,
+                    Collections.singletonList(fileId), skippedFiles);
             record.put("mavenGroupId", artifactGroupId);
             record.put("mavenArtifactId", artifactId);
-            record.put("mavenArtifactId", artifactId);
+            record.put("mavenVersion", artifact.getVersion());
             record.put("mavenType", artifactType);
             record.put("mavenClassifier", artifactClassifier);
         } catch (RemoteException e) {
             String msg = e.getLocalizedMessage();
             logger.error(msg, e);
             setError(msg + "\n");
+            failure = e;
         } catch (MalformedURLException e) {
             String msg = e.getLocalizedMessage();
             logger.error(msg, e);
@@ -154,33 +266,141 @@ public class FrsCopyWorker extends AbstractFrsWorker {
             logger.error(msg, e);
             setError(msg + "\n");
         } finally {
-            logoff(session);
+            logoff(session, failure);
+        }
+    }
+
+    /**
+     * Determine the artifact to copy, resolving its version from the repository metadata if necessary. If the release
+     * is named after the version, it is named after the resolved version instead, without the snapshot timestamp.
+     */
+    private Artifact resolveArtifact(RepositoryMirrors repositories) throws IOException, ResourceNotFoundException {
+        String version = repositories.resolveVersion(artifactGroupId, artifactId, artifactVersion, repositoryUsername);
+        if (!version.equals(artifactVersion)) {
+            logger.debug("Resolved version '" + artifactVersion + "' of the artifact to '" + version + "'");
+        }
+
+        Artifact artifact = new DefaultArtifact(artifactGroupId, artifactId, VersionRange.createFromVersion(version),
+                null, artifactType, artifactClassifier, new DefaultArtifactHandler(artifactType));
+        if (releaseFromVersion) {
+            release = artifact.getBaseVersion();
         }
+        return artifact;
+    }
+
+    /**
+     * Name the file after the artifact's base version, so that a resolved snapshot keeps the <code>-SNAPSHOT</code>
+     * name rather than its timestamp, and replaces the previous snapshot when overwriting.
+     */
+    private static String getDefaultFilename(Artifact artifact) {
+        Artifact base = new DefaultArtifact(artifact.getGroupId(), artifact.getArtifactId(),
+                VersionRange.createFromVersion(artifact.getBaseVersion()), null, artifact.getType(),
+                artifact.getClassifier(), artifact.getArtifactHandler());
+        String path = new DefaultRepositoryLayout().pathOf(base);
+        return path.substring(path.lastIndexOf('/') + 1);
     }
 
-    private String copyArtifact(FrsSession frsSession, String releaseId) throws MalformedURLException, RemoteException {
-        Artifact artifact = new DefaultArtifact(artifactGroupId, artifactId,
-                VersionRange.createFromVersion(artifactVersion), null, artifactType, artifactClassifier,
-                new DefaultArtifactHandler(artifactType));
+    private UploadResult copyArtifact(FrsSession frsSession, String releaseId, RepositoryMirrors repositories,
+                                      Artifact artifact) throws MalformedURLException, RemoteException {
         String path = new DefaultRepositoryLayout().pathOf(artifact);
-        String url = repositoryUrl + "/" + path;
+        repositories.probe(path);
+        URL source = repositories.getUrl(path);
 
         String filename = this.filename;
         if (StringUtils.isBlank(filename)) {
-            filename = path.substring(path.lastIndexOf('/') + 1);
+            filename = getDefaultFilename(artifact);
         }
 
-        String msg = "Uploading '" + url + "' to release '" + releaseId + "' as '" + filename + "'";
+        String msg = "Uploading '" + source + "' to release '" + releaseId + "' as '" + filename + "'";
         logger.debug(msg);
         writeOutput(msg + "\n");
 
-        Authenticator.setDefault(new Authenticator() {
-            @Override
-            protected PasswordAuthentication getPasswordAuthentication() {
-                return new PasswordAuthentication(repositoryUsername, repositoryPassword.toCharArray());
+        // the published checksum lets an unchanged artifact be skipped without fetching it, and identifies it in the spool
+        String sha1 = null;
+        if (StringUtils.isNotBlank(spoolDirectory) || skipUnchanged) {
+            sha1 = fetchChecksum(repositories.getUrl(path + ".sha1"));
+        }
+        ArtifactSpool.Entry spooled = null;
+        if (StringUtils.isNotBlank(spoolDirectory)) {
+            spooled = spool(artifact, sha1, source);
+            if (spooled != null) {
+                source = spooled.getFile().toURI().toURL();
+            }
+        }
+
+        try {
+            ReleaseFileIndex existingFiles = overwrite ? frsSession.indexReleaseFiles(releaseId) : null;
+            return frsSession.upload(releaseId, source, filename, guessContentType(filename),
+                    sha1 != null ? ContentDigest.published(sha1) : null, existingFiles);
+        } finally {
+            if (spooled != null) {
+                // the spooled copy may be evicted once it has been uploaded
+                spooled.release();
+            }
+        }
+    }
+
+    @Override
+    protected void verifyConfiguration() throws IllegalArgumentException {
+        super.verifyConfiguration();
+
+        this.spoolMaxSize = getIntField("spoolMaxSize", 1024);
+        this.hedgeDelay = getIntField("hedgeDelay", 2000);
+    }
+
+    /**
+     * Fetch the artifact into the spool if it is not already there, returning the spooled copy, which must be released
+     * once it has been uploaded. If the repository does not publish a checksum for the artifact, or it could not be
+     * fetched into the spool, <code>null</code> is returned and the original location should be used.
+     */
+    private ArtifactSpool.Entry spool(Artifact artifact, String sha1, URL source) {
+        if (sha1 == null) {
+            logger.debug("No checksum available for '" + source + "', not using spool");
+            return null;
+        }
+
+        ArtifactSpool spool = new ArtifactSpool(new File(spoolDirectory), spoolMaxSize * 1024L * 1024L);
+        try {
+            ArtifactSpool.Entry entry = spool.get(artifact.getId(), sha1, source);
+            logger.debug("Using spooled copy of '" + source + "': " + entry.getFile());
+            return entry;
+        } catch (IOException e) {
+            logger.warn("Unable to spool '" + source + "', copying directly: " + e.getLocalizedMessage());
+            return null;
+        }
+    }
+
+    private String fetchChecksum(URL url) {
+        try {
+            InputStream is = url.openStream();
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(is, "US-ASCII"));
+                String line = reader.readLine();
+                if (line != null) {
+                    // some checksum files are followed by the filename
+                    String sha1 = line.trim().split("\\s+")[0];
+                    if (sha1.length() == 40) {
+                        return sha1;
+                    }
+                }
+            } finally {
+                is.close();
             }
-        });
+        } catch (IOException e) {
+            logger.debug("Unable to fetch checksum from '" + url + "': " + e.getLocalizedMessage());
+        }
+        return null;
+    }
 
-        return frsSession.uploadFileFromUrl(releaseId, new URL(url), filename, overwrite);
+    /**
+     * Determine the content type from the file extension, so that the repository does not need to be asked for it.
+     */
+    private static String guessContentType(String filename) {
+        String extension = filename.substring(filename.lastIndexOf('.') + 1).toLowerCase(Locale.ENGLISH);
+        String contentType = CONTENT_TYPES.get(extension);
+        if (contentType == null) {
+            contentType = URLConnection.getFileNameMap().getContentTypeFor(filename);
+        }
+        return contentType != null ? contentType : "application/octet-stream";
     }
 }
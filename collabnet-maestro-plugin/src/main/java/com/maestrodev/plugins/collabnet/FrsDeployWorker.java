@@ -16,14 +16,19 @@ package com.maestrodev.plugins.collabnet;
  * limitations under the License.
  */
 
+import com.maestrodev.plugins.collabnet.frs.AdaptiveConcurrencyLimit;
+import com.maestrodev.plugins.collabnet.frs.BatchUploadResult;
 import com.maestrodev.plugins.collabnet.frs.FrsSession;
+import com.maestrodev.plugins.collabnet.frs.Package;
+import com.maestrodev.plugins.collabnet.frs.Release;
+import com.maestrodev.plugins.collabnet.frs.ReleaseTarget;
 import org.json.simple.JSONObject;
 
 import java.io.File;
-import java.net.MalformedURLException;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 public class FrsDeployWorker extends AbstractFrsWorker {
 
@@ -32,6 +37,34 @@ public class FrsDeployWorker extends AbstractFrsWorker {
      */
     private List<File> files;
 
+    /**
+     * The maximum number of files to upload at the same time, or the number to start with when adjusting it to the
+     * load on TeamForge.
+     */
+    private int parallelUploads;
+
+    /**
+     * If greater than zero, the largest number of files to upload at the same time when adjusting it to the load on
+     * TeamForge.
+     */
+    private int maxParallelUploads;
+
+    /**
+     * The smallest number of files to upload at the same time when adjusting it to the load on TeamForge.
+     */
+    private int minParallelUploads;
+
+    /**
+     * The limit shared by the sessions of the task when adjusting the number of uploads, or <code>null</code>.
+     */
+    private AdaptiveConcurrencyLimit concurrencyLimit;
+
+    /**
+     * Further releases to add the same files to, each of the form <code>release</code>, <code>package/release</code>
+     * or <code>project/package/release</code>. Each file is only uploaded once, and then added to every release.
+     */
+    private List<ReleaseTarget> additionalReleases;
+
     @Override
     public void setWorkitem(JSONObject workitem) {
         super.setWorkitem(workitem);
@@ -43,6 +76,40 @@ public class FrsDeployWorker extends AbstractFrsWorker {
         this.files = files;
     }
 
+    @Override
+    protected void verifyConfiguration() throws IllegalArgumentException {
+        super.verifyConfiguration();
+
+        this.parallelUploads = getIntField("parallelUploads", 1);
+        this.maxParallelUploads = getIntField("maxParallelUploads", 0);
+        this.minParallelUploads = getIntField("minParallelUploads", 1);
+        if (maxParallelUploads > 0) {
+            if (minParallelUploads < 1 || minParallelUploads > maxParallelUploads) {
+                throw new IllegalArgumentException("Min Parallel Uploads must be between 1 and Max Parallel Uploads");
+            }
+            concurrencyLimit = new AdaptiveConcurrencyLimit(parallelUploads, minParallelUploads, maxParallelUploads,
+                    new MaestroPluginLog());
+        } else {
+            concurrencyLimit = null;
+        }
+
+        List<ReleaseTarget> additionalReleases = new ArrayList<ReleaseTarget>();
+        List<String> specs = getArrayField(String.class, "additionalReleases");
+        if (specs != null) {
+            for (String spec : specs) {
+                additionalReleases.add(ReleaseTarget.parse(spec, project, pkg));
+            }
+        }
+        this.additionalReleases = additionalReleases;
+    }
+
+    @Override
+    protected FrsSession createFrsSession(CollabNetSession session, String projectId) {
+        FrsSession frsSession = super.createFrsSession(session, projectId);
+        frsSession.setAdaptiveConcurrency(concurrencyLimit);
+        return frsSession;
+    }
+
     public void frsDeploy() {
         try {
             verifyConfiguration();
@@ -54,7 +121,7 @@ public class FrsDeployWorker extends AbstractFrsWorker {
 
         CollabNetSession session;
         try {
-            session = new CollabNetSession(teamForgeUrl, teamForgeUsername, teamForgePassword, new MaestroPluginLog());
+            session = createSession();
         } catch (RemoteException e) {
             String msg = "Failed to login to TeamForge: " + e.getLocalizedMessage();
             logger.error(msg, e);
@@ -68,47 +135,114 @@ public class FrsDeployWorker extends AbstractFrsWorker {
         } catch (RemoteException e) {
             logger.error("Exception retrieving TeamForge project: " + e.getLocalizedMessage(), e);
             setError("Failed to retrieve TeamForge project '" + project + "': " + e.getLocalizedMessage() + "\n");
+            logoff(session, e);
             return;
         }
         logger.debug("Found CollabNet project '" + projectId + "'");
         setField("projectId", projectId);
 
+        RemoteException failure = null;
         try {
-            FrsSession frsSession = session.createFrsSession(projectId);
+            FrsSession frsSession = createFrsSession(session, projectId);
             String packageId = preparePackage(frsSession);
             String releaseId = prepareRelease(frsSession, packageId);
 
-            List<String> fileIds = uploadArtifacts(files, releaseId, frsSession);
-            setField("fileIds", fileIds);
+            if (additionalReleases.isEmpty()) {
+                BatchUploadResult result = frsSession.uploadFiles(releaseId, files, overwrite, parallelUploads);
+                List<String> fileIds = result.getFileIds();
+                setField("fileIds", fileIds);
 
-            addCollabnetReleaseToContext(projectId, packageId, releaseId, fileIds);
+                if (result.hasFailures()) {
+                    String msg = result.getErrorSummary();
+                    logger.error(msg);
+                    setError(msg);
+                    return;
+                }
+
+                addCollabnetReleaseToContext(projectId, packageId, releaseId, fileIds, result.getSkippedNames());
+            } else {
+                deployToReleases(session, frsSession, projectId, packageId, releaseId);
+            }
         } catch (RemoteException e) {
             String msg = e.getLocalizedMessage();
             logger.error(msg, e);
             setError(msg + "\n");
-        } catch (MalformedURLException e) {
-            String msg = e.getLocalizedMessage();
-            logger.error(msg, e);
-            setError(msg + "\n");
+            failure = e;
         } catch (ResourceNotFoundException e) {
             String msg = e.getLocalizedMessage();
             logger.error(msg, e);
             setError(msg + "\n");
         } finally {
-            logoff(session);
+            logoff(session, failure);
         }
     }
 
-    private List<String> uploadArtifacts(List<File> files, String releaseId, FrsSession frsSession) throws MalformedURLException, RemoteException {
-        List<String> fileIds = new ArrayList<String>(files.size());
-        for (File file : files) {
-            String msg = "Uploading '" + file + "' to release '" + releaseId + "'";
-            logger.debug(msg);
-            writeOutput(msg + "\n");
-            String fileId = frsSession.uploadFile(releaseId, file, overwrite);
-            fileIds.add(fileId);
+    private void deployToReleases(CollabNetSession session, FrsSession frsSession, String projectId, String packageId,
+                                  String releaseId) throws RemoteException, ResourceNotFoundException {
+        List<ReleaseTarget> targets = new ArrayList<ReleaseTarget>();
+        List<String> projectIds = new ArrayList<String>();
+        List<String> packageIds = new ArrayList<String>();
+        List<String> releaseIds = new ArrayList<String>();
+        targets.add(new ReleaseTarget(project, pkg, release));
+        projectIds.add(projectId);
+        packageIds.add(packageId);
+        releaseIds.add(releaseId);
+
+        for (ReleaseTarget target : additionalReleases) {
+            String targetProjectId = projectId;
+            FrsSession targetSession = frsSession;
+            if (!target.getProject().equals(project)) {
+                targetProjectId = session.findProject(target.getProject());
+                targetSession = createFrsSession(session, targetProjectId);
+            }
+
+            String targetPackageId;
+            String targetReleaseId;
+            if (createRelease) {
+                Package packageTemplate = createPackageTemplate();
+                packageTemplate.setTitle(target.getPackageTitle());
+                targetPackageId = targetSession.findOrCreatePackage(packageTemplate);
+
+                Release releaseTemplate = createReleaseTemplate();
+                releaseTemplate.setTitle(target.getReleaseTitle());
+                targetReleaseId = targetSession.findOrCreateRelease(releaseTemplate, targetPackageId);
+            } else {
+                targetPackageId = targetSession.findPackage(target.getPackageTitle());
+                targetReleaseId = targetSession.findRelease(target.getReleaseTitle(), targetPackageId);
+            }
+            logger.debug("Found additional release '" + target + "': " + targetReleaseId);
+
+            int duplicate = releaseIds.indexOf(targetReleaseId);
+            if (duplicate >= 0) {
+                logger.warn("Ignoring additional release '" + target + "', as it is the same release as '" +
+                        targets.get(duplicate) + "'");
+                continue;
+            }
+
+            targets.add(target);
+            projectIds.add(targetProjectId);
+            packageIds.add(targetPackageId);
+            releaseIds.add(targetReleaseId);
         }
-        return fileIds;
-    }
 
+        Map<String, BatchUploadResult> results = frsSession.uploadFilesToReleases(releaseIds, files, overwrite,
+                parallelUploads);
+        setField("fileIds", results.get(releaseId).getFileIds());
+
+        StringBuilder errors = new StringBuilder();
+        for (int i = 0; i < targets.size(); i++) {
+            BatchUploadResult result = results.get(releaseIds.get(i));
+            if (result.hasFailures()) {
+                errors.append("Release '").append(targets.get(i)).append("': ").append(result.getErrorSummary());
+            } else {
+                addCollabnetReleaseToContext(targets.get(i), projectIds.get(i), packageIds.get(i), releaseIds.get(i),
+                        result.getFileIds(), result.getSkippedNames());
+            }
+        }
+        if (errors.length() > 0) {
+            String msg = errors.toString();
+            logger.error(msg);
+            setError(msg);
+        }
+    }
 }
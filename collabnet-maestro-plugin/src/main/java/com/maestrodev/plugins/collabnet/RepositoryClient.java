@@ -0,0 +1,414 @@
+package com.maestrodev.plugins.collabnet;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.commons.httpclient.DefaultHttpMethodRetryHandler;
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethodBase;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.HeadMethod;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.params.HttpMethodParams;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PushbackInputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+
+/**
+ * Fetches files from a Maven repository over HTTP with credentials of its own. Unlike a
+ * {@linkplain java.net.Authenticator}, which is shared by the whole JVM, the credentials are only used by this client
+ * and only sent to the repository's host, so tasks copying from different repositories can run at the same time in
+ * one agent without seeing each other's credentials.
+ *
+ * Files are exposed as URLs whose connections are made by the client, so that they can be passed to code that reads
+ * from an URL, such as {@linkplain com.maestrodev.plugins.collabnet.frs.FrsSession}. URLs that are not HTTP, such as
+ * those of a <code>file:</code> repository, are returned as they are. Connections are pooled and shared by all
+ * clients; the size of the pool and the timeouts can be set with the
+ * <code>collabnet.repository.maxConnections</code>, <code>collabnet.repository.maxConnectionsPerHost</code>,
+ * <code>collabnet.repository.connectionTimeout</code> and <code>collabnet.repository.socketTimeout</code> system
+ * properties, with the timeouts in milliseconds.
+ */
+public class RepositoryClient {
+    private static final MultiThreadedHttpConnectionManager CONNECTION_MANAGER =
+            new MultiThreadedHttpConnectionManager();
+
+    static {
+        HttpConnectionManagerParams params = CONNECTION_MANAGER.getParams();
+        params.setMaxTotalConnections(Integer.getInteger("collabnet.repository.maxConnections", 32));
+        params.setDefaultMaxConnectionsPerHost(Integer.getInteger("collabnet.repository.maxConnectionsPerHost", 8));
+        params.setConnectionTimeout(Integer.getInteger("collabnet.repository.connectionTimeout", 30 * 1000));
+        params.setSoTimeout(Integer.getInteger("collabnet.repository.socketTimeout", 10 * 60 * 1000));
+        params.setStaleCheckingEnabled(true);
+    }
+
+    private final HttpClient httpClient = new HttpClient(CONNECTION_MANAGER);
+
+    private final URLStreamHandler handler = new RepositoryStreamHandler();
+
+    /**
+     * Create a client for a repository.
+     *
+     * @param repositoryUrl the URL of the repository
+     * @param username      the username to authenticate to the repository with, or <code>null</code> to connect
+     *                      anonymously
+     * @param password      the password to authenticate to the repository with
+     * @throws MalformedURLException if the repository URL is not valid
+     */
+    public RepositoryClient(String repositoryUrl, String username, String password) throws MalformedURLException {
+        // requests are only ever GET or HEAD, so they can be safely sent again if a pooled connection was closed by the
+        // repository while the request was being sent
+        httpClient.getParams().setParameter(HttpMethodParams.RETRY_HANDLER, new DefaultHttpMethodRetryHandler(3, true));
+        if (StringUtils.isNotBlank(username)) {
+            URL url = new URL(repositoryUrl);
+            int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+            httpClient.getState().setCredentials(new AuthScope(url.getHost(), port),
+                    new UsernamePasswordCredentials(username, password != null ? password : ""));
+            // only sent to a host that matches the scope of the credentials
+            httpClient.getParams().setAuthenticationPreemptive(true);
+        }
+    }
+
+    /**
+     * Obtain an URL for a file in the repository, whose connections are made by this client.
+     *
+     * @param url the URL of the file
+     * @return the URL to read the file from
+     * @throws MalformedURLException if the URL is not valid
+     */
+    public URL getUrl(String url) throws MalformedURLException {
+        URL parsed = new URL(url);
+        if (!isHttp(parsed)) {
+            return parsed;
+        }
+        return new URL(null, url, handler);
+    }
+
+    /**
+     * Fetch a small file, such as repository metadata, asking the repository to only send it if it has changed since
+     * an earlier copy was fetched.
+     *
+     * @param url    the URL of the file
+     * @param cached the earlier copy of the file, or <code>null</code> if there is none
+     * @return the file, which is <code>cached</code> itself if it has not changed
+     * @throws FileNotFoundException if the file does not exist
+     * @throws IOException           if the file could not be fetched
+     */
+    public CachedFile fetch(String url, CachedFile cached) throws IOException {
+        URL parsed = new URL(url);
+        if (!isHttp(parsed)) {
+            // reading a local file costs no more than checking whether it has changed
+            InputStream is = parsed.openStream();
+            try {
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = is.read(buffer)) != -1) {
+                    content.write(buffer, 0, n);
+                }
+                return new CachedFile(content.toByteArray(), null, null);
+            } finally {
+                is.close();
+            }
+        }
+
+        GetMethod get = new GetMethod(url);
+        try {
+            if (cached != null) {
+                if (cached.etag != null) {
+                    get.setRequestHeader("If-None-Match", cached.etag);
+                }
+                if (cached.lastModified != null) {
+                    get.setRequestHeader("If-Modified-Since", cached.lastModified);
+                }
+            }
+            int status = httpClient.executeMethod(get);
+            if (status == HttpStatus.SC_NOT_MODIFIED && cached != null) {
+                return cached;
+            }
+            checkStatus(get, status);
+            return new CachedFile(get.getResponseBody(), getHeader(get, "ETag"), getHeader(get, "Last-Modified"));
+        } finally {
+            get.releaseConnection();
+        }
+    }
+
+    /**
+     * Prepare a request for a file that can be abandoned from another thread while it is waiting for the repository,
+     * for example because another repository answered first.
+     *
+     * @param url the URL of the file
+     * @return the request, which is not yet sent
+     */
+    public Transfer newTransfer(String url) {
+        return new Transfer(url);
+    }
+
+    private static boolean isHttp(URL url) {
+        return "http".equals(url.getProtocol()) || "https".equals(url.getProtocol());
+    }
+
+    private static String getHeader(HttpMethodBase method, String name) {
+        Header header = method.getResponseHeader(name);
+        return header != null ? header.getValue() : null;
+    }
+
+    private static void checkStatus(HttpMethodBase method, int status) throws IOException {
+        if (status == HttpStatus.SC_NOT_FOUND) {
+            throw new FileNotFoundException(method.getURI().toString());
+        }
+        if (status < 200 || status >= 300) {
+            throw new IOException("Unable to fetch '" + method.getURI() + "': " + method.getStatusLine());
+        }
+    }
+
+    /**
+     * Make a request, checking that it succeeded. The connection is released if it did not.
+     */
+    private <T extends HttpMethodBase> T execute(T method) throws IOException {
+        boolean succeeded = false;
+        try {
+            checkStatus(method, httpClient.executeMethod(method));
+            succeeded = true;
+            return method;
+        } finally {
+            if (!succeeded) {
+                method.releaseConnection();
+            }
+        }
+    }
+
+    private class RepositoryStreamHandler extends URLStreamHandler {
+        @Override
+        protected URLConnection openConnection(URL url) {
+            return new RepositoryConnection(url);
+        }
+    }
+
+    /**
+     * A connection that fetches the file with a GET request when it is read, or a HEAD request if only its headers
+     * are asked for.
+     */
+    private class RepositoryConnection extends URLConnection {
+        private HttpMethodBase method;
+
+        private RepositoryConnection(URL url) {
+            super(url);
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if (!connected) {
+                method = execute(new GetMethod(url.toString()));
+                connected = true;
+            }
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            connect();
+            final HttpMethodBase get = method;
+            InputStream body = get.getResponseBodyAsStream();
+            return new FilterInputStream(body != null ? body : new ByteArrayInputStream(new byte[0])) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        get.releaseConnection();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            if (method == null) {
+                try {
+                    method = execute(new HeadMethod(url.toString()));
+                } catch (IOException e) {
+                    return null;
+                } finally {
+                    if (method != null) {
+                        method.releaseConnection();
+                    }
+                }
+            }
+            return getHeader(method, name);
+        }
+    }
+
+    /**
+     * A single request for a file, made with either {@linkplain #check()} or {@linkplain #open()}.
+     */
+    public class Transfer {
+        private final String url;
+
+        private volatile HttpMethodBase method;
+
+        private volatile boolean aborted;
+
+        private Transfer(String url) {
+            this.url = url;
+        }
+
+        /**
+         * Check that the file exists with a HEAD request.
+         *
+         * @throws FileNotFoundException if the file does not exist
+         * @throws IOException           if the repository could not be asked, or the request was aborted
+         */
+        public void check() throws IOException {
+            try {
+                execute(start(new HeadMethod(url)));
+            } finally {
+                method.releaseConnection();
+            }
+        }
+
+        /**
+         * Start fetching the file, returning once the first of its content has arrived. Closing the stream before the
+         * end of the file drops the connection, rather than reading the rest of the file to reuse it.
+         *
+         * @return the content of the file
+         * @throws FileNotFoundException if the file does not exist
+         * @throws IOException           if the file could not be fetched, or the request was aborted
+         */
+        public InputStream open() throws IOException {
+            final HttpMethodBase get = execute(start(new GetMethod(url)));
+            boolean succeeded = false;
+            try {
+                InputStream body = get.getResponseBodyAsStream();
+                PushbackInputStream content = new PushbackInputStream(body != null ? body
+                        : new ByteArrayInputStream(new byte[0]));
+                int first = content.read();
+                final boolean empty = first == -1;
+                if (!empty) {
+                    content.unread(first);
+                }
+                final long length = get.getResponseContentLength();
+                succeeded = true;
+                return new FilterInputStream(content) {
+                    private boolean eof = empty;
+
+                    private long count;
+
+                    @Override
+                    public int read() throws IOException {
+                        int b = super.read();
+                        update(b == -1 ? -1 : 1);
+                        return b;
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        int n = super.read(b, off, len);
+                        update(n);
+                        return n;
+                    }
+
+                    private void update(int n) {
+                        if (n == -1) {
+                            eof = true;
+                        } else {
+                            count += n;
+                            eof |= length >= 0 && count >= length;
+                        }
+                    }
+
+                    @Override
+                    public void close() {
+                        if (!eof) {
+                            get.abort();
+                        }
+                        get.releaseConnection();
+                    }
+                };
+            } finally {
+                if (!succeeded) {
+                    get.abort();
+                    get.releaseConnection();
+                }
+            }
+        }
+
+        /**
+         * Abandon the request, making a call to {@linkplain #check()} or {@linkplain #open()} that is waiting for the
+         * repository fail.
+         */
+        public void abort() {
+            aborted = true;
+            HttpMethodBase method = this.method;
+            if (method != null) {
+                method.abort();
+            }
+        }
+
+        private HttpMethodBase start(HttpMethodBase method) throws IOException {
+            this.method = method;
+            if (aborted) {
+                method.releaseConnection();
+                throw new InterruptedIOException("Request for '" + url + "' was aborted");
+            }
+            return method;
+        }
+    }
+
+    /**
+     * The content of a file fetched with {@linkplain #fetch(String, CachedFile)}, and the validators the repository
+     * sent with it.
+     */
+    public static class CachedFile {
+        private final byte[] content;
+
+        private final String etag;
+
+        private final String lastModified;
+
+        private CachedFile(byte[] content, String etag, String lastModified) {
+            this.content = content;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        public byte[] getContent() {
+            return content;
+        }
+
+        /**
+         * @return whether the repository sent an <code>ETag</code> or <code>Last-Modified</code> header that can be
+         *         used to ask for the file again only if it has changed
+         */
+        public boolean isRevalidatable() {
+            return etag != null || lastModified != null;
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package com.maestrodev.plugins.collabnet;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.maestrodev.plugins.collabnet.log.Log;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An ordered list of repositories that hold the same artifacts, such as a local repository manager, a regional
+ * mirror and a central proxy, that files are fetched from so that one slow repository does not hold up a copy.
+ *
+ * Before fetching an artifact, all the repositories are asked for it at once with HEAD requests, and those that answer
+ * first are used first. A file is then requested from the first repository, and if none of it has arrived within the
+ * hedge delay, it is also requested from the next one, and so on. The content comes from whichever repository starts
+ * sending it first, and the other requests are abandoned. A repository that fails is skipped at once. With a hedge
+ * delay of <code>0</code>, the repositories are not probed and are tried one after the other in the order given.
+ *
+ * Each repository has its own {@linkplain RepositoryClient}, all with the same credentials, so the credentials are
+ * sent to every repository in the list but to no other host.
+ */
+public class RepositoryMirrors {
+    private final List<String> repositoryUrls;
+
+    private final List<RepositoryClient> clients;
+
+    private final long hedgeDelay;
+
+    private final Log log;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    /**
+     * The indexes of the repositories, in the order to try them.
+     */
+    private volatile List<Integer> order;
+
+    /**
+     * Create a list of repositories.
+     *
+     * @param repositoryUrls the URLs of the repositories, in the order to try them if none of them are faster
+     * @param username       the username to authenticate to the repositories with, or <code>null</code> to connect
+     *                       anonymously
+     * @param password       the password to authenticate to the repositories with
+     * @param hedgeDelay     the time in milliseconds to wait for a repository before also asking the next one, or
+     *                       <code>0</code> to only ask the next one if the repository fails
+     * @param log            the log to report slow and failed repositories to
+     * @throws MalformedURLException if a repository URL is not valid
+     */
+    public RepositoryMirrors(List<String> repositoryUrls, String username, String password, long hedgeDelay, Log log)
+            throws MalformedURLException {
+        this.repositoryUrls = new ArrayList<String>(repositoryUrls);
+        this.hedgeDelay = hedgeDelay;
+        this.log = log;
+
+        List<RepositoryClient> clients = new ArrayList<RepositoryClient>();
+        List<Integer> order = new ArrayList<Integer>();
+        for (String url : repositoryUrls) {
+            order.add(clients.size());
+            clients.add(new RepositoryClient(url, username, password));
+        }
+        this.clients = clients;
+        this.order = order;
+    }
+
+    /**
+     * Determine the version of the file to fetch for an artifact, as {@linkplain ArtifactVersionResolver} does, using
+     * the metadata of the first repository that can provide it.
+     *
+     * @param groupId    the group ID of the artifact
+     * @param artifactId the artifact ID of the artifact
+     * @param version    the version to resolve
+     * @param username   the user the repositories are accessed as, or <code>null</code> if they are anonymous
+     * @return the version of the file in the repository
+     * @throws ResourceNotFoundException if no repository has metadata to resolve <code>LATEST</code> or
+     *                                   <code>RELEASE</code> from
+     * @throws IOException               if the metadata could not be fetched from any repository
+     */
+    public String resolveVersion(String groupId, String artifactId, String version, String username)
+            throws ResourceNotFoundException, IOException {
+        IOException ioFailure = null;
+        ResourceNotFoundException notFound = null;
+        for (int i = 0; i < clients.size(); i++) {
+            try {
+                return new ArtifactVersionResolver(clients.get(i), repositoryUrls.get(i), username).resolve(groupId,
+                        artifactId, version);
+            } catch (IOException e) {
+                log.debug("Unable to resolve version '" + version + "' from '" + repositoryUrls.get(i) + "': "
+                        + e.getLocalizedMessage());
+                ioFailure = e;
+            } catch (ResourceNotFoundException e) {
+                log.debug(e.getLocalizedMessage());
+                notFound = e;
+            }
+        }
+        if (notFound != null) {
+            throw notFound;
+        }
+        throw ioFailure;
+    }
+
+    /**
+     * Ask all the repositories for a file at once, and try them in the order they answer for later requests. This
+     * waits for the first repository that has the file, for at most the hedge delay. Repositories that have not
+     * answered by then follow in the order given, and those that do not have the file come last.
+     *
+     * @param path the path of the file within the repositories
+     */
+    public void probe(String path) {
+        if (clients.size() == 1 || hedgeDelay <= 0) {
+            return;
+        }
+
+        CompletionService<Void> probes = new ExecutorCompletionService<Void>(executor);
+        Map<Future<Void>, RepositoryClient.Transfer> transfers =
+                new IdentityHashMap<Future<Void>, RepositoryClient.Transfer>();
+        Map<Future<Void>, Integer> indexes = new IdentityHashMap<Future<Void>, Integer>();
+        for (int i = 0; i < clients.size(); i++) {
+            final RepositoryClient.Transfer transfer = clients.get(i).newTransfer(repositoryUrls.get(i) + "/" + path);
+            Future<Void> probe = probes.submit(new Callable<Void>() {
+                public Void call() throws IOException {
+                    transfer.check();
+                    return null;
+                }
+            });
+            transfers.put(probe, transfer);
+            indexes.put(probe, i);
+        }
+
+        List<Integer> answered = new ArrayList<Integer>();
+        List<Integer> failed = new ArrayList<Integer>();
+        long deadline = System.currentTimeMillis() + hedgeDelay;
+        try {
+            for (int pending = clients.size(); pending > 0; pending--) {
+                // once one repository has the file, only take the answers that have already arrived
+                long wait = answered.isEmpty() ? deadline - System.currentTimeMillis() : 0;
+                Future<Void> probe = probes.poll(Math.max(wait, 0), TimeUnit.MILLISECONDS);
+                if (probe == null) {
+                    break;
+                }
+                transfers.remove(probe);
+                try {
+                    probe.get();
+                    answered.add(indexes.get(probe));
+                } catch (ExecutionException e) {
+                    log.debug("Repository '" + repositoryUrls.get(indexes.get(probe)) + "' does not have '" + path
+                            + "': " + e.getCause().getLocalizedMessage());
+                    failed.add(indexes.get(probe));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (RepositoryClient.Transfer transfer : transfers.values()) {
+            transfer.abort();
+        }
+
+        List<Integer> order = new ArrayList<Integer>(answered);
+        for (int i = 0; i < clients.size(); i++) {
+            if (!order.contains(i) && !failed.contains(i)) {
+                order.add(i);
+            }
+        }
+        order.addAll(failed);
+        if (!answered.isEmpty() && answered.get(0) != 0) {
+            log.debug("Repository '" + repositoryUrls.get(answered.get(0)) + "' answered first, using it first");
+        }
+        this.order = Collections.unmodifiableList(order);
+    }
+
+    /**
+     * Obtain an URL for a file in the repositories, whose content is fetched from them as described above.
+     *
+     * @param path the path of the file within the repositories
+     * @return the URL to read the file from
+     * @throws MalformedURLException if the URL is not valid
+     */
+    public URL getUrl(final String path) throws MalformedURLException {
+        String primaryUrl = repositoryUrls.get(order.get(0)) + "/" + path;
+        if (clients.size() == 1) {
+            return clients.get(0).getUrl(primaryUrl);
+        }
+        return new URL(null, primaryUrl, new URLStreamHandler() {
+            @Override
+            protected URLConnection openConnection(URL url) {
+                return new URLConnection(url) {
+                    @Override
+                    public void connect() {
+                        connected = true;
+                    }
+
+                    @Override
+                    public InputStream getInputStream() throws IOException {
+                        return open(path);
+                    }
+                };
+            }
+        });
+    }
+
+    /**
+     * Stop any requests still running. Streams already opened can still be read.
+     */
+    public void close() {
+        executor.shutdown();
+    }
+
+    /**
+     * Fetch a file from the first repository to start sending it, starting with the first in the current order and
+     * hedging with the next whenever the hedge delay passes without any content arriving.
+     */
+    private InputStream open(String path) throws IOException {
+        List<Integer> order = this.order;
+        CompletionService<InputStream> attempts = new ExecutorCompletionService<InputStream>(executor);
+        Map<Future<InputStream>, RepositoryClient.Transfer> running =
+                new LinkedHashMap<Future<InputStream>, RepositoryClient.Transfer>();
+        Map<Future<InputStream>, String> urls = new IdentityHashMap<Future<InputStream>, String>();
+
+        int next = 0;
+        IOException failure = null;
+        boolean notFound = true;
+        try {
+            while (true) {
+                if (running.isEmpty() && next < order.size()) {
+                    next = start(order, next, path, attempts, running, urls);
+                }
+                if (running.isEmpty()) {
+                    break;
+                }
+
+                Future<InputStream> attempt;
+                if (next < order.size() && hedgeDelay > 0) {
+                    attempt = attempts.poll(hedgeDelay, TimeUnit.MILLISECONDS);
+                    if (attempt == null) {
+                        log.info("No response from '" + urls.get(running.keySet().iterator().next()) + "' after "
+                                + hedgeDelay + " ms, also requesting '" + repositoryUrls.get(order.get(next)) + "'");
+                        next = start(order, next, path, attempts, running, urls);
+                        continue;
+                    }
+                } else {
+                    attempt = attempts.take();
+                }
+
+                running.remove(attempt);
+                try {
+                    InputStream content = attempt.get();
+                    if (!running.isEmpty()) {
+                        log.debug("Fetching '" + urls.get(attempt) + "'");
+                    }
+                    return content;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    notFound &= cause instanceof FileNotFoundException;
+                    failure = cause instanceof IOException ? (IOException) cause
+                            : new IOException("Unable to fetch '" + urls.get(attempt) + "': " + cause);
+                    log.info("Unable to fetch '" + urls.get(attempt) + "': " + cause.getLocalizedMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while fetching '" + path + "'");
+        } finally {
+            for (Map.Entry<Future<InputStream>, RepositoryClient.Transfer> entry : running.entrySet()) {
+                discard(entry.getKey(), entry.getValue());
+            }
+        }
+
+        if (notFound) {
+            throw new FileNotFoundException("'" + path + "' was not found in any of " + repositoryUrls);
+        }
+        throw failure;
+    }
+
+    private int start(List<Integer> order, int next, String path, CompletionService<InputStream> attempts,
+                      Map<Future<InputStream>, RepositoryClient.Transfer> running,
+                      Map<Future<InputStream>, String> urls) {
+        int index = order.get(next);
+        String url = repositoryUrls.get(index) + "/" + path;
+        final RepositoryClient.Transfer transfer = clients.get(index).newTransfer(url);
+        Future<InputStream> attempt = attempts.submit(new Callable<InputStream>() {
+            public InputStream call() throws IOException {
+                return transfer.open();
+            }
+        });
+        running.put(attempt, transfer);
+        urls.put(attempt, url);
+        return next + 1;
+    }
+
+    /**
+     * Abandon a request that lost the race, closing its content if it arrives anyway.
+     */
+    private void discard(final Future<InputStream> attempt, RepositoryClient.Transfer transfer) {
+        transfer.abort();
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    attempt.get().close();
+                } catch (Exception e) {
+                    // the request failed or was aborted, so there is nothing to close
+                }
+            }
+        });
+    }
+}
@@ -15,34 +15,122 @@ package com.maestrodev.plugins.collabnet;
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
+import com.maestrodev.plugins.collabnet.frs.AdaptiveConcurrencyLimit;
+import com.maestrodev.plugins.collabnet.frs.BatchUploadResult;
 import com.maestrodev.plugins.collabnet.frs.FrsSession;
 import com.maestrodev.plugins.collabnet.frs.Package;
 import com.maestrodev.plugins.collabnet.frs.Release;
+import com.maestrodev.plugins.collabnet.frs.ReleaseTarget;
+import com.maestrodev.plugins.collabnet.frs.UploadResult;
 import com.maestrodev.plugins.collabnet.log.Log;
+import com.maestrodev.plugins.collabnet.metrics.MetricsCollector;
+import com.maestrodev.plugins.collabnet.metrics.UploadProgress;
+import com.maestrodev.plugins.collabnet.metrics.UploadProgressListener;
+import com.maestrodev.plugins.collabnet.retry.CircuitBreaker;
+import com.maestrodev.plugins.collabnet.retry.ExponentialBackoffRetryPolicy;
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.artifact.ArtifactUtils;
 import org.apache.maven.artifact.manager.WagonManager;
+import org.apache.maven.model.Plugin;
+import org.apache.maven.model.PluginExecution;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.project.MavenProject;
 import org.apache.maven.wagon.authentication.AuthenticationInfo;
 
 import java.io.File;
-import java.net.MalformedURLException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Deploy the project's artifacts to the CollabNet File Releases section.
  *
+ * The modules of a reactor build share one TeamForge session, including when they are built in parallel, and
+ * concurrent lookups of the same package or release are made once. The session is logged off by the last module of
+ * the reactor that runs the goal, once any other module still deploying has finished.
+ *
  * @goal deploy-to-releases
  * @phase deploy
+ * @threadSafe
  */
 @SuppressWarnings("UnusedDeclaration")
 public class FrsDeployMojo
         extends AbstractMojo {
 
+    private static final String PLUGIN_KEY = "com.maestrodev:collabnet-maven-plugin";
+
+    private static final String GOAL = "deploy-to-releases";
+
+    /**
+     * The state of each reactor build, keyed by the identity of its list of projects. Maven resolves
+     * <code>${reactorProjects}</code> to the sorted project list of the build's session, which is the same instance for
+     * every module, including when modules are built in parallel with a copy of the session for each. A later build in
+     * the same JVM gets a new list, so it never sees the state of an earlier build, even one that stopped part way.
+     * The list is only referenced weakly, and the state of a build is removed once its list has been collected, so a
+     * long-lived JVM running many builds does not accumulate them.
+     */
+    private static final Map<ReactorKey, ReactorState> REACTORS = new HashMap<ReactorKey, ReactorState>();
+
+    /**
+     * The keys of reactor builds whose list of projects has been collected.
+     */
+    private static final ReferenceQueue<List<MavenProject>> COLLECTED_REACTORS =
+            new ReferenceQueue<List<MavenProject>>();
+
+    static {
+        // log off the sessions of builds that stopped before the last module had deployed
+        Runtime.getRuntime().addShutdownHook(new Thread("collabnet-deploy-shutdown") {
+            @Override
+            public void run() {
+                List<ReactorState> reactors;
+                synchronized (REACTORS) {
+                    reactors = new ArrayList<ReactorState>(REACTORS.values());
+                    REACTORS.clear();
+                }
+                for (ReactorState reactor : reactors) {
+                    abandon(reactor);
+                }
+            }
+        });
+    }
+
+    /**
+     * Log off the sessions of a build that stopped before the last module had deployed, warning of any deploys it
+     * deferred that will not be made.
+     */
+    private static void abandon(ReactorState reactor) {
+        if (reactor.ended) {
+            return;
+        }
+        if (!reactor.deferred.isEmpty()) {
+            List<String> modules = new ArrayList<String>();
+            for (FrsDeployMojo deploy : reactor.deferred) {
+                modules.add(deploy.mavenProject.getId());
+            }
+            reactor.log.warn("The build stopped before " + reactor.endOfBuild.getId() +
+                    " was deployed, so the artifacts of " + modules.size() +
+                    " modules deferred until then were not deployed to TeamForge: " + modules);
+        }
+        for (SharedSession shared : reactor.sessions) {
+            if (shared.session != null) {
+                try {
+                    shared.session.logoff();
+                } catch (RemoteException e) {
+                    // ignore, the session will expire
+                }
+            }
+        }
+    }
+
     /**
      * The package (product) to deploy the files to. If it can not be found, it will be created, unless
      * <code>{@linkplain #createRelease}</code> is <code>false</code>.
@@ -143,6 +231,147 @@ public class FrsDeployMojo
      */
     private Boolean overwrite;
 
+    /**
+     * The maximum number of files to upload to the release at the same time. When
+     * <code>{@linkplain #maxParallelUploads}</code> is set, this is the number to start with.
+     *
+     * @parameter default-value="1"
+     */
+    private int parallelUploads;
+
+    /**
+     * If greater than zero, adjust the number of files uploaded at the same time to the load TeamForge is under,
+     * between <code>{@linkplain #minParallelUploads}</code> and this maximum. The number is raised while uploads go
+     * well, and lowered when uploads fail or slow down.
+     *
+     * @parameter expression="${maxParallelUploads}" default-value="0"
+     */
+    private int maxParallelUploads;
+
+    /**
+     * The smallest number of files to upload at the same time, when adjusting it to the load on TeamForge.
+     *
+     * @parameter expression="${minParallelUploads}" default-value="1"
+     */
+    private int minParallelUploads;
+
+    /**
+     * Whether to remember the IDs of the package and release in <code>{@linkplain #idCacheFile}</code>, so that later
+     * builds can check them directly instead of listing all of the packages and releases in the project.
+     *
+     * @parameter default-value="false"
+     */
+    private boolean useIdCache;
+
+    /**
+     * The file to remember package and release IDs in, when <code>{@linkplain #useIdCache}</code> is enabled.
+     *
+     * @parameter default-value="${user.home}/.m2/collabnet-ids.properties"
+     */
+    private File idCacheFile;
+
+    /**
+     * Whether to skip uploading files that are identical to those already in the release, when overwriting. Files
+     * are compared using the digest recorded when they were uploaded, so this requires
+     * <code>{@linkplain #useIdCache}</code> to be enabled.
+     *
+     * @parameter default-value="false"
+     */
+    private boolean skipUnchanged;
+
+    /**
+     * If greater than zero, stream each file to TeamForge in chunks of this many bytes instead of sending it as a
+     * single attachment. This keeps memory use bounded when uploading files that are large in comparison to the heap.
+     *
+     * @parameter default-value="0"
+     */
+    private int uploadChunkSize;
+
+    /**
+     * If greater than zero, the maximum rate in bytes per second at which to upload, shared by the files uploaded at
+     * the same time. A limit for every upload in the build can also be set with the
+     * <code>collabnet.upload.bandwidth</code> system property, and both apply.
+     *
+     * @parameter expression="${uploadBandwidth}" default-value="0"
+     */
+    private int uploadBandwidth;
+
+    /**
+     * Further releases to add the same files to, each of the form <code>release</code>, <code>package/release</code>
+     * or <code>project/package/release</code>. The package and project default to those of the main release. Each
+     * file is only uploaded once, and then added to every release. The releases are created as for the main release
+     * if <code>{@linkplain #createRelease}</code> is <code>true</code>.
+     *
+     * @parameter
+     */
+    private List<String> additionalReleases;
+
+    /**
+     * The number of times to retry a call to TeamForge that failed for a reason likely to be temporary, such as a
+     * timeout or a <code>503</code> response. Only calls that can safely be repeated are retried - lists, lookups and
+     * file uploads. Set to <code>0</code> to disable retries.
+     *
+     * @parameter default-value="3"
+     */
+    private int retries;
+
+    /**
+     * The time in milliseconds to wait before the first retry. The delay doubles for each further retry of the same
+     * call, up to <code>{@linkplain #retryMaxDelay}</code>, and a random delay of up to the same amount is added.
+     *
+     * @parameter default-value="1000"
+     */
+    private long retryDelay;
+
+    /**
+     * The maximum time in milliseconds to wait before a retry, excluding the random delay.
+     *
+     * @parameter default-value="30000"
+     */
+    private long retryMaxDelay;
+
+    /**
+     * The maximum number of retries to make over the whole deployment.
+     *
+     * @parameter default-value="20"
+     */
+    private int retryBudget;
+
+    /**
+     * The number of consecutive temporary failures after which TeamForge is considered unavailable, and further calls
+     * fail immediately. Set to <code>0</code> to disable.
+     *
+     * @parameter default-value="5"
+     */
+    private int circuitBreakerThreshold;
+
+    /**
+     * The time in milliseconds to fail calls immediately for once TeamForge is considered unavailable, before trying
+     * it again.
+     *
+     * @parameter default-value="60000"
+     */
+    private long circuitBreakerOpenTime;
+
+    /**
+     * The interval in milliseconds at which to log the progress, rate and estimated time remaining of each file that
+     * takes longer than this to upload. Set to <code>0</code> to disable.
+     *
+     * @parameter default-value="10000"
+     */
+    private long progressInterval;
+
+    /**
+     * Whether to deploy the artifacts of every module together at the end of the reactor build, instead of deploying
+     * each module's artifacts as it is built. The last module of the reactor that runs the goal waits for any other
+     * module still running it, then looks up each project, package and release once, and uploads all of the artifacts
+     * in a single batch using its own TeamForge connection settings. If the build stops before that module runs, for
+     * example because an earlier module failed, nothing is deployed and a warning lists the modules affected.
+     *
+     * @parameter expression="${deployAtEnd}" default-value="false"
+     */
+    private boolean deployAtEnd;
+
     // ----------------
     // Maven components
     // ----------------
@@ -166,41 +395,331 @@ public class FrsDeployMojo
      */
     private List<Artifact> projectAttachedArtifacts;
 
+    /**
+     * @parameter expression="${project}"
+     * @readonly
+     * @required
+     */
+    private MavenProject mavenProject;
+
+    /**
+     * @parameter expression="${reactorProjects}"
+     * @readonly
+     * @required
+     */
+    private List<MavenProject> reactorProjects;
+
     public void execute()
             throws MojoExecutionException, MojoFailureException {
 
-        verifyConfiguration();
-
-        CollabNetSession session;
+        ReactorState reactor = startModule();
+        // a deferred deploy is kept with the state of the reactor, so it must not keep the reactor from being collected
+        reactorProjects = null;
+        boolean endOfBuild = reactor.endOfBuild == mavenProject;
+        boolean deferredDeployed = false;
         try {
-            session = new CollabNetSession(teamForgeUrl, teamForgeUsername, teamForgePassword, new PluginLog());
-        } catch (RemoteException e) {
-            throw new MojoExecutionException("Failed to login to TeamForge: " + e.getLocalizedMessage(), e);
+            try {
+                verifyConfiguration();
+
+                if (deployAtEnd) {
+                    synchronized (REACTORS) {
+                        reactor.deferred.add(this);
+                    }
+                    if (!endOfBuild) {
+                        getLog().info("Deferring deploy of " + mavenProject.getId() + " to TeamForge until " +
+                                reactor.endOfBuild.getId() + " has been built");
+                    }
+                } else {
+                    deploy(reactor, Collections.singletonList(this));
+                }
+            } finally {
+                moduleFinished(reactor);
+            }
+
+            if (endOfBuild) {
+                List<FrsDeployMojo> deferred = awaitOtherModules(reactor);
+                if (!deferred.isEmpty()) {
+                    getLog().info("Deploying the artifacts of " + deferred.size() + " modules to TeamForge");
+                    deploy(reactor, deferred);
+                }
+                deferredDeployed = true;
+            }
+        } finally {
+            if (endOfBuild) {
+                endBuild(reactor, deferredDeployed);
+            }
         }
+    }
 
-        List<Artifact> artifacts = new ArrayList<Artifact>();
-        artifacts.add(projectArtifact);
-        artifacts.addAll(projectAttachedArtifacts);
+    private void deploy(ReactorState reactor, List<FrsDeployMojo> deploys)
+            throws MojoExecutionException, MojoFailureException {
+        SharedSession shared = getSharedSession(reactor);
+        CollabNetSession session = login(shared);
 
         try {
-            String projectId = findProjectId(session);
-
-            FrsSession frsSession = session.createFrsSession(projectId);
-            String packageId;
-            String releaseId;
-            if (createRelease) {
-                packageId = frsSession.findOrCreatePackage(createPackageTemplate());
-                releaseId = frsSession.findOrCreateRelease(createReleaseTemplate(), packageId);
-            } else {
-                packageId = findPackage(frsSession);
-                releaseId = findRelease(frsSession, packageId);
+            // group the artifacts going to the same releases, so that each group is uploaded as one batch
+            Map<String, UploadBatch> batches = new LinkedHashMap<String, UploadBatch>();
+            for (FrsDeployMojo deploy : deploys) {
+                FrsSession frsSession = getFrsSession(session, shared.frsSessions, deploy.project);
+                List<String> releaseIds = deploy.findReleases(session, shared.frsSessions, frsSession);
+                String key = releaseIds + (deploy.overwrite ? " overwrite" : "");
+                UploadBatch batch = batches.get(key);
+                if (batch == null) {
+                    batch = new UploadBatch(frsSession, releaseIds, deploy.overwrite);
+                    batches.put(key, batch);
+                }
+                batch.artifacts.add(deploy.projectArtifact);
+                batch.artifacts.addAll(deploy.projectAttachedArtifacts);
             }
 
-            uploadArtifacts(artifacts, releaseId, frsSession);
+            for (UploadBatch batch : batches.values()) {
+                uploadArtifacts(batch.artifacts, batch.releaseIds, batch.frsSession, batch.overwrite);
+            }
         } catch (RemoteException e) {
             throw new MojoExecutionException(e.getLocalizedMessage(), e);
-        } finally {
-            logoff(session);
+        }
+    }
+
+    /**
+     * Find the state of this reactor build, creating it if this is the first module to deploy, and record that this
+     * module has started. A module built in parallel that only starts once the end of the build has been reached
+     * deploys on its own.
+     */
+    private ReactorState startModule() {
+        // a build that stopped part way in a JVM that runs further builds is dealt with once it has been collected
+        List<ReactorState> abandoned = new ArrayList<ReactorState>();
+        synchronized (REACTORS) {
+            Reference<? extends List<MavenProject>> collected;
+            while ((collected = COLLECTED_REACTORS.poll()) != null) {
+                ReactorState reactor = REACTORS.remove(collected);
+                if (reactor != null) {
+                    abandoned.add(reactor);
+                }
+            }
+        }
+        for (ReactorState reactor : abandoned) {
+            abandon(reactor);
+        }
+
+        synchronized (REACTORS) {
+            ReactorState reactor = REACTORS.get(new ReactorKey(reactorProjects, null));
+            if (reactor == null) {
+                reactor = new ReactorState(findEndOfBuild(), getLog());
+                // the entry is kept once the build has ended, so that modules built in parallel that start later know
+                // to deploy on their own
+                REACTORS.put(new ReactorKey(reactorProjects, COLLECTED_REACTORS), reactor);
+            } else if (reactor.ended) {
+                getLog().debug("The deferred deploy has already been made, deploying " + mavenProject.getId() + " alone");
+                reactor = new ReactorState(mavenProject, getLog());
+            }
+            reactor.runningModules++;
+            return reactor;
+        }
+    }
+
+    /**
+     * Find the module that marks the end of the build: the last module of the reactor that binds this goal, or the last
+     * module if the goal was run from the command line. Modules left out with <code>-pl</code> or <code>-rf</code> are
+     * not part of the reactor, and inherited and profile bindings are part of each module's effective build.
+     */
+    private MavenProject findEndOfBuild() {
+        boolean bound = bindsGoal(mavenProject);
+        MavenProject last = mavenProject;
+        for (MavenProject reactorProject : reactorProjects) {
+            if (!bound || bindsGoal(reactorProject)) {
+                last = reactorProject;
+            }
+        }
+        return last;
+    }
+
+    private static boolean bindsGoal(MavenProject project) {
+        for (Object plugin : project.getBuildPlugins()) {
+            if (PLUGIN_KEY.equals(((Plugin) plugin).getKey())) {
+                for (Object execution : ((Plugin) plugin).getExecutions()) {
+                    if (((PluginExecution) execution).getGoals().contains(GOAL)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find the session shared with the other modules of the reactor that deploy to the same TeamForge instance as the
+     * same user, creating it if this is the first.
+     */
+    private SharedSession getSharedSession(ReactorState reactor) {
+        synchronized (REACTORS) {
+            for (SharedSession shared : reactor.sessions) {
+                if (shared.matches(teamForgeUrl, teamForgeUsername, teamForgePassword)) {
+                    return shared;
+                }
+            }
+            SharedSession shared = new SharedSession(teamForgeUrl, teamForgeUsername, teamForgePassword);
+            reactor.sessions.add(shared);
+            return shared;
+        }
+    }
+
+    /**
+     * Log in to TeamForge, unless another module has already logged in for the shared session.
+     */
+    private CollabNetSession login(SharedSession shared) throws MojoExecutionException {
+        synchronized (shared) {
+            if (shared.session == null) {
+                CollabNetSession session;
+                try {
+                    session = new CollabNetSession(teamForgeUrl, teamForgeUsername, teamForgePassword,
+                            new PluginLog());
+                } catch (RemoteException e) {
+                    throw new MojoExecutionException("Failed to login to TeamForge: " + e.getLocalizedMessage(), e);
+                }
+                session.setMetrics(shared.metrics);
+                if (useIdCache) {
+                    getLog().debug("Using ID cache: " + idCacheFile);
+                    session.setIdCache(new IdCache(idCacheFile));
+                }
+                CircuitBreaker circuitBreaker = null;
+                if (circuitBreakerThreshold > 0) {
+                    circuitBreaker = new CircuitBreaker(teamForgeUrl, circuitBreakerThreshold, circuitBreakerOpenTime);
+                }
+                session.setRetryPolicy(new ExponentialBackoffRetryPolicy(retries + 1, retryDelay, retryMaxDelay,
+                        retryBudget), circuitBreaker);
+                shared.session = session;
+            }
+            return shared.session;
+        }
+    }
+
+    /**
+     * Record that this module has finished, except for any deploy it has deferred.
+     */
+    private void moduleFinished(ReactorState reactor) {
+        synchronized (REACTORS) {
+            reactor.runningModules--;
+            REACTORS.notifyAll();
+        }
+    }
+
+    /**
+     * Wait for the other modules still running the goal to finish, so that the deploys they defer are included and
+     * nothing is still using the sessions when they are logged off. Modules that start after this deploy on their own.
+     *
+     * @return the deploys deferred by every module of the reactor
+     */
+    private List<FrsDeployMojo> awaitOtherModules(ReactorState reactor) {
+        synchronized (REACTORS) {
+            while (reactor.runningModules > 0 && !reactor.ended) {
+                getLog().debug("Waiting for " + reactor.runningModules + " modules to finish deploying");
+                try {
+                    REACTORS.wait();
+                } catch (InterruptedException e) {
+                    getLog().warn("Interrupted waiting for " + reactor.runningModules + " modules to finish deploying");
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            reactor.ended = true;
+            List<FrsDeployMojo> deferred = new ArrayList<FrsDeployMojo>(reactor.deferred);
+            reactor.deferred.clear();
+            return deferred;
+        }
+    }
+
+    /**
+     * Log off the sessions of the reactor, after reporting any deploys that were deferred but will not be made because
+     * this module failed before making them.
+     */
+    private void endBuild(ReactorState reactor, boolean deferredDeployed) {
+        List<SharedSession> sessions;
+        if (!deferredDeployed) {
+            List<String> modules = new ArrayList<String>();
+            for (FrsDeployMojo deploy : awaitOtherModules(reactor)) {
+                modules.add(deploy.mavenProject.getId());
+            }
+            if (!modules.isEmpty()) {
+                getLog().error("The artifacts of " + modules.size() + " modules deferred until the end of the build " +
+                        "were not deployed to TeamForge: " + modules);
+            }
+        }
+        synchronized (REACTORS) {
+            sessions = new ArrayList<SharedSession>(reactor.sessions);
+            reactor.sessions.clear();
+        }
+        for (SharedSession shared : sessions) {
+            if (shared.session != null) {
+                logoff(shared.session);
+                logMetrics(shared.metrics);
+            }
+        }
+    }
+
+    /**
+     * Find or create the release to deploy to, followed by the additional releases.
+     */
+    private List<String> findReleases(CollabNetSession session, Map<String, FrsSession> frsSessions,
+                                      FrsSession frsSession) throws RemoteException, MojoFailureException {
+        String packageId;
+        String releaseId;
+        if (createRelease) {
+            packageId = frsSession.findOrCreatePackage(createPackageTemplate());
+            releaseId = frsSession.findOrCreateRelease(createReleaseTemplate(), packageId);
+        } else {
+            packageId = findPackage(frsSession);
+            releaseId = findRelease(frsSession, packageId);
+        }
+
+        List<String> releaseIds = new ArrayList<String>();
+        List<String> releaseNames = new ArrayList<String>();
+        releaseIds.add(releaseId);
+        releaseNames.add(project + "/" + pkg + "/" + release);
+        if (additionalReleases != null) {
+            for (String additionalRelease : additionalReleases) {
+                String additionalReleaseId = findAdditionalRelease(session, frsSessions, frsSession, additionalRelease);
+                int duplicate = releaseIds.indexOf(additionalReleaseId);
+                if (duplicate >= 0) {
+                    getLog().warn("Ignoring additional release '" + additionalRelease +
+                            "', as it is the same release as '" + releaseNames.get(duplicate) + "'");
+                    continue;
+                }
+                releaseIds.add(additionalReleaseId);
+                releaseNames.add(additionalRelease);
+            }
+        }
+        return releaseIds;
+    }
+
+    /**
+     * Obtain the FRS session for a project, looking the project up the first time it is needed.
+     */
+    private FrsSession getFrsSession(CollabNetSession session, Map<String, FrsSession> frsSessions, String projectPath)
+            throws MojoFailureException {
+        synchronized (frsSessions) {
+            FrsSession frsSession = frsSessions.get(projectPath);
+            if (frsSession == null) {
+                frsSession = session.createFrsSession(findProjectId(session, projectPath));
+                frsSession.setSkipUnchanged(skipUnchanged);
+                frsSession.setUploadChunkSize(uploadChunkSize);
+                frsSession.setBandwidthLimit(uploadBandwidth);
+                if (maxParallelUploads > 0) {
+                    frsSession.setAdaptiveConcurrency(new AdaptiveConcurrencyLimit(parallelUploads,
+                            minParallelUploads, maxParallelUploads, new PluginLog()));
+                }
+                if (progressInterval > 0) {
+                    frsSession.setProgressListener(new PluginLog(), progressInterval);
+                }
+                frsSessions.put(projectPath, frsSession);
+            }
+            return frsSession;
+        }
+    }
+
+    private void logMetrics(MetricsCollector metrics) {
+        getLog().info("TeamForge calls:");
+        for (String line : metrics.getSummary()) {
+            getLog().info(line);
         }
     }
 
@@ -220,10 +739,47 @@ public class FrsDeployMojo
         return template;
     }
 
+    private String findAdditionalRelease(CollabNetSession session, Map<String, FrsSession> frsSessions,
+                                         FrsSession frsSession, String spec)
+            throws RemoteException, MojoFailureException {
+        ReleaseTarget target;
+        try {
+            target = ReleaseTarget.parse(spec, project, pkg);
+        } catch (IllegalArgumentException e) {
+            throw new MojoFailureException(e.getLocalizedMessage());
+        }
+
+        FrsSession targetSession = frsSession;
+        if (!target.getProject().equals(project)) {
+            targetSession = getFrsSession(session, frsSessions, target.getProject());
+        }
+
+        String packageId;
+        String releaseId;
+        if (createRelease) {
+            Package packageTemplate = createPackageTemplate();
+            packageTemplate.setTitle(target.getPackageTitle());
+            packageId = targetSession.findOrCreatePackage(packageTemplate);
+
+            Release releaseTemplate = createReleaseTemplate();
+            releaseTemplate.setTitle(target.getReleaseTitle());
+            releaseId = targetSession.findOrCreateRelease(releaseTemplate, packageId);
+        } else {
+            packageId = findPackage(targetSession, target.getPackageTitle());
+            releaseId = findRelease(targetSession, target.getReleaseTitle(), packageId);
+        }
+        getLog().debug("Found additional release '" + target + "': " + releaseId);
+        return releaseId;
+    }
+
     private String findRelease(FrsSession frsSession, String packageId) throws RemoteException, MojoFailureException {
+        return findRelease(frsSession, release, packageId);
+    }
+
+    private String findRelease(FrsSession frsSession, String title, String packageId) throws RemoteException, MojoFailureException {
         String releaseId;
         try {
-            releaseId = frsSession.findRelease(release, packageId);
+            releaseId = frsSession.findRelease(title, packageId);
         } catch (ResourceNotFoundException e) {
             throw new MojoFailureException(e.getLocalizedMessage());
         }
@@ -231,22 +787,26 @@ public class FrsDeployMojo
     }
 
     private String findPackage(FrsSession frsSession) throws RemoteException, MojoFailureException {
+        return findPackage(frsSession, pkg);
+    }
+
+    private String findPackage(FrsSession frsSession, String title) throws RemoteException, MojoFailureException {
         String packageId;
         try {
-            packageId = frsSession.findPackage(pkg);
+            packageId = frsSession.findPackage(title);
         } catch (ResourceNotFoundException e) {
             throw new MojoFailureException(e.getLocalizedMessage());
         }
         return packageId;
     }
 
-    private String findProjectId(CollabNetSession session) throws MojoFailureException {
+    private String findProjectId(CollabNetSession session, String projectPath) throws MojoFailureException {
         String projectId;
         try {
-            projectId = session.findProject(project);
+            projectId = session.findProject(projectPath);
         } catch (RemoteException e) {
             getLog().error("Exception retrieving TeamForge project: " + e.getLocalizedMessage(), e);
-            throw new MojoFailureException("Failed to retrieve TeamForge project '" + project + "': " + e.getLocalizedMessage());
+            throw new MojoFailureException("Failed to retrieve TeamForge project '" + projectPath + "': " + e.getLocalizedMessage());
         }
         getLog().debug("Found CollabNet project '" + projectId + "'");
         return projectId;
@@ -260,22 +820,45 @@ public class FrsDeployMojo
         }
     }
 
-    private void uploadArtifacts(List<Artifact> artifacts, String releaseId, FrsSession frsSession) throws MojoExecutionException {
+    private void uploadArtifacts(List<Artifact> artifacts, List<String> releaseIds, FrsSession frsSession,
+                                 boolean overwrite) throws MojoExecutionException {
+        List<File> files = new ArrayList<File>(artifacts.size());
         for (Artifact artifact : artifacts) {
             File file = artifact.getFile();
             if (file != null) {
-                getLog().info("Uploading '" + file + "' to release '" + releaseId + "'");
-                try {
-                    frsSession.uploadFile(releaseId, file, overwrite);
-                } catch (RemoteException e) {
-                    throw new MojoExecutionException("Unable to upload file: " + e.getLocalizedMessage(), e);
-                } catch (MalformedURLException e) {
-                    throw new MojoExecutionException("Error trying to convert artifact to an URL: " + e.getLocalizedMessage(), e);
-                }
+                files.add(file);
             } else {
                 getLog().debug("Skipping artifact with no file: " + artifact);
             }
         }
+
+        Map<String, BatchUploadResult> results;
+        if (releaseIds.size() == 1) {
+            String releaseId = releaseIds.get(0);
+            results = Collections.singletonMap(releaseId, frsSession.uploadFiles(releaseId, files, overwrite, parallelUploads));
+        } else {
+            results = frsSession.uploadFilesToReleases(releaseIds, files, overwrite, parallelUploads);
+        }
+
+        List<UploadResult> failures = new ArrayList<UploadResult>();
+        for (Map.Entry<String, BatchUploadResult> entry : results.entrySet()) {
+            String releaseId = entry.getKey();
+            BatchUploadResult result = entry.getValue();
+            List<String> skipped = result.getSkippedNames();
+            if (!skipped.isEmpty()) {
+                getLog().info("Skipped " + skipped.size() + " unchanged files in release '" + releaseId + "': " + skipped);
+            }
+            for (UploadResult failure : result.getFailures()) {
+                getLog().error("Unable to upload file '" + failure.getName() + "' to release '" + releaseId + "': " +
+                        failure.getError().getLocalizedMessage(), failure.getError());
+                failures.add(failure);
+            }
+        }
+        if (!failures.isEmpty()) {
+            Exception e = failures.get(0).getError();
+            throw new MojoExecutionException("Unable to upload " + failures.size() + " of " +
+                    files.size() * releaseIds.size() + " files: " + e.getLocalizedMessage(), e);
+        }
     }
 
     private void verifyConfiguration() throws MojoFailureException {
@@ -304,13 +887,125 @@ public class FrsDeployMojo
             getLog().debug("Setting overwrite flag to: " + overwrite);
         }
 
+        if (skipUnchanged && !useIdCache) {
+            getLog().warn("Unchanged files can only be detected when useIdCache is enabled - all files will be uploaded");
+        }
+
+        if (maxParallelUploads > 0 && (minParallelUploads < 1 || minParallelUploads > maxParallelUploads)) {
+            throw new MojoFailureException("minParallelUploads must be between 1 and maxParallelUploads");
+        }
+
         if (releaseStatus == null) {
             releaseStatus = snapshot ? "pending" : "active";
             getLog().debug("Using release status: " + releaseStatus);
         }
     }
 
-    private class PluginLog implements Log {
+    /**
+     * The modules of a reactor build that have finished deploying, the deploys they have deferred, and the sessions
+     * they share.
+     */
+    private static class ReactorState {
+        private final List<SharedSession> sessions = new ArrayList<SharedSession>();
+
+        private final List<FrsDeployMojo> deferred = new ArrayList<FrsDeployMojo>();
+
+        private final MavenProject endOfBuild;
+
+        /**
+         * The log of the module that started the build, for warnings given when the JVM exits.
+         */
+        private final org.apache.maven.plugin.logging.Log log;
+
+        private int runningModules;
+
+        private boolean ended;
+
+        private ReactorState(MavenProject endOfBuild, org.apache.maven.plugin.logging.Log log) {
+            this.endOfBuild = endOfBuild;
+            this.log = log;
+        }
+    }
+
+    /**
+     * Identifies a reactor build by the identity of its list of projects, without keeping the list from being
+     * collected.
+     */
+    private static class ReactorKey extends WeakReference<List<MavenProject>> {
+        private final int hash;
+
+        private ReactorKey(List<MavenProject> reactorProjects, ReferenceQueue<List<MavenProject>> queue) {
+            super(reactorProjects, queue);
+            this.hash = System.identityHashCode(reactorProjects);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ReactorKey)) {
+                return false;
+            }
+            List<MavenProject> reactorProjects = get();
+            return reactorProjects != null && reactorProjects == ((ReactorKey) o).get();
+        }
+    }
+
+    /**
+     * A TeamForge session shared by the modules of a reactor build, with the FRS sessions for each TeamForge project
+     * they deploy to. It is logged in by the first module to need it.
+     */
+    private static class SharedSession {
+        private final String teamForgeUrl;
+
+        private final String teamForgeUsername;
+
+        private final String teamForgePassword;
+
+        private final MetricsCollector metrics = new MetricsCollector();
+
+        private final Map<String, FrsSession> frsSessions = new HashMap<String, FrsSession>();
+
+        private CollabNetSession session;
+
+        private SharedSession(String teamForgeUrl, String teamForgeUsername, String teamForgePassword) {
+            this.teamForgeUrl = teamForgeUrl;
+            this.teamForgeUsername = teamForgeUsername;
+            this.teamForgePassword = teamForgePassword;
+        }
+
+        private boolean matches(String teamForgeUrl, String teamForgeUsername, String teamForgePassword) {
+            return this.teamForgeUrl.equals(teamForgeUrl) && this.teamForgeUsername.equals(teamForgeUsername)
+                    && this.teamForgePassword.equals(teamForgePassword);
+        }
+    }
+
+    /**
+     * Artifacts to upload together to the same releases.
+     */
+    private static class UploadBatch {
+        private final FrsSession frsSession;
+
+        private final List<String> releaseIds;
+
+        private final boolean overwrite;
+
+        private final List<Artifact> artifacts = new ArrayList<Artifact>();
+
+        private UploadBatch(FrsSession frsSession, List<String> releaseIds, boolean overwrite) {
+            this.frsSession = frsSession;
+            this.releaseIds = releaseIds;
+            this.overwrite = overwrite;
+        }
+    }
+
+    private class PluginLog implements Log, UploadProgressListener {
         public void debug(String msg) {
             getLog().debug(msg);
         }
@@ -318,5 +1013,9 @@ public class FrsDeployMojo
         public void info(String msg) {
             getLog().info(msg);
         }
+
+        public void uploadProgress(UploadProgress progress) {
+            getLog().info(progress.toString());
+        }
     }
 }
@@ -16,14 +16,22 @@ package com.maestrodev.plugins.collabnet;
  * limitations under the License.
  */
 
-import com.collabnet.ce.soap60.webservices.ClientSoapStubFactory;
 import com.collabnet.ce.soap60.webservices.cemain.ICollabNetSoap;
 import com.collabnet.ce.soap60.webservices.cemain.ProjectSoapDO;
 import com.collabnet.ce.soap60.webservices.filestorage.IFileStorageAppSoap;
+import com.collabnet.ce.soap60.webservices.filestorage.ISimpleFileStorageAppSoap;
 import com.collabnet.ce.soap60.webservices.frs.IFrsAppSoap;
 import com.maestrodev.plugins.collabnet.frs.FrsSession;
 import com.maestrodev.plugins.collabnet.log.Log;
 import com.maestrodev.plugins.collabnet.log.Slf4jLog;
+import com.maestrodev.plugins.collabnet.metrics.FrsMetrics;
+import com.maestrodev.plugins.collabnet.retry.CircuitBreaker;
+import com.maestrodev.plugins.collabnet.retry.RetryPolicy;
+import com.maestrodev.plugins.collabnet.retry.RetryingInvoker;
+import com.maestrodev.plugins.collabnet.retry.SessionRenewer;
+import com.maestrodev.plugins.collabnet.retry.SoapCall;
+import com.maestrodev.plugins.collabnet.transport.PooledSoapStubFactory;
+import com.maestrodev.plugins.collabnet.transport.SoapStubFactory;
 
 import java.rmi.RemoteException;
 
@@ -35,16 +43,36 @@ import java.rmi.RemoteException;
  *
  * When finished with the session, ensure that you call the {@linkplain #logoff()} method.
  */
-public class CollabNetSession {
+public class CollabNetSession implements SessionRenewer {
+    private final SoapStubFactory stubFactory;
+
     private final ICollabNetSoap collabNetSoap;
 
-    private final String sessionId;
+    private volatile String sessionId;
 
     private final String teamForgeUrl;
 
     private final String teamForgeUsername;
 
-    private final Log log;
+    private Log log;
+
+    private IdCache idCache;
+
+    private RetryPolicy retryPolicy = RetryPolicy.NEVER;
+
+    private CircuitBreaker circuitBreaker;
+
+    private FrsMetrics metrics = FrsMetrics.NONE;
+
+    /**
+     * The password to log in again with if the session expires, only held while renewal is enabled.
+     */
+    private String renewalPassword;
+
+    /**
+     * The time taken to log in, until it has been reported to a metrics listener.
+     */
+    private long loginNanos = -1;
 
     /**
      * Create a new session and log in. Log messages will be directed to SLF4J.
@@ -69,14 +97,31 @@ public class CollabNetSession {
      * @throws RemoteException if there was a problem communicating with TeamForge
      */
     public CollabNetSession(String teamForgeUrl, String teamForgeUsername, String teamForgePassword, Log log) throws RemoteException {
-        collabNetSoap =
-                (ICollabNetSoap) ClientSoapStubFactory.getSoapStub(ICollabNetSoap.class, teamForgeUrl);
+        this(teamForgeUrl, teamForgeUsername, teamForgePassword, log, PooledSoapStubFactory.getInstance());
+    }
+
+    /**
+     * Create a new session and log in, obtaining the SOAP stubs to communicate with TeamForge from the given factory.
+     *
+     * @param teamForgeUrl      the URL of the TeamForge instance to log in to
+     * @param teamForgeUsername the username to log in with
+     * @param teamForgePassword the password to log in with (not stored)
+     * @param log               the log implementation to use
+     * @param stubFactory       the source of SOAP stubs
+     * @throws RemoteException if there was a problem communicating with TeamForge
+     */
+    public CollabNetSession(String teamForgeUrl, String teamForgeUsername, String teamForgePassword, Log log,
+                            SoapStubFactory stubFactory) throws RemoteException {
+        this.stubFactory = stubFactory;
+        collabNetSoap = stubFactory.getSoapStub(ICollabNetSoap.class, teamForgeUrl);
         this.teamForgeUrl = teamForgeUrl;
         this.teamForgeUsername = teamForgeUsername;
         this.log = log;
 
         log.debug("Logging in to TeamForge for user '" + teamForgeUsername + "' at " + teamForgeUrl);
+        long start = System.nanoTime();
         sessionId = collabNetSoap.login(teamForgeUsername, teamForgePassword);
+        loginNanos = System.nanoTime() - start;
         log.debug("Session created: '" + sessionId + "'");
     }
 
@@ -88,11 +133,117 @@ public class CollabNetSession {
      * @return the project ID
      * @throws RemoteException if there was a problem communicating with TeamForge
      */
-    public String findProject(String project) throws RemoteException {
-        ProjectSoapDO p = collabNetSoap.getProjectByPath(sessionId, "projects." + project);
+    public String findProject(final String project) throws RemoteException {
+        RetryingInvoker invoker = new RetryingInvoker(retryPolicy, circuitBreaker, metrics, log) {
+            @Override
+            protected boolean renewSession() throws RemoteException {
+                return CollabNetSession.this.renewSession(sessionId) != null;
+            }
+        };
+        ProjectSoapDO p = invoker.invoke("getProjectByPath", true, new SoapCall<ProjectSoapDO>() {
+            public ProjectSoapDO call() throws RemoteException {
+                return collabNetSoap.getProjectByPath(sessionId, "projects." + project);
+            }
+        });
         return p.getId();
     }
 
+    /**
+     * Check whether the session is still logged in. TeamForge expires sessions that have not been used for some time,
+     * so this should be checked before reusing a session that has been idle.
+     *
+     * @return <code>true</code> if TeamForge still accepts the session
+     */
+    public boolean isValid() {
+        try {
+            collabNetSoap.getUserData(sessionId, teamForgeUsername);
+            return true;
+        } catch (RemoteException e) {
+            log.debug("Session '" + sessionId + "' is no longer valid: " + e.getLocalizedMessage());
+            return false;
+        }
+    }
+
+    public String getTeamForgeUrl() {
+        return teamForgeUrl;
+    }
+
+    public String getTeamForgeUsername() {
+        return teamForgeUsername;
+    }
+
+    /**
+     * Direct log messages from this session, and the FRS sessions subsequently created from it, to a different
+     * {@linkplain Log} implementation. Used when a pooled session is handed to a new client.
+     *
+     * @param log the log implementation to use
+     */
+    public void setLog(Log log) {
+        this.log = log;
+    }
+
+    /**
+     * Use a persistent cache of package and release IDs in the FRS sessions created from this session, to avoid
+     * listing them again in each build.
+     *
+     * @param idCache the cache to use, or <code>null</code> to disable it
+     */
+    public void setIdCache(IdCache idCache) {
+        this.idCache = idCache;
+    }
+
+    /**
+     * Retry calls that fail for reasons likely to be temporary, and stop calling TeamForge once it is clearly
+     * unavailable, in this session and the FRS sessions subsequently created from it.
+     *
+     * @param retryPolicy    the policy for retrying failed calls
+     * @param circuitBreaker the circuit breaker to check before each call, or <code>null</code> to always call
+     * @see FrsSession#setRetryPolicy(RetryPolicy, CircuitBreaker)
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy, CircuitBreaker circuitBreaker) {
+        this.retryPolicy = retryPolicy;
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Report the time taken by each call to TeamForge, in this session and the FRS sessions subsequently created from
+     * it, to a listener. The login that created the session is reported to the first listener set, so a session that
+     * is reused does not report its login again.
+     *
+     * @param metrics the listener to report to
+     */
+    public void setMetrics(FrsMetrics metrics) {
+        this.metrics = metrics;
+        if (loginNanos >= 0) {
+            metrics.callCompleted("login", loginNanos, true);
+            loginNanos = -1;
+        }
+    }
+
+    /**
+     * Allow the session, and the FRS sessions subsequently created from it, to log in again if TeamForge expires the
+     * session while it is in use. The password is held until renewal is disabled again, so this should only be
+     * enabled while the session is being used for a task.
+     *
+     * @param teamForgePassword the password to log in with, or <code>null</code> to disable renewal
+     */
+    public synchronized void setRenewalPassword(String teamForgePassword) {
+        this.renewalPassword = teamForgePassword;
+    }
+
+    public synchronized String renewSession(String expiredSessionId) throws RemoteException {
+        if (!expiredSessionId.equals(sessionId)) {
+            return sessionId;
+        }
+        if (renewalPassword == null) {
+            return null;
+        }
+        log.info("TeamForge session for user '" + teamForgeUsername + "' has expired, logging in again");
+        sessionId = collabNetSoap.login(teamForgeUsername, renewalPassword);
+        log.debug("Session created: '" + sessionId + "'");
+        return sessionId;
+    }
+
     /**
      * Start a session to interact with the File Releases (FRS) subsystem, for a given project.
      *
@@ -100,11 +251,18 @@ public class CollabNetSession {
      * @return the FRS session
      */
     public FrsSession createFrsSession(String projectId) {
-        IFrsAppSoap frsAppSoap = (IFrsAppSoap) ClientSoapStubFactory.getSoapStub(IFrsAppSoap.class, teamForgeUrl);
-        IFileStorageAppSoap fileStorageAppSoap = (IFileStorageAppSoap) ClientSoapStubFactory.getSoapStub(
-                IFileStorageAppSoap.class, teamForgeUrl);
+        IFrsAppSoap frsAppSoap = stubFactory.getSoapStub(IFrsAppSoap.class, teamForgeUrl);
+        IFileStorageAppSoap fileStorageAppSoap = stubFactory.getSoapStub(IFileStorageAppSoap.class, teamForgeUrl);
+        ISimpleFileStorageAppSoap simpleFileStorageAppSoap =
+                stubFactory.getSoapStub(ISimpleFileStorageAppSoap.class, teamForgeUrl);
 
-        return new FrsSession(frsAppSoap, fileStorageAppSoap, sessionId, projectId, log);
+        FrsSession frsSession = new FrsSession(frsAppSoap, fileStorageAppSoap, simpleFileStorageAppSoap, sessionId,
+                projectId, log);
+        frsSession.setIdCache(idCache, teamForgeUrl);
+        frsSession.setRetryPolicy(retryPolicy, circuitBreaker);
+        frsSession.setMetrics(metrics);
+        frsSession.setSessionRenewer(this);
+        return frsSession;
     }
 
     /**
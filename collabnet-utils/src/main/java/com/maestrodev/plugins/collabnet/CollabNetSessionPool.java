@@ -0,0 +1,418 @@
+package com.maestrodev.plugins.collabnet;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.maestrodev.plugins.collabnet.log.Log;
+import com.maestrodev.plugins.collabnet.log.Slf4jLog;
+import com.maestrodev.plugins.collabnet.metrics.FrsMetrics;
+import com.maestrodev.plugins.collabnet.retry.RetryPolicy;
+import com.maestrodev.plugins.collabnet.transport.PooledSoapStubFactory;
+import com.maestrodev.plugins.collabnet.transport.SoapStubFactory;
+
+import java.io.UnsupportedEncodingException;
+import java.rmi.RemoteException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * A pool of logged in {@linkplain CollabNetSession sessions}, so that a long running process performing many short
+ * tasks against the same TeamForge instance does not need to log in for each of them.
+ *
+ * Sessions are borrowed for the exclusive use of one client, and returned when the client is finished with them. A
+ * session is only reused for the same TeamForge URL, username and password it was created with. Sessions that have
+ * been idle for some time are checked before they are handed out, and replaced with a new login if TeamForge has
+ * expired them. While a session is borrowed it logs in again if TeamForge expires it part way through a task. Idle
+ * sessions beyond the maximum pool size are logged off when they are returned. Sessions idle for longer than the idle
+ * timeout are logged off by a background thread, so that they do not stay logged in while the pool is not used, and
+ * all idle sessions are logged off when the JVM shuts down.
+ *
+ * The number of sessions logged in at once, borrowed or idle, is also capped. When the cap is reached, an idle session
+ * for another user is logged off to make room, or if there is none the borrower waits for a session to be returned.
+ *
+ * The size and timeouts of the shared pool can be set with the <code>collabnet.sessionPool.maxIdle</code>,
+ * <code>collabnet.sessionPool.maxTotal</code>, <code>collabnet.sessionPool.idleTimeout</code> and
+ * <code>collabnet.sessionPool.validateAfter</code> system properties, with the timeouts in milliseconds.
+ */
+public class CollabNetSessionPool {
+    /**
+     * The bounds of the interval at which idle sessions are checked for the idle timeout.
+     */
+    private static final long MIN_EVICTION_INTERVAL = 1000;
+
+    private static final long MAX_EVICTION_INTERVAL = 60 * 1000L;
+
+    private static final CollabNetSessionPool INSTANCE = new CollabNetSessionPool(
+            Integer.getInteger("collabnet.sessionPool.maxIdle", 8),
+            Integer.getInteger("collabnet.sessionPool.maxTotal", 32),
+            Long.getLong("collabnet.sessionPool.idleTimeout", 10 * 60 * 1000L),
+            Long.getLong("collabnet.sessionPool.validateAfter", 60 * 1000L),
+            PooledSoapStubFactory.getInstance());
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread("collabnet-session-pool-shutdown") {
+            @Override
+            public void run() {
+                INSTANCE.close();
+            }
+        });
+    }
+
+    private final int maxIdle;
+
+    private final int maxTotal;
+
+    private final long idleTimeout;
+
+    private final long validateAfter;
+
+    private final SoapStubFactory stubFactory;
+
+    private final byte[] salt = new byte[16];
+
+    private final Log log = new Slf4jLog();
+
+    /**
+     * Idle sessions, least recently returned first.
+     */
+    private final LinkedList<PooledSession> idle = new LinkedList<PooledSession>();
+
+    private final Map<CollabNetSession, PooledSession> borrowed = new IdentityHashMap<CollabNetSession, PooledSession>();
+
+    /**
+     * The number of sessions borrowed, or being checked or logged in to be borrowed.
+     */
+    private int active;
+
+    private boolean closed;
+
+    /**
+     * Logs off sessions that have been idle too long, started when the first session is returned.
+     */
+    private Timer evictionTimer;
+
+    /**
+     * Create a pool.
+     *
+     * @param maxIdle       the maximum number of idle sessions to keep logged in
+     * @param idleTimeout   the time in milliseconds after which an idle session is logged off
+     * @param validateAfter the time in milliseconds a session can be idle before it is checked with TeamForge before
+     *                      being reused
+     */
+    public CollabNetSessionPool(int maxIdle, long idleTimeout, long validateAfter) {
+        this(maxIdle, idleTimeout, validateAfter, PooledSoapStubFactory.getInstance());
+    }
+
+    /**
+     * Create a pool whose sessions obtain their SOAP stubs from the given factory.
+     *
+     * @param maxIdle       the maximum number of idle sessions to keep logged in
+     * @param idleTimeout   the time in milliseconds after which an idle session is logged off
+     * @param validateAfter the time in milliseconds a session can be idle before it is checked with TeamForge before
+     *                      being reused
+     * @param stubFactory   the source of the SOAP stubs
+     */
+    public CollabNetSessionPool(int maxIdle, long idleTimeout, long validateAfter, SoapStubFactory stubFactory) {
+        this(maxIdle, Integer.MAX_VALUE, idleTimeout, validateAfter, stubFactory);
+    }
+
+    /**
+     * Create a pool with a limit on the number of sessions logged in at once.
+     *
+     * @param maxIdle       the maximum number of idle sessions to keep logged in
+     * @param maxTotal      the maximum number of sessions, borrowed or idle, to have logged in at once
+     * @param idleTimeout   the time in milliseconds after which an idle session is logged off
+     * @param validateAfter the time in milliseconds a session can be idle before it is checked with TeamForge before
+     *                      being reused
+     * @param stubFactory   the source of the SOAP stubs
+     */
+    public CollabNetSessionPool(int maxIdle, int maxTotal, long idleTimeout, long validateAfter,
+                                SoapStubFactory stubFactory) {
+        this.maxIdle = maxIdle;
+        this.maxTotal = Math.max(maxTotal, 1);
+        this.idleTimeout = idleTimeout;
+        this.validateAfter = validateAfter;
+        this.stubFactory = stubFactory;
+        new SecureRandom().nextBytes(salt);
+    }
+
+    /**
+     * @return the pool shared by the whole process
+     */
+    public static CollabNetSessionPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Obtain a logged in session, reusing an idle one for the same user if possible. The session must be given back
+     * with {@linkplain #returnSession(CollabNetSession)}, or {@linkplain #invalidateSession(CollabNetSession)} if it
+     * should not be reused, rather than logged off directly. If as many sessions as allowed are already borrowed, this
+     * waits until one is given back.
+     *
+     * @param teamForgeUrl      the URL of the TeamForge instance to log in to
+     * @param teamForgeUsername the username to log in with
+     * @param teamForgePassword the password to log in with, held by the session while it is borrowed so that it can log
+     *                          in again if it expires
+     * @param log               the log implementation for the session to use
+     * @return the session
+     * @throws RemoteException if there was a problem communicating with TeamForge, or the thread was interrupted while
+     *                         waiting for a session
+     */
+    public CollabNetSession borrowSession(String teamForgeUrl, String teamForgeUsername, String teamForgePassword,
+                                          Log log) throws RemoteException {
+        byte[] credentials = hash(teamForgePassword);
+
+        List<PooledSession> expired = new ArrayList<PooledSession>();
+        PooledSession pooled = null;
+        synchronized (this) {
+            while (true) {
+                evictIdle(expired);
+                pooled = takeIdle(teamForgeUrl, teamForgeUsername, credentials);
+                if (pooled != null || idle.size() + active < maxTotal) {
+                    break;
+                }
+                if (!idle.isEmpty()) {
+                    // make room by logging off the session for another user that has been idle longest
+                    expired.add(idle.removeFirst());
+                    break;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RemoteException("Interrupted while waiting for a TeamForge session", e);
+                }
+            }
+            active++;
+        }
+        logoff(expired);
+
+        try {
+            if (pooled != null && System.currentTimeMillis() - pooled.lastUsed > validateAfter) {
+                pooled.session.setLog(log);
+                if (!pooled.session.isValid()) {
+                    log.debug("Pooled TeamForge session has expired, logging in again");
+                    pooled = null;
+                }
+            }
+
+            if (pooled == null) {
+                CollabNetSession session = new CollabNetSession(teamForgeUrl, teamForgeUsername, teamForgePassword,
+                        log, stubFactory);
+                pooled = new PooledSession(session, credentials);
+            } else {
+                log.debug("Reusing pooled TeamForge session for user '" + teamForgeUsername + "' at " + teamForgeUrl);
+            }
+        } catch (RemoteException e) {
+            released();
+            throw e;
+        } catch (RuntimeException e) {
+            released();
+            throw e;
+        }
+
+        pooled.session.setLog(log);
+        pooled.session.setRenewalPassword(teamForgePassword);
+        synchronized (this) {
+            borrowed.put(pooled.session, pooled);
+        }
+        return pooled.session;
+    }
+
+    /**
+     * Remove the most recently used idle session for a user from the pool, as it is the least likely to have expired.
+     */
+    private PooledSession takeIdle(String teamForgeUrl, String teamForgeUsername, byte[] credentials) {
+        for (ListIterator<PooledSession> i = idle.listIterator(idle.size()); i.hasPrevious(); ) {
+            PooledSession candidate = i.previous();
+            if (candidate.matches(teamForgeUrl, teamForgeUsername, credentials)) {
+                i.remove();
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Record that a session is no longer borrowed, and wake a borrower waiting for room.
+     */
+    private synchronized void released() {
+        active--;
+        notifyAll();
+    }
+
+    /**
+     * Give a session back to the pool once finished with it, so that it can be reused. If the pool is full, the least
+     * recently used idle session is logged off.
+     *
+     * @param session the session obtained from {@linkplain #borrowSession}
+     */
+    public void returnSession(CollabNetSession session) {
+        List<PooledSession> evicted = new ArrayList<PooledSession>();
+        synchronized (this) {
+            PooledSession pooled = borrowed.remove(session);
+            if (pooled == null) {
+                throw new IllegalArgumentException("Session was not borrowed from this pool");
+            }
+            released();
+
+            session.setRenewalPassword(null);
+            session.setIdCache(null);
+            session.setRetryPolicy(RetryPolicy.NEVER, null);
+            session.setMetrics(FrsMetrics.NONE);
+            session.setLog(this.log);
+            pooled.lastUsed = System.currentTimeMillis();
+            if (closed) {
+                evicted.add(pooled);
+            } else {
+                idle.addLast(pooled);
+                startEvictionTimer();
+            }
+            evictIdle(evicted);
+        }
+        logoff(evicted);
+    }
+
+    /**
+     * Give a session back to the pool that should not be reused, for example because it failed in a way that suggests
+     * it is no longer logged in. The session is logged off.
+     *
+     * @param session the session obtained from {@linkplain #borrowSession}
+     */
+    public void invalidateSession(CollabNetSession session) {
+        PooledSession pooled;
+        synchronized (this) {
+            pooled = borrowed.remove(session);
+            if (pooled != null) {
+                released();
+            }
+        }
+        if (pooled == null) {
+            throw new IllegalArgumentException("Session was not borrowed from this pool");
+        }
+        session.setRenewalPassword(null);
+        logoff(Arrays.asList(pooled));
+    }
+
+    /**
+     * @return the number of sessions currently idle in the pool
+     */
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * Log off all idle sessions. Sessions that are currently borrowed are logged off when they are returned.
+     */
+    public void close() {
+        List<PooledSession> sessions;
+        synchronized (this) {
+            closed = true;
+            sessions = new ArrayList<PooledSession>(idle);
+            idle.clear();
+            if (evictionTimer != null) {
+                evictionTimer.cancel();
+                evictionTimer = null;
+            }
+        }
+        logoff(sessions);
+    }
+
+    /**
+     * Check the idle sessions for the idle timeout in the background, at a quarter of the timeout.
+     */
+    private void startEvictionTimer() {
+        if (evictionTimer != null) {
+            return;
+        }
+        long interval = Math.max(MIN_EVICTION_INTERVAL, Math.min(MAX_EVICTION_INTERVAL, idleTimeout / 4));
+        evictionTimer = new Timer("collabnet-session-pool-evictor", true);
+        evictionTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                List<PooledSession> evicted = new ArrayList<PooledSession>();
+                synchronized (CollabNetSessionPool.this) {
+                    evictIdle(evicted);
+                }
+                logoff(evicted);
+            }
+        }, interval, interval);
+    }
+
+    private void evictIdle(List<PooledSession> evicted) {
+        long now = System.currentTimeMillis();
+        for (Iterator<PooledSession> i = idle.iterator(); i.hasNext(); ) {
+            PooledSession pooled = i.next();
+            if (idle.size() > maxIdle || now - pooled.lastUsed > idleTimeout) {
+                i.remove();
+                evicted.add(pooled);
+            }
+        }
+    }
+
+    private void logoff(List<PooledSession> sessions) {
+        for (PooledSession pooled : sessions) {
+            try {
+                pooled.session.logoff();
+            } catch (RemoteException e) {
+                log.debug("Error logging off from CollabNet TeamForge (ignoring): " + e.getLocalizedMessage());
+            }
+        }
+    }
+
+    private byte[] hash(String password) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(salt);
+            return digest.digest(password.getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported by this JVM", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not supported by this JVM", e);
+        }
+    }
+
+    private static class PooledSession {
+        private final CollabNetSession session;
+
+        private final byte[] credentials;
+
+        private long lastUsed;
+
+        private PooledSession(CollabNetSession session, byte[] credentials) {
+            this.session = session;
+            this.credentials = credentials;
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        private boolean matches(String teamForgeUrl, String teamForgeUsername, byte[] credentials) {
+            return session.getTeamForgeUrl().equals(teamForgeUrl)
+                    && session.getTeamForgeUsername().equals(teamForgeUsername)
+                    && MessageDigest.isEqual(this.credentials, credentials);
+        }
+    }
+}
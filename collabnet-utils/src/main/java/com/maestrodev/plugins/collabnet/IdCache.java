@@ -0,0 +1,272 @@
+package com.maestrodev.plugins.collabnet;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A file-backed cache of TeamForge object IDs, so that packages and releases found in one build do not need to be
+ * listed again in the next. Entries are keyed by the TeamForge URL and the path of titles leading to the object. The
+ * digests of uploaded release files are also recorded here, keyed by the ID of the file.
+ *
+ * The cache is only a hint - the IDs it returns must be validated against TeamForge before use, and removed if they
+ * are rejected.
+ *
+ * The file is a journal: each change is appended to it as a properties line, with removals written as an empty
+ * value, so that a change costs the same however many entries the cache holds. Before appending, the lines added by
+ * other builds since the file was last read are loaded, and the file is locked with a lock on a sidecar
+ * <code>.lock</code> file while this is done, so that concurrent builds sharing the file do not lose each other's
+ * entries. When the journal has grown to several times the number of live entries, it is rewritten with only those
+ * entries, under the same lock. The first line of the file identifies each rewrite, so that other builds know to read
+ * the whole file again.
+ */
+public class IdCache {
+    /**
+     * One monitor per file, as a file lock can only be held once in a JVM.
+     */
+    private static final ConcurrentMap<String, Object> MONITORS = new ConcurrentHashMap<String, Object>();
+
+    private static final String CHARSET = "ISO-8859-1";
+
+    private static final Random RANDOM = new Random();
+
+    private final File file;
+
+    private final File lockFile;
+
+    private final Object monitor;
+
+    private final Properties ids = new Properties();
+
+    /**
+     * The first line of the file when it was last read, which changes each time the file is rewritten.
+     */
+    private String generation;
+
+    /**
+     * The length of the file when it was last read, from which lines appended since can be read.
+     */
+    private long loadedLength;
+
+    /**
+     * The number of lines in the journal, including those that have since been replaced or removed.
+     */
+    private int journalLines;
+
+    /**
+     * Create a cache backed by the given file, loading any existing entries. A missing or unreadable file is treated
+     * as an empty cache.
+     *
+     * @param file the file to store the cache in
+     */
+    public IdCache(File file) {
+        this.file = file.getAbsoluteFile();
+        this.lockFile = new File(this.file.getPath() + ".lock");
+        Object monitor = new Object();
+        Object existing = MONITORS.putIfAbsent(this.file.getPath(), monitor);
+        this.monitor = existing != null ? existing : monitor;
+
+        if (this.file.exists()) {
+            update(null, null);
+        }
+    }
+
+    /**
+     * Construct a cache key.
+     *
+     * @param parts the components of the key, such as the TeamForge URL and the titles leading to the object
+     * @return the key
+     */
+    public static String key(String... parts) {
+        StringBuilder sb = new StringBuilder();
+        for (String part : parts) {
+            if (sb.length() > 0) {
+                sb.append('|');
+            }
+            sb.append(part);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Look up an ID.
+     *
+     * @param key the key to look up
+     * @return the cached ID, or <code>null</code> if it is not in the cache
+     */
+    public String get(String key) {
+        return ids.getProperty(key);
+    }
+
+    /**
+     * Add or replace an ID in the cache, and save it.
+     *
+     * @param key the key to store the ID under
+     * @param id  the ID
+     */
+    public void put(String key, String id) {
+        if (id.equals(ids.getProperty(key))) {
+            return;
+        }
+        update(key, id);
+    }
+
+    /**
+     * Remove an ID that is no longer valid from the cache, and save it.
+     *
+     * @param key the key to remove
+     */
+    public void remove(String key) {
+        if (ids.getProperty(key) == null) {
+            return;
+        }
+        update(key, "");
+    }
+
+    /**
+     * Read the changes made by other builds, then append a change, with the file locked. Errors are ignored, as the
+     * cache is an optimisation only and will be rebuilt from TeamForge.
+     *
+     * @param key   the key to change, or <code>null</code> to only read
+     * @param value the new value, or an empty string to remove the key
+     */
+    private void update(String key, String value) {
+        synchronized (monitor) {
+            try {
+                File dir = file.getParentFile();
+                if (key != null && !dir.exists() && !dir.mkdirs()) {
+                    return;
+                }
+                RandomAccessFile lock = new RandomAccessFile(lockFile, "rw");
+                try {
+                    FileLock fileLock = lock.getChannel().lock();
+                    try {
+                        RandomAccessFile journal = new RandomAccessFile(file, key != null ? "rw" : "r");
+                        try {
+                            refresh(journal);
+                            if (key != null) {
+                                apply(key, value);
+                                if (journalLines > 2 * ids.size() + 64) {
+                                    rewrite(journal);
+                                } else {
+                                    append(journal, key, value);
+                                }
+                            }
+                        } finally {
+                            journal.close();
+                        }
+                    } finally {
+                        fileLock.release();
+                    }
+                } finally {
+                    lock.close();
+                }
+            } catch (IOException e) {
+                // ignore - the cache is an optimisation only
+            }
+        }
+    }
+
+    private void apply(String key, String value) {
+        if (value.length() == 0) {
+            ids.remove(key);
+        } else {
+            ids.setProperty(key, value);
+        }
+    }
+
+    /**
+     * Load the lines appended to the journal since it was last read, or the whole journal if it has been rewritten.
+     */
+    private void refresh(RandomAccessFile journal) throws IOException {
+        String header = journal.length() > 0 ? journal.readLine() : null;
+        long from = loadedLength;
+        if (header == null || !header.equals(generation) || journal.length() < loadedLength) {
+            // a new journal, or rewritten by another build, so the entries in memory may no longer be in it
+            ids.clear();
+            journalLines = 0;
+            generation = header;
+            from = 0;
+        }
+
+        int length = (int) (journal.length() - from);
+        byte[] tail = new byte[length];
+        journal.seek(from);
+        journal.readFully(tail);
+        loadedLength = from + length;
+
+        Properties changes = new Properties();
+        changes.load(new ByteArrayInputStream(tail));
+        for (Map.Entry<Object, Object> entry : changes.entrySet()) {
+            apply((String) entry.getKey(), (String) entry.getValue());
+        }
+        journalLines += changes.size();
+    }
+
+    private void append(RandomAccessFile journal, String key, String value) throws IOException {
+        if (journal.length() == 0) {
+            generation = newGeneration();
+            journal.write((generation + "\n").getBytes(CHARSET));
+        }
+        Properties entry = new Properties();
+        entry.setProperty(key, value);
+        journal.seek(journal.length());
+        journal.write(format(entry));
+        loadedLength = journal.length();
+        journalLines++;
+    }
+
+    private void rewrite(RandomAccessFile journal) throws IOException {
+        generation = newGeneration();
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        content.write((generation + "\n").getBytes(CHARSET));
+        content.write(format(ids));
+        journal.setLength(0);
+        journal.write(content.toByteArray());
+        loadedLength = journal.length();
+        journalLines = ids.size();
+    }
+
+    private static String newGeneration() {
+        return "#CollabNet TeamForge ID cache " + Long.toHexString(RANDOM.nextLong());
+    }
+
+    /**
+     * @return the properties as lines of a properties file, without the comments <code>Properties.store</code> adds
+     */
+    private static byte[] format(Properties properties) throws IOException {
+        ByteArrayOutputStream stored = new ByteArrayOutputStream();
+        properties.store(stored, null);
+        StringBuilder lines = new StringBuilder();
+        for (String line : stored.toString(CHARSET).split("\r?\n")) {
+            if (!line.startsWith("#") && line.length() > 0) {
+                lines.append(line).append('\n');
+            }
+        }
+        return lines.toString().getBytes(CHARSET);
+    }
+}
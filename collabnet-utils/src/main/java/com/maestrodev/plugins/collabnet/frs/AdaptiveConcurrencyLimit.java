@@ -0,0 +1,167 @@
+package com.maestrodev.plugins.collabnet.frs;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.maestrodev.plugins.collabnet.log.Log;
+import com.maestrodev.plugins.collabnet.metrics.FrsMetrics;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Adjusts the number of files uploaded at once to what TeamForge can currently take, using additive increase and
+ * multiplicative decrease. The limit grows by one after each full round of uploads that go well, is halved when a call
+ * to file storage fails, and is cut by a quarter when uploads take more than twice as long per byte as the fastest
+ * recently seen, as that means the extra uploads are queueing rather than adding throughput. Only one decrease is made
+ * for the calls that were already running when the limit last changed, so a burst of failures does not collapse it to
+ * the minimum at once. Each change is logged.
+ *
+ * The limit learns from the calls it is told about as an {@linkplain FrsMetrics} listener, and is applied by
+ * {@linkplain FrsSession#setAdaptiveConcurrency(AdaptiveConcurrencyLimit)}. It may be shared by several sessions.
+ */
+public class AdaptiveConcurrencyLimit implements FrsMetrics {
+    /**
+     * The operations whose failures suggest that TeamForge is overloaded, rather than that the request was wrong.
+     */
+    private static final Set<String> UPLOAD_OPERATIONS = new HashSet<String>(Arrays.asList("uploadFile",
+            "startFileUpload", "write", "endFileUpload"));
+
+    /**
+     * Uploads smaller than this are dominated by the cost of the calls rather than the transfer, so their time per
+     * byte is not a useful measure of load.
+     */
+    private static final long MIN_SAMPLE_BYTES = 64 * 1024;
+
+    private static final double LATENCY_TOLERANCE = 2.0;
+
+    /**
+     * How quickly the baseline time per byte follows slower uploads, so that a lasting change in capacity eventually
+     * becomes the new normal.
+     */
+    private static final double BASELINE_DRIFT = 0.05;
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private final Log log;
+
+    private int limit;
+
+    private int inFlight;
+
+    private int successes;
+
+    private double baselineNanosPerByte;
+
+    private long lastDecrease = System.nanoTime();
+
+    /**
+     * @param initialLimit the number of uploads to allow at first
+     * @param minLimit     the smallest number of uploads to allow at once, at least one
+     * @param maxLimit     the largest number of uploads to allow at once
+     * @param log          the log to report each change of limit to
+     */
+    public AdaptiveConcurrencyLimit(int initialLimit, int minLimit, int maxLimit, Log log) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Concurrency limits must satisfy 1 <= min <= max, but are " +
+                    minLimit + " and " + maxLimit);
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        this.log = log;
+    }
+
+    /**
+     * @return the number of uploads currently allowed at once
+     */
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return the largest number of uploads that will ever be allowed at once
+     */
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * Wait until another upload may start. Every call must be followed by a call to {@linkplain #release()}.
+     *
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while (inFlight >= limit) {
+            wait();
+        }
+        inFlight++;
+    }
+
+    /**
+     * Record that an upload has finished, allowing another to start.
+     */
+    public synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    public synchronized void callCompleted(String operation, long durationNanos, boolean success) {
+        if (!success && UPLOAD_OPERATIONS.contains(operation)) {
+            decrease(0.5, "call to " + operation + " failed", durationNanos);
+        }
+    }
+
+    public synchronized void fileUploaded(String name, long bytes, long durationNanos) {
+        if (bytes < MIN_SAMPLE_BYTES) {
+            return;
+        }
+        double nanosPerByte = (double) durationNanos / bytes;
+        if (baselineNanosPerByte == 0 || nanosPerByte < baselineNanosPerByte) {
+            baselineNanosPerByte = nanosPerByte;
+        } else {
+            baselineNanosPerByte += (nanosPerByte - baselineNanosPerByte) * BASELINE_DRIFT;
+        }
+
+        if (nanosPerByte > baselineNanosPerByte * LATENCY_TOLERANCE) {
+            decrease(0.75, String.format("uploads slowed to %d KB/s", (long) (1e9 / nanosPerByte / 1024)),
+                    durationNanos);
+        } else if (++successes >= limit && limit < maxLimit) {
+            log.info("Increasing upload concurrency from " + limit + " to " + (limit + 1));
+            limit++;
+            successes = 0;
+            notifyAll();
+        }
+    }
+
+    private void decrease(double factor, String reason, long durationNanos) {
+        long now = System.nanoTime();
+        // the call started under the previous limit, which has already been reduced
+        if (now - durationNanos < lastDecrease) {
+            return;
+        }
+        lastDecrease = now;
+        successes = 0;
+        int decreased = Math.max(minLimit, (int) (limit * factor));
+        if (decreased < limit) {
+            log.info("Reducing upload concurrency from " + limit + " to " + decreased + ": " + reason);
+            limit = decreased;
+        }
+    }
+}
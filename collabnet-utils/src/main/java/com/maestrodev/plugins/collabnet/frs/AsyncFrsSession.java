@@ -0,0 +1,274 @@
+package com.maestrodev.plugins.collabnet.frs;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import com.maestrodev.plugins.collabnet.ResourceNotFoundException;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the operations of an {@linkplain FrsSession} in the background, so that independent steps of a deploy can
+ * overlap. For example, the package and release of one target can be looked up while the files are being uploaded to
+ * another.
+ *
+ * Operations that depend on the result of another take its {@linkplain Future}, and are only submitted to the
+ * executor once it has completed, so they do not hold a thread of the executor while waiting and any executor can be
+ * used. A future that was not returned by this class or {@linkplain #completed(Object)} is instead waited for by the
+ * operation once it runs. The failure of an operation is passed on to the operations that depend on it, and can be
+ * retrieved with {@linkplain #get(Future)}.
+ *
+ * The underlying session can still be used directly by callers that prefer to wait for each step.
+ */
+public class AsyncFrsSession {
+    private final FrsSession session;
+
+    private final ExecutorService executor;
+
+    /**
+     * @param session  the session to run the operations with
+     * @param executor the executor to run the operations on, which remains owned by the caller
+     */
+    public AsyncFrsSession(FrsSession session, ExecutorService executor) {
+        this.session = session;
+        this.executor = executor;
+    }
+
+    /**
+     * @return the session the operations are run with
+     */
+    public FrsSession getSession() {
+        return session;
+    }
+
+    /**
+     * @see FrsSession#findPackage(String)
+     */
+    public Future<String> findPackage(final String title) {
+        return schedule(new Callable<String>() {
+            public String call() throws Exception {
+                return session.findPackage(title);
+            }
+        });
+    }
+
+    /**
+     * @see FrsSession#findOrCreatePackage(Package)
+     */
+    public Future<String> findOrCreatePackage(final Package pkg) {
+        return schedule(new Callable<String>() {
+            public String call() throws Exception {
+                return session.findOrCreatePackage(pkg);
+            }
+        });
+    }
+
+    /**
+     * @see FrsSession#findRelease(String, String)
+     */
+    public Future<String> findRelease(final String title, final Future<String> packageId) {
+        return schedule(new Callable<String>() {
+            public String call() throws Exception {
+                return session.findRelease(title, get(packageId));
+            }
+        }, packageId);
+    }
+
+    /**
+     * @see FrsSession#findOrCreateRelease(Release, String)
+     */
+    public Future<String> findOrCreateRelease(final Release release, final Future<String> packageId) {
+        return schedule(new Callable<String>() {
+            public String call() throws Exception {
+                return session.findOrCreateRelease(release, get(packageId));
+            }
+        }, packageId);
+    }
+
+    /**
+     * @see FrsSession#indexReleaseFiles(String)
+     */
+    public Future<ReleaseFileIndex> indexReleaseFiles(final Future<String> releaseId) {
+        return schedule(new Callable<ReleaseFileIndex>() {
+            public ReleaseFileIndex call() throws Exception {
+                return session.indexReleaseFiles(get(releaseId));
+            }
+        }, releaseId);
+    }
+
+    /**
+     * Upload a file to a release, overwriting it if it is in the index of existing files.
+     *
+     * @param releaseId     the ID of the release to upload the file to
+     * @param file          the file to upload
+     * @param existingFiles the index of files in the release, or <code>null</code> not to overwrite existing files
+     * @return the result of the upload
+     * @see FrsSession#upload(String, java.net.URL, String, ReleaseFileIndex)
+     */
+    public Future<UploadResult> upload(final Future<String> releaseId, final File file,
+                                       final Future<ReleaseFileIndex> existingFiles) {
+        return schedule(new Callable<UploadResult>() {
+            public UploadResult call() throws Exception {
+                ReleaseFileIndex index = existingFiles != null ? get(existingFiles) : null;
+                return session.upload(get(releaseId), file.toURI().toURL(), file.getName(), index);
+            }
+        }, releaseId, existingFiles);
+    }
+
+    /**
+     * @see FrsSession#uploadFiles(String, java.util.Collection, boolean, int)
+     */
+    public Future<BatchUploadResult> uploadFiles(final Future<String> releaseId, final Collection<File> files,
+                                                 final boolean overwrite, final int parallelism) {
+        return schedule(new Callable<BatchUploadResult>() {
+            public BatchUploadResult call() throws Exception {
+                return session.uploadFiles(get(releaseId), files, overwrite, parallelism);
+            }
+        }, releaseId);
+    }
+
+    /**
+     * Submit an operation to the executor once the operations it depends on have completed.
+     *
+     * @param task     the operation
+     * @param upstream the results the operation depends on, any of which may be <code>null</code>
+     * @return the result of the operation
+     */
+    private <T> Future<T> schedule(Callable<T> task, Future<?>... upstream) {
+        final Operation<T> operation = new Operation<T>(task);
+        final AtomicInteger remaining = new AtomicInteger(upstream.length + 1);
+        Runnable submit = new Runnable() {
+            public void run() {
+                if (remaining.decrementAndGet() == 0) {
+                    try {
+                        executor.execute(operation);
+                    } catch (RejectedExecutionException e) {
+                        operation.fail(e);
+                    }
+                }
+            }
+        };
+        for (Future<?> future : upstream) {
+            if (future instanceof Operation) {
+                ((Operation<?>) future).whenDone(submit);
+            } else {
+                submit.run();
+            }
+        }
+        submit.run();
+        return operation;
+    }
+
+    /**
+     * The result of an operation, which submits the operations waiting for it when it completes.
+     */
+    private static class Operation<T> extends FutureTask<T> {
+        private List<Runnable> dependents = new ArrayList<Runnable>();
+
+        Operation(Callable<T> task) {
+            super(task);
+        }
+
+        /**
+         * Run an action once the operation has completed, or straight away if it already has.
+         */
+        void whenDone(Runnable action) {
+            synchronized (this) {
+                if (dependents != null) {
+                    dependents.add(action);
+                    return;
+                }
+            }
+            action.run();
+        }
+
+        void fail(Throwable failure) {
+            setException(failure);
+        }
+
+        @Override
+        protected void done() {
+            List<Runnable> actions;
+            synchronized (this) {
+                actions = dependents;
+                dependents = null;
+            }
+            for (Runnable action : actions) {
+                action.run();
+            }
+        }
+    }
+
+    /**
+     * Wrap a value that is already known, such as the ID of a release found earlier, for an operation that expects
+     * the result of another.
+     *
+     * @param value the value
+     * @return a future that has completed with the value
+     */
+    public static <T> Future<T> completed(T value) {
+        FutureTask<T> future = new FutureTask<T>(new Runnable() {
+            public void run() {
+            }
+        }, value);
+        future.run();
+        return future;
+    }
+
+    /**
+     * Wait for the result of an operation, rethrowing its failure as it would have been thrown by the session.
+     *
+     * @param future the result of an operation
+     * @return the value of the operation
+     * @throws RemoteException           if there was a problem communicating with TeamForge
+     * @throws ResourceNotFoundException if a package or release could not be found
+     */
+    public static <T> T get(Future<T> future) throws RemoteException, ResourceNotFoundException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for TeamForge", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RemoteException) {
+                throw (RemoteException) cause;
+            } else if (cause instanceof ResourceNotFoundException) {
+                throw (ResourceNotFoundException) cause;
+            } else if (cause instanceof MalformedURLException) {
+                throw new IllegalArgumentException(cause.getLocalizedMessage(), cause);
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+}
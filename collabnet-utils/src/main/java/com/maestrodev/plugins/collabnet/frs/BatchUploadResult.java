@@ -0,0 +1,94 @@
+package com.maestrodev.plugins.collabnet.frs;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of uploading a batch of files to a release. Results are kept in the same order as the files were
+ * supplied, regardless of the order in which the uploads completed.
+ */
+public class BatchUploadResult {
+    private final List<UploadResult> results;
+
+    public BatchUploadResult(List<UploadResult> results) {
+        this.results = Collections.unmodifiableList(new ArrayList<UploadResult>(results));
+    }
+
+    public List<UploadResult> getResults() {
+        return results;
+    }
+
+    /**
+     * @return the results of the uploads that failed
+     */
+    public List<UploadResult> getFailures() {
+        List<UploadResult> failures = new ArrayList<UploadResult>();
+        for (UploadResult result : results) {
+            if (!result.isSuccessful()) {
+                failures.add(result);
+            }
+        }
+        return failures;
+    }
+
+    public boolean hasFailures() {
+        return !getFailures().isEmpty();
+    }
+
+    /**
+     * @return the FRS IDs of the files in the release, whether they were uploaded or skipped as unchanged
+     */
+    public List<String> getFileIds() {
+        List<String> fileIds = new ArrayList<String>(results.size());
+        for (UploadResult result : results) {
+            if (result.isSuccessful()) {
+                fileIds.add(result.getFileId());
+            }
+        }
+        return fileIds;
+    }
+
+    /**
+     * @return the names of the files that were not uploaded because the release already contains identical content
+     */
+    public List<String> getSkippedNames() {
+        List<String> names = new ArrayList<String>();
+        for (UploadResult result : results) {
+            if (result.isSkipped()) {
+                names.add(result.getName());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Describe all of the failures in the batch in a single message, one line per failed file.
+     *
+     * @return the message, or an empty string if there were no failures
+     */
+    public String getErrorSummary() {
+        StringBuilder sb = new StringBuilder();
+        for (UploadResult result : getFailures()) {
+            sb.append("Unable to upload '").append(result.getName()).append("': ");
+            sb.append(result.getError().getLocalizedMessage()).append("\n");
+        }
+        return sb.toString();
+    }
+}
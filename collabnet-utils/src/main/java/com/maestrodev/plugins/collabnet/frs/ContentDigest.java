@@ -0,0 +1,105 @@
+package com.maestrodev.plugins.collabnet.frs;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+/**
+ * The size and SHA-1 digest of some content, used to tell whether a file in a release is the same as the one about to
+ * be uploaded.
+ */
+public class ContentDigest {
+    private final long size;
+
+    private final String sha1;
+
+    ContentDigest(long size, String sha1) {
+        this.size = size;
+        this.sha1 = sha1;
+    }
+
+    /**
+     * Read the content of an URL to calculate its digest.
+     *
+     * @param url the URL to read
+     * @return the digest
+     * @throws IOException if the content could not be read
+     */
+    public static ContentDigest of(URL url) throws IOException {
+        MessageDigest digest = newSha1();
+        long size = 0;
+        InputStream is = url.openStream();
+        try {
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = is.read(buf)) != -1) {
+                digest.update(buf, 0, n);
+                size += n;
+            }
+        } finally {
+            is.close();
+        }
+        return of(size, digest);
+    }
+
+    /**
+     * The digest published alongside some content, such as a <code>.sha1</code> file in a Maven repository, whose
+     * size is not known until it is read.
+     *
+     * @param sha1 the SHA-1 digest, in hex
+     * @return the digest
+     */
+    public static ContentDigest published(String sha1) {
+        return new ContentDigest(-1, sha1.toLowerCase(Locale.ENGLISH));
+    }
+
+    static MessageDigest newSha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not supported by this JVM", e);
+        }
+    }
+
+    /**
+     * Complete the digest of content that has been read elsewhere, such as while it was uploaded.
+     */
+    static ContentDigest of(long size, MessageDigest digest) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return new ContentDigest(size, sb.toString());
+    }
+
+    /**
+     * @return the size of the content, or <code>-1</code> if it is not known
+     */
+    public long getSize() {
+        return size;
+    }
+
+    public String getSha1() {
+        return sha1;
+    }
+}
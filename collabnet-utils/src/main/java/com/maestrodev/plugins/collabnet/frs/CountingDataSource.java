@@ -0,0 +1,142 @@
+package com.maestrodev.plugins.collabnet.frs;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.maestrodev.plugins.collabnet.metrics.UploadProgressTracker;
+import com.maestrodev.plugins.collabnet.transport.BandwidthLimiter;
+
+import javax.activation.DataSource;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A data source that counts the bytes read from the most recent stream it opened, to measure how much was sent when
+ * it is uploaded, and optionally reports the count as it grows. Reads are held back to the rate allowed by the
+ * bandwidth limiter. If asked to, it also calculates the digest of what was read, so that the content does not have to
+ * be fetched a second time to find it.
+ */
+class CountingDataSource implements DataSource {
+    private final DataSource source;
+
+    private final AtomicLong bytesRead = new AtomicLong();
+
+    private final UploadProgressTracker tracker;
+
+    private final BandwidthLimiter limiter;
+
+    private final MessageDigest digest;
+
+    private volatile boolean digestValid;
+
+    CountingDataSource(DataSource source, UploadProgressTracker tracker, BandwidthLimiter limiter, boolean digest) {
+        this.source = source;
+        this.tracker = tracker;
+        this.limiter = limiter;
+        this.digest = digest ? ContentDigest.newSha1() : null;
+    }
+
+    long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    /**
+     * @return the digest of the content read from the most recent stream, or <code>null</code> if it was not
+     *         calculated or part of the content was skipped
+     */
+    ContentDigest getDigest() {
+        if (digest == null || !digestValid) {
+            return null;
+        }
+        synchronized (digest) {
+            return ContentDigest.of(bytesRead.get(), digest);
+        }
+    }
+
+    public String getContentType() {
+        return source.getContentType();
+    }
+
+    public InputStream getInputStream() throws IOException {
+        // restart the count, as a retried upload reads the content again
+        bytesRead.set(0);
+        if (digest != null) {
+            synchronized (digest) {
+                digest.reset();
+                digestValid = true;
+            }
+        }
+        return new FilterInputStream(source.getInputStream()) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b != -1) {
+                    limiter.acquire(1);
+                    if (digest != null) {
+                        synchronized (digest) {
+                            digest.update((byte) b);
+                        }
+                    }
+                    counted(bytesRead.incrementAndGet());
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) {
+                    limiter.acquire(n);
+                    if (digest != null) {
+                        synchronized (digest) {
+                            digest.update(b, off, n);
+                        }
+                    }
+                    counted(bytesRead.addAndGet(n));
+                }
+                return n;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = super.skip(n);
+                if (skipped > 0) {
+                    digestValid = false;
+                }
+                counted(bytesRead.addAndGet(skipped));
+                return skipped;
+            }
+        };
+    }
+
+    private void counted(long bytes) {
+        if (tracker != null) {
+            tracker.update(bytes);
+        }
+    }
+
+    public String getName() {
+        return source.getName();
+    }
+
+    public OutputStream getOutputStream() throws IOException {
+        return source.getOutputStream();
+    }
+}
@@ -17,6 +17,9 @@ package com.maestrodev.plugins.collabnet.frs;
  */
 
 import com.collabnet.ce.soap60.webservices.filestorage.IFileStorageAppSoap;
+import com.collabnet.ce.soap60.webservices.filestorage.ISimpleFileStorageAppSoap;
+import com.collabnet.ce.soap60.webservices.frs.FrsFileSoapDO;
+import com.collabnet.ce.soap60.webservices.frs.FrsFileSoapList;
 import com.collabnet.ce.soap60.webservices.frs.FrsFileSoapRow;
 import com.collabnet.ce.soap60.webservices.frs.IFrsAppSoap;
 import com.collabnet.ce.soap60.webservices.frs.PackageSoapDO;
@@ -25,38 +28,283 @@ import com.collabnet.ce.soap60.webservices.frs.PackageSoapRow;
 import com.collabnet.ce.soap60.webservices.frs.ReleaseSoapDO;
 import com.collabnet.ce.soap60.webservices.frs.ReleaseSoapList;
 import com.collabnet.ce.soap60.webservices.frs.ReleaseSoapRow;
+import com.maestrodev.plugins.collabnet.IdCache;
 import com.maestrodev.plugins.collabnet.ResourceNotFoundException;
 import com.maestrodev.plugins.collabnet.log.Log;
+import com.maestrodev.plugins.collabnet.metrics.CompositeMetrics;
+import com.maestrodev.plugins.collabnet.metrics.FrsMetrics;
+import com.maestrodev.plugins.collabnet.metrics.UploadProgressListener;
+import com.maestrodev.plugins.collabnet.metrics.UploadProgressTracker;
+import com.maestrodev.plugins.collabnet.retry.CircuitBreaker;
+import com.maestrodev.plugins.collabnet.retry.CircuitOpenException;
+import com.maestrodev.plugins.collabnet.retry.ExponentialBackoffRetryPolicy;
+import com.maestrodev.plugins.collabnet.retry.RetryPolicy;
+import com.maestrodev.plugins.collabnet.retry.RetryingInvoker;
+import com.maestrodev.plugins.collabnet.retry.SessionRenewer;
+import com.maestrodev.plugins.collabnet.retry.SoapCall;
+import com.maestrodev.plugins.collabnet.transport.BandwidthLimiter;
 
 import javax.activation.DataHandler;
+import javax.activation.URLDataSource;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.rmi.RemoteException;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 
 /**
  * Create a session interacting with File Releases within a particular
  * {@linkplain com.maestrodev.plugins.collabnet.CollabNetSession}.
+ *
+ * Once configured, a session can be used by several threads at once. Uploads of different files run in parallel, while
+ * overwrites of the same filename in the same release, which take several calls to TeamForge, are made one at a time.
+ * The setters should be called before the session is shared.
  */
 public class FrsSession {
     private final IFrsAppSoap frsAppSoap;
 
     private final IFileStorageAppSoap fileStorageAppSoap;
 
-    private final String sessionId;
+    private final ISimpleFileStorageAppSoap simpleFileStorageAppSoap;
+
+    /**
+     * The ID of the TeamForge session, which is replaced if the session expires and is renewed.
+     */
+    private volatile String sessionId;
 
     private final String projectId;
 
     private final Log log;
 
+    /**
+     * Package titles mapped to IDs for the project, as last listed or created in this session.
+     */
+    private final Map<String, String> packageIds = new LinkedHashMap<String, String>();
+
+    /**
+     * Release titles mapped to IDs for each package, as last listed or created in this session.
+     */
+    private final Map<String, Map<String, String>> releaseIds = new HashMap<String, Map<String, String>>();
+
+    /**
+     * Finds or creates of packages and releases in progress, so that concurrent requests for the same one share a
+     * single call to TeamForge.
+     */
+    private final Map<String, FutureTask<String>> pendingFinds = new HashMap<String, FutureTask<String>>();
+
+    /**
+     * Serializes the deleting and creating of files with the same name in the same release.
+     */
+    private final StripedLocks fileLocks = new StripedLocks(64);
+
+    /**
+     * The ID of each file this session has created, or an empty string for each it has deleted, keyed by release and
+     * filename. These take precedence over the indexes passed to the upload methods, which may have been taken before
+     * another thread replaced the file. Only the uploads in progress can hold such an index, so the entries are
+     * cleared whenever the last of them finishes.
+     */
+    private final Map<String, String> changedFiles = new ConcurrentHashMap<String, String>();
+
+    /**
+     * The number of uploads and batches in progress, guarded by {@link #changedFiles}.
+     */
+    private int uploadsInProgress;
+
+    private IdCache idCache;
+
+    private boolean skipUnchanged;
+
+    private int uploadChunkSize;
+
+    private String idCacheUrl;
+
+    private int cacheHits;
+
+    private int cacheMisses;
+
+    private RetryPolicy retryPolicy = RetryPolicy.NEVER;
+
+    private CircuitBreaker circuitBreaker;
+
+    private FrsMetrics metrics = FrsMetrics.NONE;
+
+    /**
+     * The listener given to {@linkplain #setMetrics(FrsMetrics)}, which {@link #metrics} also reports to the
+     * concurrency limit.
+     */
+    private FrsMetrics metricsListener = FrsMetrics.NONE;
+
+    private AdaptiveConcurrencyLimit concurrencyLimit;
+
+    private RetryingInvoker invoker;
+
+    private SessionRenewer sessionRenewer;
+
+    private UploadProgressListener progressListener = UploadProgressListener.NONE;
+
+    private long progressInterval;
+
+    private BandwidthLimiter bandwidthLimiter = BandwidthLimiter.getShared();
+
     public FrsSession(IFrsAppSoap frsAppSoap, IFileStorageAppSoap fileStorageAppSoap, String sessionId, String projectId, Log log) {
+        this(frsAppSoap, fileStorageAppSoap, null, sessionId, projectId, log);
+    }
+
+    public FrsSession(IFrsAppSoap frsAppSoap, IFileStorageAppSoap fileStorageAppSoap,
+                      ISimpleFileStorageAppSoap simpleFileStorageAppSoap, String sessionId, String projectId, Log log) {
         this.frsAppSoap = frsAppSoap;
         this.fileStorageAppSoap = fileStorageAppSoap;
+        this.simpleFileStorageAppSoap = simpleFileStorageAppSoap;
         this.sessionId = sessionId;
         this.projectId = projectId;
         this.log = log;
+        this.invoker = newInvoker();
+    }
+
+    /**
+     * Use a persistent cache to avoid listing packages and releases that were found in a previous session. Cached IDs
+     * are checked by retrieving the single package or release they refer to, and are discarded if TeamForge rejects
+     * them or their title has changed.
+     *
+     * @param idCache      the cache to use, or <code>null</code> to disable it
+     * @param teamForgeUrl the URL of the TeamForge instance, to distinguish the IDs of different servers in the cache
+     */
+    public void setIdCache(IdCache idCache, String teamForgeUrl) {
+        this.idCache = idCache;
+        this.idCacheUrl = teamForgeUrl;
+    }
+
+    /**
+     * Skip uploading files that are identical to the file of the same name already in the release, when overwriting.
+     * A file is considered identical if it has the same size, and the same SHA-1 digest as was recorded when it was
+     * uploaded. Digests are recorded in the {@linkplain #setIdCache(IdCache, String) ID cache}, so this has no effect
+     * unless one is configured. Local files are read to find their digest before they are uploaded; other URLs are
+     * only read once, so they are skipped only if a digest is published for them.
+     *
+     * @param skipUnchanged whether to skip unchanged files
+     */
+    public void setSkipUnchanged(boolean skipUnchanged) {
+        this.skipUnchanged = skipUnchanged;
+    }
+
+    /**
+     * Stream uploaded files to TeamForge in chunks of the given size, rather than as a single SOAP attachment. Only
+     * one chunk of each file is held in memory at a time, so this should be used for files that are large in
+     * comparison to the available heap. The default of <code>0</code> sends each file as an attachment.
+     *
+     * @param uploadChunkSize the size of each chunk in bytes, or <code>0</code> to send each file as an attachment
+     */
+    public void setUploadChunkSize(int uploadChunkSize) {
+        this.uploadChunkSize = uploadChunkSize;
+    }
+
+    /**
+     * Retry calls that fail for reasons likely to be temporary, and stop calling TeamForge once it is clearly
+     * unavailable. Only calls that can safely be repeated are retried - lists, lookups and uploads to file storage.
+     * Creating and deleting packages, releases and files are attempted once, but are still subject to the circuit
+     * breaker. By default no calls are retried.
+     *
+     * @param retryPolicy    the policy for retrying failed calls
+     * @param circuitBreaker the circuit breaker to check before each call, or <code>null</code> to always call
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy, CircuitBreaker circuitBreaker) {
+        this.retryPolicy = retryPolicy;
+        this.circuitBreaker = circuitBreaker;
+        this.invoker = newInvoker();
+    }
+
+    /**
+     * Log in again if TeamForge expires the session while it is in use, and repeat the call that was rejected. By
+     * default a call rejected because the session expired fails.
+     *
+     * @param sessionRenewer the source of new sessions, or <code>null</code> to not renew the session
+     */
+    public void setSessionRenewer(SessionRenewer sessionRenewer) {
+        this.sessionRenewer = sessionRenewer;
+        this.invoker = newInvoker();
+    }
+
+    private RetryingInvoker newInvoker() {
+        final SessionRenewer renewer = sessionRenewer;
+        return new RetryingInvoker(retryPolicy, circuitBreaker, metrics, log) {
+            @Override
+            protected boolean renewSession() throws RemoteException {
+                if (renewer == null) {
+                    return false;
+                }
+                String renewed = renewer.renewSession(sessionId);
+                if (renewed == null) {
+                    return false;
+                }
+                sessionId = renewed;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Report the time taken by each call to TeamForge, and the size and duration of each file upload, to a listener.
+     *
+     * @param metrics the listener to report to
+     */
+    public void setMetrics(FrsMetrics metrics) {
+        this.metricsListener = metrics;
+        this.metrics = concurrencyLimit != null ? new CompositeMetrics(metrics, concurrencyLimit) : metrics;
+        this.invoker = newInvoker();
+    }
+
+    /**
+     * Adjust the number of files sent to file storage at once to the load TeamForge is under, rather than using the
+     * fixed parallelism given to {@linkplain #uploadFiles(String, Collection, boolean, int)} and
+     * {@linkplain #uploadFilesToReleases(List, List, boolean, int)}. The batch uploads start enough threads for the
+     * limit's maximum.
+     *
+     * @param concurrencyLimit the limit to apply, or <code>null</code> to use the fixed parallelism
+     */
+    public void setAdaptiveConcurrency(AdaptiveConcurrencyLimit concurrencyLimit) {
+        this.concurrencyLimit = concurrencyLimit;
+        setMetrics(metricsListener);
+    }
+
+    /**
+     * Report the progress of each file upload that takes longer than the interval, at most once per interval. By
+     * default progress is not reported.
+     *
+     * @param progressListener the listener to report to
+     * @param intervalMillis   the minimum time in milliseconds between reports for each file
+     */
+    public void setProgressListener(UploadProgressListener progressListener, long intervalMillis) {
+        this.progressListener = progressListener;
+        this.progressInterval = intervalMillis;
+    }
+
+    /**
+     * Limit the rate at which this session uploads files, within the limit shared by all uploads in the process (see
+     * {@link BandwidthLimiter}). Concurrent uploads in the session share the limit.
+     *
+     * @param bytesPerSecond the maximum rate in bytes per second, or <code>0</code> for only the shared limit
+     */
+    public void setBandwidthLimit(long bytesPerSecond) {
+        this.bandwidthLimiter = BandwidthLimiter.create(bytesPerSecond, BandwidthLimiter.getShared());
     }
 
     /**
@@ -68,18 +316,23 @@ public class FrsSession {
      * @return the release ID
      * @throws RemoteException if there was a problem communicating with TeamForge
      */
-    public String findOrCreateRelease(Release release, String packageId) throws RemoteException {
-        String releaseId;
-        try {
-            releaseId = findRelease(release.getTitle(), packageId);
-        } catch (ResourceNotFoundException e) {
-            releaseId = createRelease(release, packageId);
-        }
-        return releaseId;
+    public String findOrCreateRelease(final Release release, final String packageId) throws RemoteException {
+        return findOnce("release:" + packageId + ":" + release.getTitle(), new Callable<String>() {
+            public String call() throws RemoteException {
+                String releaseId;
+                try {
+                    releaseId = findRelease(release.getTitle(), packageId);
+                } catch (ResourceNotFoundException e) {
+                    releaseId = createRelease(release, packageId);
+                }
+                return releaseId;
+            }
+        });
     }
 
     /**
-     * Find a particular release within the given package.
+     * Find a particular release within the given package. Releases already seen in this session are returned without
+     * contacting TeamForge - use {@link #refreshCache()} if they may have been changed by another client.
      *
      * @param title     the title of the release to search for
      * @param packageId the package to find the release within
@@ -87,26 +340,40 @@ public class FrsSession {
      * @throws RemoteException           if there was a problem communicating with TeamForge
      * @throws ResourceNotFoundException if a release with that title does not exist. The exception message will list the available releases.
      */
-    public String findRelease(String title, String packageId) throws RemoteException, ResourceNotFoundException {
-        String releaseId = null;
+    public String findRelease(String title, final String packageId) throws RemoteException, ResourceNotFoundException {
+        String releaseId = getCachedId(getReleaseCache(packageId), title);
+        if (releaseId != null) {
+            return releaseId;
+        }
 
-        ReleaseSoapList releaseList = frsAppSoap.getReleaseList(sessionId, packageId);
-        ReleaseSoapRow[] releaseRows = releaseList.getDataRows();
+        releaseId = findPersistentRelease(title, packageId);
+        if (releaseId != null) {
+            addToCache(getReleaseCache(packageId), title, releaseId);
+            countCacheLookup(true);
+            return releaseId;
+        }
+        countCacheLookup(false);
 
-        for (ReleaseSoapRow row : releaseRows) {
-            if (row.getTitle().equals(title)) {
-                releaseId = row.getId();
-                log.debug("Found release '" + releaseId + "'");
-                break;
+        ReleaseSoapList releaseList = invoker.invoke("getReleaseList", true, new SoapCall<ReleaseSoapList>() {
+            public ReleaseSoapList call() throws RemoteException {
+                return frsAppSoap.getReleaseList(sessionId, packageId);
+            }
+        });
+        Map<String, String> releases = new LinkedHashMap<String, String>();
+        for (ReleaseSoapRow row : releaseList.getDataRows()) {
+            if (!releases.containsKey(row.getTitle())) {
+                releases.put(row.getTitle(), row.getId());
             }
         }
+        updateCache(getReleaseCache(packageId), releases);
 
+        releaseId = releases.get(title);
         if (releaseId == null) {
-            List<String> releases = new ArrayList<String>();
-            for (ReleaseSoapRow row : releaseRows) {
-                releases.add(row.getTitle());
-            }
-            throw new ResourceNotFoundException("Unable to find release '" + title + "' in available releases: " + releases);
+            throw new ResourceNotFoundException("Unable to find release '" + title + "' in available releases: " + releases.keySet());
+        }
+        log.debug("Found release '" + releaseId + "'");
+        if (idCache != null) {
+            idCache.put(releaseKey(title, packageId), releaseId);
         }
 
         return releaseId;
@@ -120,18 +387,67 @@ public class FrsSession {
      * @return the package ID
      * @throws RemoteException if there was a problem communicating with TeamForge
      */
-    public String findOrCreatePackage(Package pkg) throws RemoteException {
-        String packageId;
+    public String findOrCreatePackage(final Package pkg) throws RemoteException {
+        return findOnce("package:" + pkg.getTitle(), new Callable<String>() {
+            public String call() throws RemoteException {
+                String packageId;
+                try {
+                    packageId = findPackage(pkg.getTitle());
+                } catch (ResourceNotFoundException e) {
+                    packageId = createPackage(pkg);
+                }
+                return packageId;
+            }
+        });
+    }
+
+    /**
+     * Run a find or create, unless the same one is already running in another thread, in which case wait for its
+     * result instead. This stops concurrent deploys sharing the session from creating duplicate packages or releases.
+     */
+    private String findOnce(String key, Callable<String> find) throws RemoteException {
+        FutureTask<String> task;
+        boolean owner = false;
+        synchronized (pendingFinds) {
+            task = pendingFinds.get(key);
+            if (task == null) {
+                task = new FutureTask<String>(find);
+                pendingFinds.put(key, task);
+                owner = true;
+            }
+        }
+
+        if (owner) {
+            try {
+                task.run();
+            } finally {
+                synchronized (pendingFinds) {
+                    pendingFinds.remove(key);
+                }
+            }
+        }
+
         try {
-            packageId = findPackage(pkg.getTitle());
-        } catch (ResourceNotFoundException e) {
-            packageId = createPackage(pkg);
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for TeamForge", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RemoteException) {
+                throw (RemoteException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
         }
-        return packageId;
     }
 
     /**
-     * Find a particular package within the project.
+     * Find a particular package within the project. Packages already seen in this session are returned without
+     * contacting TeamForge - use {@link #refreshCache()} if they may have been changed by another client.
      *
      * @param title the title of the package to search for
      * @return the package ID
@@ -139,30 +455,166 @@ public class FrsSession {
      * @throws ResourceNotFoundException if a package with that title does not exist. The exception message will list the available packages.
      */
     public String findPackage(String title) throws ResourceNotFoundException, RemoteException {
-        String packageId = null;
+        String packageId = getCachedId(packageIds, title);
+        if (packageId != null) {
+            return packageId;
+        }
 
-        PackageSoapList packageList = frsAppSoap.getPackageList(sessionId, projectId);
-        PackageSoapRow[] packageRows = packageList.getDataRows();
+        packageId = findPersistentPackage(title);
+        if (packageId != null) {
+            addToCache(packageIds, title, packageId);
+            countCacheLookup(true);
+            return packageId;
+        }
+        countCacheLookup(false);
 
-        for (PackageSoapRow row : packageRows) {
-            if (row.getTitle().equals(title)) {
-                packageId = row.getId();
-                log.debug("Found package '" + packageId + "'");
-                break;
+        PackageSoapList packageList = invoker.invoke("getPackageList", true, new SoapCall<PackageSoapList>() {
+            public PackageSoapList call() throws RemoteException {
+                return frsAppSoap.getPackageList(sessionId, projectId);
+            }
+        });
+        Map<String, String> packages = new LinkedHashMap<String, String>();
+        for (PackageSoapRow row : packageList.getDataRows()) {
+            if (!packages.containsKey(row.getTitle())) {
+                packages.put(row.getTitle(), row.getId());
             }
         }
+        updateCache(packageIds, packages);
 
+        packageId = packages.get(title);
         if (packageId == null) {
-            List<String> packages = new ArrayList<String>();
-            for (PackageSoapRow row : packageRows) {
-                packages.add(row.getTitle());
-            }
-            throw new ResourceNotFoundException("Unable to find package '" + title + "' in available packages: " + packages);
+            throw new ResourceNotFoundException("Unable to find package '" + title + "' in available packages: " + packages.keySet());
+        }
+        log.debug("Found package '" + packageId + "'");
+        if (idCache != null) {
+            idCache.put(packageKey(title), packageId);
         }
 
         return packageId;
     }
 
+    /**
+     * Discard all package and release IDs remembered by this session, so that the next lookup lists them from
+     * TeamForge again.
+     */
+    public synchronized void refreshCache() {
+        packageIds.clear();
+        releaseIds.clear();
+    }
+
+    /**
+     * @return the number of package and release lookups that were answered from the session cache or the persistent
+     *         ID cache, without listing them from TeamForge
+     */
+    public synchronized int getCacheHits() {
+        return cacheHits;
+    }
+
+    /**
+     * @return the number of package and release lookups that needed to list them from TeamForge
+     */
+    public synchronized int getCacheMisses() {
+        return cacheMisses;
+    }
+
+    private String findPersistentPackage(String title) {
+        if (idCache == null) {
+            return null;
+        }
+        String key = packageKey(title);
+        final String packageId = idCache.get(key);
+        if (packageId == null) {
+            return null;
+        }
+        try {
+            PackageSoapDO p = invoker.invoke("getPackageData", true, new SoapCall<PackageSoapDO>() {
+                public PackageSoapDO call() throws RemoteException {
+                    return frsAppSoap.getPackageData(sessionId, packageId);
+                }
+            });
+            if (title.equals(p.getTitle())) {
+                log.debug("Found package '" + packageId + "' in ID cache");
+                return packageId;
+            }
+        } catch (RemoteException e) {
+            log.debug("Cached package ID '" + packageId + "' was rejected: " + e.getLocalizedMessage());
+        }
+        idCache.remove(key);
+        return null;
+    }
+
+    private String findPersistentRelease(String title, String packageId) {
+        if (idCache == null) {
+            return null;
+        }
+        String key = releaseKey(title, packageId);
+        final String releaseId = idCache.get(key);
+        if (releaseId == null) {
+            return null;
+        }
+        try {
+            ReleaseSoapDO r = invoker.invoke("getReleaseData", true, new SoapCall<ReleaseSoapDO>() {
+                public ReleaseSoapDO call() throws RemoteException {
+                    return frsAppSoap.getReleaseData(sessionId, releaseId);
+                }
+            });
+            if (title.equals(r.getTitle())) {
+                log.debug("Found release '" + releaseId + "' in ID cache");
+                return releaseId;
+            }
+        } catch (RemoteException e) {
+            log.debug("Cached release ID '" + releaseId + "' was rejected: " + e.getLocalizedMessage());
+        }
+        idCache.remove(key);
+        return null;
+    }
+
+    private String packageKey(String title) {
+        return IdCache.key(idCacheUrl, projectId, "package", title);
+    }
+
+    private String releaseKey(String title, String packageId) {
+        return IdCache.key(idCacheUrl, packageId, "release", title);
+    }
+
+    private synchronized Map<String, String> getReleaseCache(String packageId) {
+        Map<String, String> releases = releaseIds.get(packageId);
+        if (releases == null) {
+            releases = new LinkedHashMap<String, String>();
+            releaseIds.put(packageId, releases);
+        }
+        return releases;
+    }
+
+    private synchronized String getCachedId(Map<String, String> cache, String title) {
+        String id = cache.get(title);
+        if (id != null) {
+            cacheHits++;
+            log.debug("Found '" + title + "' in session cache (id: " + id + ")");
+        }
+        return id;
+    }
+
+    /**
+     * Count a lookup missed by the session cache, once the persistent ID cache has been checked as well.
+     */
+    private synchronized void countCacheLookup(boolean persistentHit) {
+        if (persistentHit) {
+            cacheHits++;
+        } else {
+            cacheMisses++;
+        }
+    }
+
+    private synchronized void updateCache(Map<String, String> cache, Map<String, String> ids) {
+        cache.clear();
+        cache.putAll(ids);
+    }
+
+    private synchronized void addToCache(Map<String, String> cache, String title, String id) {
+        cache.put(title, id);
+    }
+
     /**
      * Create a new release.
      *
@@ -170,10 +622,18 @@ public class FrsSession {
      * @return the release ID
      * @throws RemoteException if there was a problem communicating with TeamForge
      */
-    public String createRelease(Release release, String packageId) throws RemoteException {
-        ReleaseSoapDO r = frsAppSoap.createRelease(sessionId, packageId, release.getTitle(), release.getDescription(),
-                release.getStatus(), release.getMaturity());
+    public String createRelease(final Release release, final String packageId) throws RemoteException {
+        ReleaseSoapDO r = invoker.invoke("createRelease", false, new SoapCall<ReleaseSoapDO>() {
+            public ReleaseSoapDO call() throws RemoteException {
+                return frsAppSoap.createRelease(sessionId, packageId, release.getTitle(), release.getDescription(),
+                        release.getStatus(), release.getMaturity());
+            }
+        });
         String releaseId = r.getId();
+        addToCache(getReleaseCache(packageId), release.getTitle(), releaseId);
+        if (idCache != null) {
+            idCache.put(releaseKey(release.getTitle(), packageId), releaseId);
+        }
         log.info("Created release '" + release.getTitle() + "' (id: " + releaseId + ")");
         return releaseId;
     }
@@ -185,9 +645,17 @@ public class FrsSession {
      * @return the package ID
      * @throws RemoteException if there was a problem communicating with TeamForge
      */
-    public String createPackage(Package pkg) throws RemoteException {
-        PackageSoapDO p = frsAppSoap.createPackage(sessionId, projectId, pkg.getTitle(), pkg.getDescription(), true);
+    public String createPackage(final Package pkg) throws RemoteException {
+        PackageSoapDO p = invoker.invoke("createPackage", false, new SoapCall<PackageSoapDO>() {
+            public PackageSoapDO call() throws RemoteException {
+                return frsAppSoap.createPackage(sessionId, projectId, pkg.getTitle(), pkg.getDescription(), true);
+            }
+        });
         String packageId = p.getId();
+        addToCache(packageIds, pkg.getTitle(), packageId);
+        if (idCache != null) {
+            idCache.put(packageKey(pkg.getTitle()), packageId);
+        }
         log.info("Created package '" + pkg.getTitle() + "' (id: " + packageId + ")");
         return packageId;
     }
@@ -208,6 +676,153 @@ public class FrsSession {
         return uploadFileFromUrl(releaseId, file.toURI().toURL(), file.getName(), overwrite);
     }
 
+    /**
+     * Upload a file to a release, overwriting any file of the same name that is present in the given index. The same
+     * caveats on overwriting apply as for {@link #uploadFile(String, java.io.File, boolean)}.
+     *
+     * @param releaseId     the ID of the release to upload the file to
+     * @param file          the file to upload
+     * @param existingFiles the index of files in the release, obtained from {@link #indexReleaseFiles(String)}. If
+     *                      <code>null</code>, existing files are not overwritten and a {@link RemoteException} will be
+     *                      thrown with an error message if the file already exists.
+     * @return the ID of the file
+     * @throws RemoteException       if there was a problem communicating with TeamForge
+     * @throws MalformedURLException if the file could not be converted into an URL
+     */
+    public String uploadFile(String releaseId, File file, ReleaseFileIndex existingFiles) throws RemoteException, MalformedURLException {
+        return uploadFileFromUrl(releaseId, file.toURI().toURL(), file.getName(), existingFiles);
+    }
+
+    /**
+     * Upload a set of files to a release, running up to <code>parallelism</code> uploads at the same time. A failure to
+     * upload one file does not prevent the others from being uploaded - the outcome of each is recorded in the result.
+     * When overwriting, the release is listed once for the whole batch. The same caveats on overwriting apply as for
+     * {@link #uploadFile(String, java.io.File, boolean)}.
+     *
+     * @param releaseId   the ID of the release to upload the files to
+     * @param files       the files to upload
+     * @param overwrite   whether to overwrite the files if they already exist. If <code>false</code>, the upload of any
+     *                    file that already exists will fail.
+     * @param parallelism the maximum number of files to upload concurrently
+     * @return the result of each upload, in the same order as the files were given
+     */
+    public BatchUploadResult uploadFiles(final String releaseId, Collection<File> files, boolean overwrite,
+                                         int parallelism) {
+        uploadStarted();
+        try {
+            return uploadBatch(releaseId, files, overwrite, parallelism);
+        } finally {
+            uploadFinished();
+        }
+    }
+
+    private BatchUploadResult uploadBatch(final String releaseId, Collection<File> files, boolean overwrite,
+                                          int parallelism) {
+        List<UploadResult> results = new ArrayList<UploadResult>(files.size());
+
+        ReleaseFileIndex index = null;
+        if (overwrite && !files.isEmpty()) {
+            try {
+                index = indexReleaseFiles(releaseId);
+            } catch (RemoteException e) {
+                for (File file : files) {
+                    results.add(UploadResult.failure(file.getName(), e));
+                }
+                return new BatchUploadResult(results);
+            }
+        }
+        final ReleaseFileIndex existingFiles = index;
+
+        int threads = Math.min(getUploadThreads(parallelism), files.size());
+        if (threads <= 1) {
+            for (File file : files) {
+                results.add(uploadFileForBatch(releaseId, file, existingFiles));
+            }
+        } else {
+            log.debug("Uploading " + files.size() + " files using " + threads + " threads");
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<UploadResult>> futures = new ArrayList<Future<UploadResult>>(files.size());
+                for (final File file : files) {
+                    futures.add(executor.submit(new Callable<UploadResult>() {
+                        public UploadResult call() {
+                            return uploadFileForBatch(releaseId, file, existingFiles);
+                        }
+                    }));
+                }
+
+                int i = 0;
+                for (File file : files) {
+                    results.add(waitForUpload(file, futures.get(i++)));
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+        return new BatchUploadResult(results);
+    }
+
+    private void uploadStarted() {
+        synchronized (changedFiles) {
+            uploadsInProgress++;
+        }
+    }
+
+    private void uploadFinished() {
+        synchronized (changedFiles) {
+            if (--uploadsInProgress == 0) {
+                changedFiles.clear();
+            }
+        }
+    }
+
+    private int getUploadThreads(int parallelism) {
+        return concurrencyLimit != null ? Math.max(parallelism, concurrencyLimit.getMaxLimit()) : parallelism;
+    }
+
+    private UploadResult uploadFileForBatch(String releaseId, File file, ReleaseFileIndex existingFiles) {
+        log.info("Uploading '" + file + "' to release '" + releaseId + "'");
+        try {
+            return upload(releaseId, file.toURI().toURL(), file.getName(), existingFiles);
+        } catch (RemoteException e) {
+            return UploadResult.failure(file.getName(), e);
+        } catch (MalformedURLException e) {
+            return UploadResult.failure(file.getName(), e);
+        } catch (RuntimeException e) {
+            return UploadResult.failure(file.getName(), e);
+        }
+    }
+
+    private static UploadResult waitForUpload(File file, Future<UploadResult> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return UploadResult.failure(file.getName(), e);
+        } catch (ExecutionException e) {
+            // uploadFileForBatch captures exceptions in the result, so only errors can get here
+            throw (Error) e.getCause();
+        }
+    }
+
+    /**
+     * List the files currently in a release, so that several files can be uploaded with overwriting without listing
+     * the release for each one.
+     *
+     * @param releaseId the ID of the release
+     * @return the index of files in the release
+     * @throws RemoteException if there was a problem communicating with TeamForge
+     */
+    public ReleaseFileIndex indexReleaseFiles(final String releaseId) throws RemoteException {
+        FrsFileSoapRow[] rows = invoker.invoke("getFrsFileList", true, new SoapCall<FrsFileSoapList>() {
+            public FrsFileSoapList call() throws RemoteException {
+                return frsAppSoap.getFrsFileList(sessionId, releaseId);
+            }
+        }).getDataRows();
+        log.debug("Found " + rows.length + " existing files in release '" + releaseId + "'");
+        return new ReleaseFileIndex(releaseId, rows);
+    }
+
     /**
      * Upload a file to a release from an URL. Note that overwriting is not atomic - the release will first be deleted
      * if it exists, and if there is a subsequent problem uploading then the previous release can not be restored.
@@ -220,25 +835,607 @@ public class FrsSession {
      * @throws RemoteException if there was a problem communicating with TeamForge
      */
     public String uploadFileFromUrl(String releaseId, URL url, String name, boolean overwrite) throws RemoteException {
-        DataHandler dh = new DataHandler(url);
-        String id = fileStorageAppSoap.uploadFile(sessionId, dh);
+        return uploadFileFromUrl(releaseId, url, name, overwrite ? indexReleaseFiles(releaseId) : null);
+    }
+
+    /**
+     * Upload a file to a release from an URL, overwriting any file of the same name that is present in the given index.
+     * The same caveats on overwriting apply as for {@link #uploadFileFromUrl(String, java.net.URL, String, boolean)}.
+     *
+     * @param releaseId     the ID of the release to upload the file to
+     * @param url           the URL to upload the file from
+     * @param existingFiles the index of files in the release, obtained from {@link #indexReleaseFiles(String)}. If
+     *                      <code>null</code>, existing files are not overwritten and a {@link RemoteException} will be
+     *                      thrown with an error message if the file already exists.
+     * @return the ID of the file
+     * @throws RemoteException if there was a problem communicating with TeamForge
+     */
+    public String uploadFileFromUrl(String releaseId, URL url, String name, ReleaseFileIndex existingFiles) throws RemoteException {
+        return upload(releaseId, url, name, existingFiles).getFileId();
+    }
+
+    /**
+     * Upload a file to a release from an URL, overwriting any file of the same name that is present in the given index.
+     * If {@linkplain #setSkipUnchanged(boolean) skipping unchanged files} is enabled and the existing file has the same
+     * content, the upload is skipped and the result refers to the existing file.
+     *
+     * @param releaseId     the ID of the release to upload the file to
+     * @param url           the URL to upload the file from
+     * @param existingFiles the index of files in the release, obtained from {@link #indexReleaseFiles(String)}. If
+     *                      <code>null</code>, existing files are not overwritten and a {@link RemoteException} will be
+     *                      thrown with an error message if the file already exists.
+     * @return the result of the upload
+     * @throws RemoteException if there was a problem communicating with TeamForge
+     * @see #uploadFileFromUrl(String, java.net.URL, String, ReleaseFileIndex)
+     */
+    public UploadResult upload(String releaseId, URL url, String name, ReleaseFileIndex existingFiles) throws RemoteException {
+        return upload(releaseId, url, name, null, existingFiles);
+    }
+
+    /**
+     * Upload a file to a release from an URL, with a known content type. The URL is not contacted to determine the
+     * content type, so when {@linkplain #setUploadChunkSize(int) streaming in chunks} the content is only requested
+     * once.
+     *
+     * @param releaseId     the ID of the release to upload the file to
+     * @param url           the URL to upload the file from
+     * @param contentType   the content type of the file, or <code>null</code> to ask the URL for it
+     * @param existingFiles the index of files in the release, obtained from {@link #indexReleaseFiles(String)}. If
+     *                      <code>null</code>, existing files are not overwritten and a {@link RemoteException} will be
+     *                      thrown with an error message if the file already exists.
+     * @return the result of the upload
+     * @throws RemoteException if there was a problem communicating with TeamForge
+     * @see #upload(String, java.net.URL, String, ReleaseFileIndex)
+     */
+    public UploadResult upload(String releaseId, URL url, String name, String contentType,
+                               ReleaseFileIndex existingFiles) throws RemoteException {
+        return upload(releaseId, url, name, contentType, null, existingFiles);
+    }
+
+    /**
+     * Upload a file to a release from an URL, with a known content type and a digest published for the content. When
+     * {@linkplain #setSkipUnchanged(boolean) skipping unchanged files}, the published digest is compared with the
+     * existing file rather than reading the URL an extra time. Without one, only a local file is read in advance; the
+     * content of other URLs is always uploaded, and its digest calculated as it is sent.
+     *
+     * @param releaseId       the ID of the release to upload the file to
+     * @param url             the URL to upload the file from
+     * @param contentType     the content type of the file, or <code>null</code> to ask the URL for it
+     * @param publishedDigest the digest published for the content, or <code>null</code> if there is none
+     * @param existingFiles   the index of files in the release, obtained from {@link #indexReleaseFiles(String)}. If
+     *                        <code>null</code>, existing files are not overwritten and a {@link RemoteException} will
+     *                        be thrown with an error message if the file already exists.
+     * @return the result of the upload
+     * @throws RemoteException if there was a problem communicating with TeamForge
+     */
+    public UploadResult upload(String releaseId, URL url, String name, String contentType,
+                               ContentDigest publishedDigest, ReleaseFileIndex existingFiles) throws RemoteException {
+        uploadStarted();
+        try {
+            return uploadFromUrl(releaseId, url, name, contentType, publishedDigest, existingFiles);
+        } finally {
+            uploadFinished();
+        }
+    }
+
+    private UploadResult uploadFromUrl(String releaseId, URL url, String name, String contentType,
+                                       ContentDigest publishedDigest, ReleaseFileIndex existingFiles)
+            throws RemoteException {
+        boolean recordDigest = skipUnchanged && idCache != null;
+        ContentDigest digest = null;
+        if (recordDigest) {
+            digest = publishedDigest;
+            if (digest == null && "file".equals(url.getProtocol())) {
+                digest = digest(url);
+            }
+            if (digest != null && existingFiles != null && isUnchanged(existingFiles, name, digest)) {
+                log.info("Skipping '" + name + "' as it is unchanged in release '" + releaseId + "'");
+                return UploadResult.skipped(name, existingFiles.getFileId(name));
+            }
+        }
+
+        // only a digest of the whole content is recorded, so a published one is replaced by what was actually sent
+        StoredFile storedFile = store(url, name, contentType, recordDigest && (digest == null || digest.getSize() < 0));
+        return attach(releaseId, name, storedFile, existingFiles,
+                storedFile.digest != null ? storedFile.digest : digest);
+    }
+
+    /**
+     * Upload a set of files once each, and add them to several releases. Each file is sent to TeamForge once and the
+     * stored file is then associated with every release, so publishing the same files to several releases or projects
+     * does not multiply the data transferred. If TeamForge will not associate a stored file with more than one
+     * release, the file is uploaded again for each further release. The same caveats on overwriting apply as for
+     * {@link #uploadFile(String, java.io.File, boolean)}.
+     *
+     * @param releaseIds  the IDs of the releases to add the files to, each of which may only be given once
+     * @param files       the files to upload
+     * @param overwrite   whether to overwrite the files if they already exist. If <code>false</code>, adding any file
+     *                    that already exists to a release will fail.
+     * @param parallelism the maximum number of uploads and associations to run concurrently
+     * @return the result of the uploads to each release, keyed by release ID
+     * @throws IllegalArgumentException if a release is given more than once
+     */
+    public Map<String, BatchUploadResult> uploadFilesToReleases(List<String> releaseIds, List<File> files,
+                                                                boolean overwrite, int parallelism) {
+        if (new HashSet<String>(releaseIds).size() != releaseIds.size()) {
+            // the results for each would be indistinguishable, and the files would be added to the release twice
+            throw new IllegalArgumentException("Releases may only be given once: " + releaseIds);
+        }
+
+        uploadStarted();
+        try {
+            return uploadToReleases(releaseIds, files, overwrite, parallelism);
+        } finally {
+            uploadFinished();
+        }
+    }
+
+    private Map<String, BatchUploadResult> uploadToReleases(List<String> releaseIds, List<File> files,
+                                                            boolean overwrite, int parallelism) {
+
+        Map<String, List<UploadResult>> results = new LinkedHashMap<String, List<UploadResult>>();
+        Map<String, ReleaseFileIndex> indexes = new HashMap<String, ReleaseFileIndex>();
+        Map<String, RemoteException> indexFailures = new HashMap<String, RemoteException>();
+        for (String releaseId : releaseIds) {
+            results.put(releaseId, new ArrayList<UploadResult>(files.size()));
+            if (overwrite && !files.isEmpty()) {
+                try {
+                    indexes.put(releaseId, indexReleaseFiles(releaseId));
+                } catch (RemoteException e) {
+                    indexFailures.put(releaseId, e);
+                }
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(getUploadThreads(parallelism),
+                files.size() * releaseIds.size())));
+        try {
+            // upload each file once, adding it to the first release it is needed in
+            List<Future<FanOut>> uploads = new ArrayList<Future<FanOut>>(files.size());
+            for (final File file : files) {
+                final FanOut fanOut = new FanOut(file, releaseIds, indexes, indexFailures);
+                uploads.add(executor.submit(new Callable<FanOut>() {
+                    public FanOut call() {
+                        fanOut.uploadFirst();
+                        return fanOut;
+                    }
+                }));
+            }
+
+            List<FanOut> fanOuts = new ArrayList<FanOut>(files.size());
+            for (Future<FanOut> upload : uploads) {
+                fanOuts.add(waitFor(upload));
+            }
+
+            // then add the stored files to the remaining releases
+            List<Future<FanOut>> attachments = new ArrayList<Future<FanOut>>();
+            for (final FanOut fanOut : fanOuts) {
+                for (final String releaseId : fanOut.getPendingReleases()) {
+                    attachments.add(executor.submit(new Callable<FanOut>() {
+                        public FanOut call() {
+                            fanOut.attachTo(releaseId);
+                            return fanOut;
+                        }
+                    }));
+                }
+            }
+            for (Future<FanOut> attachment : attachments) {
+                waitFor(attachment);
+            }
+
+            for (FanOut fanOut : fanOuts) {
+                for (String releaseId : releaseIds) {
+                    results.get(releaseId).add(fanOut.getResult(releaseId));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (String releaseId : releaseIds) {
+                List<UploadResult> releaseResults = results.get(releaseId);
+                for (File file : files.subList(releaseResults.size(), files.size())) {
+                    releaseResults.add(UploadResult.failure(file.getName(), e));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Map<String, BatchUploadResult> batchResults = new LinkedHashMap<String, BatchUploadResult>();
+        for (Map.Entry<String, List<UploadResult>> entry : results.entrySet()) {
+            batchResults.put(entry.getKey(), new BatchUploadResult(entry.getValue()));
+        }
+        return batchResults;
+    }
+
+    private static FanOut waitFor(Future<FanOut> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            // FanOut captures exceptions in its results, so only errors can get here
+            throw (Error) e.getCause();
+        }
+    }
+
+    /**
+     * Send the content of an URL to the TeamForge file storage, so that it can be associated with a release, optionally
+     * calculating the digest of the content as it is sent.
+     */
+    private StoredFile store(final URL url, String name, String contentType, boolean digest) throws RemoteException {
+        final UploadProgressTracker tracker = progressListener != UploadProgressListener.NONE
+                ? new UploadProgressTracker(name, getSize(url), progressListener, progressInterval) : null;
+        final CountingDataSource source = new CountingDataSource(
+                contentType != null ? new UrlDataSource(url, contentType) : new URLDataSource(url), tracker,
+                bandwidthLimiter, digest);
+        final DataHandler dh = new DataHandler(source);
+        final AtomicLong chunkedBytes = new AtomicLong();
+        final boolean chunked = uploadChunkSize > 0 && simpleFileStorageAppSoap != null;
+        final MessageDigest chunkedDigest = digest && chunked ? ContentDigest.newSha1() : null;
+        AdaptiveConcurrencyLimit limit = concurrencyLimit;
+        if (limit != null) {
+            try {
+                limit.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RemoteException("Interrupted while waiting to upload '" + name + "'", e);
+            }
+        }
+        long start = System.nanoTime();
+        String id;
+        try {
+            // a failed upload leaves at most an unused file in storage, so it is safe to repeat
+            if (chunked) {
+                id = invoker.invokeSequence("chunked upload of '" + name + "'", new SoapCall<String>() {
+                    public String call() throws RemoteException {
+                        return uploadInChunks(url, chunkedBytes, chunkedDigest, tracker);
+                    }
+                });
+            } else {
+                id = invoker.invoke("uploadFile", true, new SoapCall<String>() {
+                    public String call() throws RemoteException {
+                        return fileStorageAppSoap.uploadFile(sessionId, dh);
+                    }
+                });
+            }
+        } finally {
+            if (limit != null) {
+                limit.release();
+            }
+        }
+        if (tracker != null) {
+            tracker.complete();
+        }
+        metrics.fileUploaded(name, Math.max(source.getBytesRead(), chunkedBytes.get()), System.nanoTime() - start);
+        ContentDigest sent = chunkedDigest != null ? ContentDigest.of(chunkedBytes.get(), chunkedDigest)
+                : source.getDigest();
+        return new StoredFile(id, contentType != null ? contentType : dh.getContentType(), sent);
+    }
 
-        if (overwrite) {
-            // check if the file exists first and delete it - SOAP API doesn't appear to have a way to replace
-            // or update a file like the web UI does
-            for (FrsFileSoapRow row : frsAppSoap.getFrsFileList(sessionId, releaseId).getDataRows()) {
-                if (row.getFilename().equals(name)) {
-                    log.debug("Removing existing file '" + row.getId() + "'");
-                    frsAppSoap.deleteFrsFile(sessionId, row.getId());
-                    break;
+    /**
+     * Associate a stored file with a release, removing any existing file of the same name found in the index.
+     */
+    private UploadResult attach(final String releaseId, final String name, final StoredFile storedFile, ReleaseFileIndex existingFiles,
+                                ContentDigest digest) throws RemoteException {
+        String fileKey = releaseId + "/" + name;
+        Lock lock = fileLocks.get(fileKey);
+        lock.lock();
+        try {
+            if (existingFiles != null) {
+                // check if the file exists first and delete it - SOAP API doesn't appear to have a way to replace
+                // or update a file like the web UI does
+                String changedId = changedFiles.get(fileKey);
+                final String existingId = changedId == null ? existingFiles.getFileId(name)
+                        : changedId.length() > 0 ? changedId : null;
+                if (existingId != null) {
+                    log.debug("Removing existing file '" + existingId + "'");
+                    invoker.invoke("deleteFrsFile", false, new SoapCall<Object>() {
+                        public Object call() throws RemoteException {
+                            frsAppSoap.deleteFrsFile(sessionId, existingId);
+                            return null;
+                        }
+                    });
+                    existingFiles.remove(name);
+                    changedFiles.put(fileKey, "");
+                    if (idCache != null) {
+                        idCache.remove(digestKey(existingId));
+                    }
+                }
+            }
+            // if overwrite is not set, the attempt to create a file will fail
+
+            log.debug("Associating file '" + name + "' with release '" + releaseId + "'");
+            FrsFileSoapDO frsFile = invoker.invoke("createFrsFile", false, new SoapCall<FrsFileSoapDO>() {
+                public FrsFileSoapDO call() throws RemoteException {
+                    return frsAppSoap.createFrsFile(sessionId, releaseId, name, storedFile.contentType, storedFile.id);
                 }
+            });
+            changedFiles.put(fileKey, frsFile.getId());
+            if (existingFiles != null) {
+                existingFiles.put(name, frsFile.getId(), digest != null ? digest.getSize() : -1);
             }
+            if (digest != null) {
+                idCache.put(digestKey(frsFile.getId()), digest.getSha1());
+            }
+            return UploadResult.success(name, frsFile.getId());
+        } finally {
+            lock.unlock();
         }
-        // if overwrite is not set, the attempt to create a file will fail
+    }
 
-        log.debug("Associating file '" + name + "' with release '" + releaseId + "'");
-        frsAppSoap.createFrsFile(sessionId, releaseId, name, dh.getContentType(), id);
+    /**
+     * @return the size of a local file, or <code>-1</code> for other URLs rather than making an extra request
+     */
+    private static long getSize(URL url) {
+        if ("file".equals(url.getProtocol())) {
+            try {
+                return new File(url.toURI()).length();
+            } catch (URISyntaxException e) {
+                return -1;
+            } catch (IllegalArgumentException e) {
+                return -1;
+            }
+        }
+        return -1;
+    }
 
+    /**
+     * Stream the content of an URL to a new file in storage. A chunk written more than once would corrupt the file, so
+     * the calls are not retried on their own, and a failed upload is started again from the beginning.
+     */
+    private String uploadInChunks(URL url, AtomicLong bytes, MessageDigest digest, UploadProgressTracker tracker)
+            throws RemoteException {
+        bytes.set(0);
+        if (digest != null) {
+            // a retried upload reads the content again
+            digest.reset();
+        }
+        final String id = invoker.invoke("startFileUpload", false, new SoapCall<String>() {
+            public String call() throws RemoteException {
+                return simpleFileStorageAppSoap.startFileUpload(sessionId);
+            }
+        });
+        log.debug("Streaming '" + url + "' to file storage '" + id + "' in chunks of " + uploadChunkSize + " bytes");
+        try {
+            InputStream is = url.openStream();
+            try {
+                byte[] buf = new byte[uploadChunkSize];
+                int n;
+                while ((n = readChunk(is, buf)) > 0) {
+                    byte[] chunk = buf;
+                    if (n < buf.length) {
+                        chunk = new byte[n];
+                        System.arraycopy(buf, 0, chunk, 0, n);
+                    }
+                    bandwidthLimiter.acquire(n);
+                    final byte[] data = chunk;
+                    invoker.invoke("write", false, new SoapCall<Object>() {
+                        public Object call() throws RemoteException {
+                            simpleFileStorageAppSoap.write(sessionId, id, data);
+                            return null;
+                        }
+                    });
+                    if (digest != null) {
+                        digest.update(chunk, 0, n);
+                    }
+                    long sent = bytes.addAndGet(n);
+                    if (tracker != null) {
+                        tracker.update(sent);
+                    }
+                }
+            } finally {
+                is.close();
+            }
+        } catch (RemoteException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new RemoteException("Unable to read '" + url + "': " + e.getLocalizedMessage(), e);
+        }
+        invoker.invoke("endFileUpload", false, new SoapCall<Object>() {
+            public Object call() throws RemoteException {
+                simpleFileStorageAppSoap.endFileUpload(sessionId, id);
+                return null;
+            }
+        });
         return id;
     }
+
+    /**
+     * Fill the buffer from the stream, so that every chunk but the last is full size.
+     */
+    private static int readChunk(InputStream is, byte[] buf) throws IOException {
+        int total = 0;
+        while (total < buf.length) {
+            int n = is.read(buf, total, buf.length - total);
+            if (n == -1) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    private boolean isUnchanged(ReleaseFileIndex existingFiles, String name, ContentDigest digest) {
+        String existingId = existingFiles.getFileId(name);
+        return existingId != null && (digest.getSize() < 0 || existingFiles.getFileSize(name) == digest.getSize()) &&
+                digest.getSha1().equals(idCache.get(digestKey(existingId)));
+    }
+
+    private ContentDigest digest(URL url) {
+        try {
+            return ContentDigest.of(url);
+        } catch (IOException e) {
+            // the upload will report the problem reading the file
+            log.debug("Unable to calculate digest of '" + url + "': " + e.getLocalizedMessage());
+            return null;
+        }
+    }
+
+    private String digestKey(String frsFileId) {
+        return IdCache.key(idCacheUrl, frsFileId, "sha1");
+    }
+
+    private static class StoredFile {
+        private final String id;
+
+        private final String contentType;
+
+        /**
+         * The digest of the content sent, if it was calculated.
+         */
+        private final ContentDigest digest;
+
+        private StoredFile(String id, String contentType, ContentDigest digest) {
+            this.id = id;
+            this.contentType = contentType;
+            this.digest = digest;
+        }
+    }
+
+    /**
+     * The progress of adding one file to several releases.
+     */
+    private class FanOut {
+        private final File file;
+
+        private final List<String> releaseIds;
+
+        private final Map<String, ReleaseFileIndex> indexes;
+
+        private final Map<String, RemoteException> indexFailures;
+
+        private final Map<String, UploadResult> results = new ConcurrentHashMap<String, UploadResult>();
+
+        private ContentDigest digest;
+
+        private StoredFile storedFile;
+
+        private FanOut(File file, List<String> releaseIds, Map<String, ReleaseFileIndex> indexes,
+                       Map<String, RemoteException> indexFailures) {
+            this.file = file;
+            this.releaseIds = releaseIds;
+            this.indexes = indexes;
+            this.indexFailures = indexFailures;
+        }
+
+        private void uploadFirst() {
+            URL url;
+            try {
+                url = file.toURI().toURL();
+            } catch (MalformedURLException e) {
+                for (String releaseId : releaseIds) {
+                    results.put(releaseId, UploadResult.failure(file.getName(), e));
+                }
+                return;
+            }
+
+            if (skipUnchanged && idCache != null) {
+                digest = digest(url);
+            }
+
+            for (String releaseId : releaseIds) {
+                if (checkIndex(releaseId)) {
+                    log.info("Uploading '" + file + "' to release '" + releaseId + "'");
+                    try {
+                        storedFile = store(url, file.getName(), null, false);
+                    } catch (RemoteException e) {
+                        failRemaining(e);
+                        return;
+                    } catch (RuntimeException e) {
+                        failRemaining(e);
+                        return;
+                    }
+                    try {
+                        results.put(releaseId, attach(releaseId, file.getName(), storedFile, indexes.get(releaseId),
+                                digest));
+                    } catch (RemoteException e) {
+                        results.put(releaseId, UploadResult.failure(file.getName(), e));
+                    } catch (RuntimeException e) {
+                        results.put(releaseId, UploadResult.failure(file.getName(), e));
+                    }
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Record a failure to store the file for every release that still needs it, rather than storing it again for
+         * each of them.
+         */
+        private void failRemaining(Exception e) {
+            for (String releaseId : releaseIds) {
+                if (!results.containsKey(releaseId)) {
+                    results.put(releaseId, UploadResult.failure(file.getName(), e));
+                }
+            }
+        }
+
+        private List<String> getPendingReleases() {
+            List<String> pending = new ArrayList<String>();
+            for (String releaseId : releaseIds) {
+                if (!results.containsKey(releaseId) && checkIndex(releaseId)) {
+                    pending.add(releaseId);
+                }
+            }
+            return pending;
+        }
+
+        private void attachTo(String releaseId) {
+            log.info("Adding '" + file.getName() + "' to release '" + releaseId + "'");
+            ReleaseFileIndex existingFiles = indexes.get(releaseId);
+            try {
+                try {
+                    results.put(releaseId, attach(releaseId, file.getName(), storedFile, existingFiles, digest));
+                } catch (RemoteException e) {
+                    if (!isStoredFileRejected(e)) {
+                        throw e;
+                    }
+                    log.info("TeamForge refused to reuse stored file '" + storedFile.id + "' for release '" +
+                            releaseId + "', uploading again: " + e.getLocalizedMessage());
+                    StoredFile copy = store(file.toURI().toURL(), file.getName(), storedFile.contentType, false);
+                    results.put(releaseId, attach(releaseId, file.getName(), copy, existingFiles, digest));
+                }
+            } catch (RemoteException e) {
+                results.put(releaseId, UploadResult.failure(file.getName(), e));
+            } catch (MalformedURLException e) {
+                results.put(releaseId, UploadResult.failure(file.getName(), e));
+            } catch (RuntimeException e) {
+                results.put(releaseId, UploadResult.failure(file.getName(), e));
+            }
+        }
+
+        /**
+         * Record the outcome for a release if it does not need the file uploaded: either the release could not be
+         * listed, or it already contains the same content.
+         *
+         * @return whether the file still needs to be added to the release
+         */
+        private boolean checkIndex(String releaseId) {
+            RemoteException failure = indexFailures.get(releaseId);
+            if (failure != null) {
+                results.put(releaseId, UploadResult.failure(file.getName(), failure));
+                return false;
+            }
+            ReleaseFileIndex existingFiles = indexes.get(releaseId);
+            if (digest != null && existingFiles != null && isUnchanged(existingFiles, file.getName(), digest)) {
+                log.info("Skipping '" + file.getName() + "' as it is unchanged in release '" + releaseId + "'");
+                results.put(releaseId, UploadResult.skipped(file.getName(), existingFiles.getFileId(file.getName())));
+                return false;
+            }
+            return true;
+        }
+
+        private UploadResult getResult(String releaseId) {
+            return results.get(releaseId);
+        }
+    }
+
+    /**
+     * Determine whether a stored file should be uploaded again after TeamForge refused to create a release file from
+     * it. TeamForge does not report a distinct fault for a stored file that can not be reused, so any refusal is
+     * taken as one. A call that may not have reached TeamForge, a call blocked by the circuit breaker and an expired
+     * session are not refusals, as uploading again would not help.
+     */
+    private static boolean isStoredFileRejected(RemoteException failure) {
+        return !(failure instanceof CircuitOpenException) && !ExponentialBackoffRetryPolicy.isTransient(failure)
+                && !RetryingInvoker.isSessionExpired(failure);
+    }
 }
@@ -0,0 +1,83 @@
+package com.maestrodev.plugins.collabnet.frs;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.collabnet.ce.soap60.webservices.frs.FrsFileSoapRow;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A snapshot of the files in a release, indexed by filename. Obtain one from
+ * {@link FrsSession#indexReleaseFiles(String)} and pass it to the upload methods to overwrite existing files without
+ * listing the release again for each file. The index is kept up to date as files are deleted and created through it,
+ * but will not reflect changes made to the release by other clients after it was created.
+ */
+public class ReleaseFileIndex {
+    private final String releaseId;
+
+    private final Map<String, String> fileIds = new HashMap<String, String>();
+
+    private final Map<String, Long> fileSizes = new HashMap<String, Long>();
+
+    ReleaseFileIndex(String releaseId, FrsFileSoapRow[] rows) {
+        this.releaseId = releaseId;
+        for (FrsFileSoapRow row : rows) {
+            fileIds.put(row.getFilename(), row.getId());
+            fileSizes.put(row.getFilename(), row.getSize());
+        }
+    }
+
+    public String getReleaseId() {
+        return releaseId;
+    }
+
+    /**
+     * Find an existing file in the release.
+     *
+     * @param filename the name of the file
+     * @return the ID of the file in the release, or <code>null</code> if there is no such file
+     */
+    public synchronized String getFileId(String filename) {
+        return fileIds.get(filename);
+    }
+
+    /**
+     * Find the size of an existing file in the release.
+     *
+     * @param filename the name of the file
+     * @return the size of the file in bytes, or <code>-1</code> if there is no such file
+     */
+    public synchronized long getFileSize(String filename) {
+        Long size = fileSizes.get(filename);
+        return size != null ? size : -1;
+    }
+
+    synchronized void put(String filename, String fileId, long size) {
+        fileIds.put(filename, fileId);
+        fileSizes.put(filename, size);
+    }
+
+    synchronized void remove(String filename) {
+        fileIds.remove(filename);
+        fileSizes.remove(filename);
+    }
+
+    public synchronized int size() {
+        return fileIds.size();
+    }
+}
@@ -0,0 +1,75 @@
+package com.maestrodev.plugins.collabnet.frs;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Identifies a release to deploy files to, by the names of the project, package and release that contain it.
+ */
+public class ReleaseTarget {
+    private final String project;
+
+    private final String packageTitle;
+
+    private final String releaseTitle;
+
+    public ReleaseTarget(String project, String packageTitle, String releaseTitle) {
+        this.project = project;
+        this.packageTitle = packageTitle;
+        this.releaseTitle = releaseTitle;
+    }
+
+    /**
+     * Parse a release target of the form <code>release</code>, <code>package/release</code> or
+     * <code>project/package/release</code>. Parts that are omitted are taken from the defaults.
+     *
+     * @param spec           the release target
+     * @param defaultProject the project to use if none is given
+     * @param defaultPackage the package to use if none is given
+     * @return the release target
+     * @throws IllegalArgumentException if the release target has more than three parts
+     */
+    public static ReleaseTarget parse(String spec, String defaultProject, String defaultPackage) {
+        String[] parts = spec.split("/");
+        switch (parts.length) {
+            case 1:
+                return new ReleaseTarget(defaultProject, defaultPackage, parts[0]);
+            case 2:
+                return new ReleaseTarget(defaultProject, parts[0], parts[1]);
+            case 3:
+                return new ReleaseTarget(parts[0], parts[1], parts[2]);
+            default:
+                throw new IllegalArgumentException("Release must be of the form [[project/]package/]release: '" + spec + "'");
+        }
+    }
+
+    public String getProject() {
+        return project;
+    }
+
+    public String getPackageTitle() {
+        return packageTitle;
+    }
+
+    public String getReleaseTitle() {
+        return releaseTitle;
+    }
+
+    @Override
+    public String toString() {
+        return project + "/" + packageTitle + "/" + releaseTitle;
+    }
+}
@@ -0,0 +1,51 @@
+package com.maestrodev.plugins.collabnet.frs;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of locks shared out by key. Callers using the same key always get the same lock, so their operations are
+ * serialized, while callers using different keys usually get different locks and can proceed in parallel. Unlike a lock
+ * per key, the number of locks does not grow with the number of keys seen.
+ */
+class StripedLocks {
+    private final Lock[] locks;
+
+    /**
+     * @param stripes the number of locks, rounded up to a power of two
+     */
+    StripedLocks(int stripes) {
+        int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        locks = new Lock[size];
+        for (int i = 0; i < size; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * @param key the key identifying the resource to lock
+     * @return the lock for the key
+     */
+    Lock get(String key) {
+        int h = key.hashCode();
+        // spread the high bits, as only the low bits select the stripe
+        h ^= (h >>> 16);
+        return locks[h & (locks.length - 1)];
+    }
+}
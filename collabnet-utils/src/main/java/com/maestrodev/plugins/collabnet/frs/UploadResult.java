@@ -0,0 +1,100 @@
+package com.maestrodev.plugins.collabnet.frs;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * The outcome of uploading a single file to a release as part of a batch.
+ */
+public class UploadResult {
+    private final String name;
+
+    private final String fileId;
+
+    private final Exception error;
+
+    private final boolean skipped;
+
+    private UploadResult(String name, String fileId, Exception error, boolean skipped) {
+        this.name = name;
+        this.fileId = fileId;
+        this.error = error;
+        this.skipped = skipped;
+    }
+
+    /**
+     * Create a result for a file that was uploaded successfully.
+     *
+     * @param name   the name of the file in the release
+     * @param fileId the FRS ID of the file created in the release
+     * @return the result
+     */
+    public static UploadResult success(String name, String fileId) {
+        return new UploadResult(name, fileId, null, false);
+    }
+
+    /**
+     * Create a result for a file that was not uploaded because the release already contains identical content.
+     *
+     * @param name   the name of the file in the release
+     * @param fileId the FRS ID of the existing file in the release
+     * @return the result
+     */
+    public static UploadResult skipped(String name, String fileId) {
+        return new UploadResult(name, fileId, null, true);
+    }
+
+    /**
+     * Create a result for a file that could not be uploaded.
+     *
+     * @param name  the name of the file in the release
+     * @param error the reason the upload failed
+     * @return the result
+     */
+    public static UploadResult failure(String name, Exception error) {
+        return new UploadResult(name, null, error, false);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the FRS ID of the file in the release - the file created, or the existing file if the upload was
+     *         skipped - or <code>null</code> if the upload failed
+     */
+    public String getFileId() {
+        return fileId;
+    }
+
+    /**
+     * @return the reason the upload failed, or <code>null</code> if it succeeded
+     */
+    public Exception getError() {
+        return error;
+    }
+
+    public boolean isSuccessful() {
+        return error == null;
+    }
+
+    /**
+     * @return whether the upload was skipped because the release already contains identical content
+     */
+    public boolean isSkipped() {
+        return skipped;
+    }
+}
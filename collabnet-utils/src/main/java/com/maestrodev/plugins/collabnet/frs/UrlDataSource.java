@@ -0,0 +1,55 @@
+package com.maestrodev.plugins.collabnet.frs;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import javax.activation.DataSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+
+/**
+ * A data source for an URL with a known content type. Unlike {@link javax.activation.URLDataSource}, it does not open
+ * a connection to the URL to find the content type, so the content is only requested when it is read.
+ */
+class UrlDataSource implements DataSource {
+    private final URL url;
+
+    private final String contentType;
+
+    UrlDataSource(URL url, String contentType) {
+        this.url = url;
+        this.contentType = contentType;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public InputStream getInputStream() throws IOException {
+        return url.openStream();
+    }
+
+    public String getName() {
+        String path = url.getPath();
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException("Cannot write to " + url);
+    }
+}
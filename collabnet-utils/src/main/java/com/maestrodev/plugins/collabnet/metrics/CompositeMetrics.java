@@ -0,0 +1,40 @@
+package com.maestrodev.plugins.collabnet.metrics;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Passes each measurement on to several listeners.
+ */
+public class CompositeMetrics implements FrsMetrics {
+    private final FrsMetrics[] listeners;
+
+    public CompositeMetrics(FrsMetrics... listeners) {
+        this.listeners = listeners.clone();
+    }
+
+    public void callCompleted(String operation, long durationNanos, boolean success) {
+        for (FrsMetrics listener : listeners) {
+            listener.callCompleted(operation, durationNanos, success);
+        }
+    }
+
+    public void fileUploaded(String name, long bytes, long durationNanos) {
+        for (FrsMetrics listener : listeners) {
+            listener.fileUploaded(name, bytes, durationNanos);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.maestrodev.plugins.collabnet.metrics;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Measurement of the upload of a single file to TeamForge.
+ */
+public class FileTransferStats {
+    private final String name;
+
+    private final long bytes;
+
+    private final long durationNanos;
+
+    FileTransferStats(String name, long bytes, long durationNanos) {
+        this.name = name;
+        this.bytes = bytes;
+        this.durationNanos = durationNanos;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getMillis() {
+        return durationNanos / 1000000;
+    }
+
+    /**
+     * @return the average rate the file was sent at, in bytes per second
+     */
+    public long getBytesPerSecond() {
+        return durationNanos > 0 ? (long) (bytes * 1000000000.0 / durationNanos) : 0;
+    }
+}
@@ -0,0 +1,52 @@
+package com.maestrodev.plugins.collabnet.metrics;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Listener for measurements of the calls made to TeamForge, so that the time spent in a deploy can be attributed to
+ * the operations and files that took it. Implementations must be thread-safe, as files may be uploaded concurrently.
+ */
+public interface FrsMetrics {
+    /**
+     * A listener that discards all measurements.
+     */
+    FrsMetrics NONE = new FrsMetrics() {
+        public void callCompleted(String operation, long durationNanos, boolean success) {
+        }
+
+        public void fileUploaded(String name, long bytes, long durationNanos) {
+        }
+    };
+
+    /**
+     * Record a call to one of the TeamForge SOAP operations. Each attempt of a retried call is recorded separately.
+     *
+     * @param operation     the name of the SOAP operation, such as <code>getReleaseList</code>
+     * @param durationNanos the time taken by the call, in nanoseconds
+     * @param success       whether the call succeeded
+     */
+    void callCompleted(String operation, long durationNanos, boolean success);
+
+    /**
+     * Record the successful upload of a file to TeamForge file storage.
+     *
+     * @param name          the name of the file
+     * @param bytes         the number of bytes sent
+     * @param durationNanos the time taken by the upload, in nanoseconds, including any failed attempts
+     */
+    void fileUploaded(String name, long bytes, long durationNanos);
+}
@@ -0,0 +1,107 @@
+package com.maestrodev.plugins.collabnet.metrics;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the measurements of a deploy in memory, so that they can be summarised at the end of it.
+ */
+public class MetricsCollector implements FrsMetrics {
+    private final Map<String, OperationStats> operations = new LinkedHashMap<String, OperationStats>();
+
+    private final List<FileTransferStats> files = new ArrayList<FileTransferStats>();
+
+    public synchronized void callCompleted(String operation, long durationNanos, boolean success) {
+        OperationStats stats = operations.get(operation);
+        if (stats == null) {
+            stats = new OperationStats(operation);
+            operations.put(operation, stats);
+        }
+        stats.record(durationNanos, success);
+    }
+
+    public synchronized void fileUploaded(String name, long bytes, long durationNanos) {
+        files.add(new FileTransferStats(name, bytes, durationNanos));
+    }
+
+    /**
+     * @return the measurements of each SOAP operation called, those that took the most time in total first
+     */
+    public synchronized List<OperationStats> getOperationStats() {
+        List<OperationStats> result = new ArrayList<OperationStats>(operations.size());
+        for (OperationStats stats : operations.values()) {
+            result.add(new OperationStats(stats));
+        }
+        Collections.sort(result, new Comparator<OperationStats>() {
+            public int compare(OperationStats s1, OperationStats s2) {
+                long diff = s2.getTotalMillis() - s1.getTotalMillis();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return the measurements of each file uploaded, in the order the uploads completed
+     */
+    public synchronized List<FileTransferStats> getFileStats() {
+        return new ArrayList<FileTransferStats>(files);
+    }
+
+    /**
+     * @return the total number of bytes uploaded
+     */
+    public synchronized long getTotalBytes() {
+        long total = 0;
+        for (FileTransferStats file : files) {
+            total += file.getBytes();
+        }
+        return total;
+    }
+
+    /**
+     * Format the measurements as a table for display at the end of a deploy.
+     *
+     * @return the lines of the table
+     */
+    public List<String> getSummary() {
+        List<String> lines = new ArrayList<String>();
+        lines.add(String.format("%-24s %7s %7s %10s %9s %9s", "Operation", "Calls", "Errors", "Total (ms)",
+                "Mean (ms)", "Max (ms)"));
+        for (OperationStats stats : getOperationStats()) {
+            lines.add(String.format("%-24s %7d %7d %10d %9d %9d", stats.getOperation(), stats.getCalls(),
+                    stats.getFailures(), stats.getTotalMillis(), stats.getMeanMillis(), stats.getMaxMillis()));
+        }
+
+        List<FileTransferStats> fileStats = getFileStats();
+        if (!fileStats.isEmpty()) {
+            lines.add("");
+            lines.add(String.format("%-40s %12s %10s %10s", "File", "Bytes", "Time (ms)", "KB/s"));
+            for (FileTransferStats file : fileStats) {
+                lines.add(String.format("%-40s %12d %10d %10d", file.getName(), file.getBytes(), file.getMillis(),
+                        file.getBytesPerSecond() / 1024));
+            }
+        }
+        return lines;
+    }
+}
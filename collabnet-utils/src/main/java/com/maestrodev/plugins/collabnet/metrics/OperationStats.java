@@ -0,0 +1,77 @@
+package com.maestrodev.plugins.collabnet.metrics;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Aggregated measurements of the calls made to one TeamForge SOAP operation.
+ */
+public class OperationStats {
+    private final String operation;
+
+    private int calls;
+
+    private int failures;
+
+    private long totalNanos;
+
+    private long maxNanos;
+
+    OperationStats(String operation) {
+        this.operation = operation;
+    }
+
+    OperationStats(OperationStats other) {
+        this.operation = other.operation;
+        this.calls = other.calls;
+        this.failures = other.failures;
+        this.totalNanos = other.totalNanos;
+        this.maxNanos = other.maxNanos;
+    }
+
+    void record(long durationNanos, boolean success) {
+        calls++;
+        if (!success) {
+            failures++;
+        }
+        totalNanos += durationNanos;
+        maxNanos = Math.max(maxNanos, durationNanos);
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public int getCalls() {
+        return calls;
+    }
+
+    public int getFailures() {
+        return failures;
+    }
+
+    public long getTotalMillis() {
+        return totalNanos / 1000000;
+    }
+
+    public long getMeanMillis() {
+        return calls > 0 ? totalNanos / calls / 1000000 : 0;
+    }
+
+    public long getMaxMillis() {
+        return maxNanos / 1000000;
+    }
+}
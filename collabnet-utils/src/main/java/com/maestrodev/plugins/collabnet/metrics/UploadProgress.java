@@ -0,0 +1,141 @@
+package com.maestrodev.plugins.collabnet.metrics;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+/**
+ * The progress of a file upload at a point in time.
+ */
+public class UploadProgress {
+    private final String name;
+
+    private final long bytesSent;
+
+    private final long totalBytes;
+
+    private final long currentBytesPerSecond;
+
+    private final long averageBytesPerSecond;
+
+    private final boolean complete;
+
+    UploadProgress(String name, long bytesSent, long totalBytes, long currentBytesPerSecond,
+                   long averageBytesPerSecond, boolean complete) {
+        this.name = name;
+        this.bytesSent = bytesSent;
+        this.totalBytes = totalBytes;
+        this.currentBytesPerSecond = currentBytesPerSecond;
+        this.averageBytesPerSecond = averageBytesPerSecond;
+        this.complete = complete;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * @return the size of the file, or <code>-1</code> if it is not known
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return the rate the file has been sent at since the previous report, in bytes per second
+     */
+    public long getCurrentBytesPerSecond() {
+        return currentBytesPerSecond;
+    }
+
+    /**
+     * @return the rate the file has been sent at since the upload started, in bytes per second
+     */
+    public long getAverageBytesPerSecond() {
+        return averageBytesPerSecond;
+    }
+
+    /**
+     * @return the estimated time in milliseconds until the upload completes at the current rate, or <code>-1</code>
+     *         if it can not be estimated
+     */
+    public long getEtaMillis() {
+        if (complete) {
+            return 0;
+        }
+        if (totalBytes < 0 || currentBytesPerSecond <= 0) {
+            return -1;
+        }
+        return Math.max(totalBytes - bytesSent, 0) * 1000 / currentBytesPerSecond;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(complete ? "Uploaded '" : "Uploading '").append(name).append("': ").append(formatBytes(bytesSent));
+        if (totalBytes >= 0 && !complete) {
+            sb.append(" of ").append(formatBytes(totalBytes));
+            if (totalBytes > 0) {
+                sb.append(" (").append(bytesSent * 100 / totalBytes).append("%)");
+            }
+        }
+        if (complete) {
+            sb.append(" at ").append(formatBytes(averageBytesPerSecond)).append("/s");
+        } else {
+            sb.append(", ").append(formatBytes(currentBytesPerSecond)).append("/s (average ")
+                    .append(formatBytes(averageBytesPerSecond)).append("/s)");
+            long eta = getEtaMillis();
+            if (eta >= 0) {
+                sb.append(", ").append(formatDuration(eta)).append(" remaining");
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        String[] units = {"KB", "MB", "GB", "TB"};
+        double value = bytes / 1024.0;
+        int unit = 0;
+        while (value >= 1024 && unit < units.length - 1) {
+            value /= 1024;
+            unit++;
+        }
+        return String.format("%.1f %s", value, units[unit]);
+    }
+
+    private static String formatDuration(long millis) {
+        long seconds = (millis + 999) / 1000;
+        if (seconds < 60) {
+            return seconds + "s";
+        }
+        long minutes = seconds / 60;
+        if (minutes < 60) {
+            return minutes + "m " + (seconds % 60) + "s";
+        }
+        return (minutes / 60) + "h " + (minutes % 60) + "m";
+    }
+}
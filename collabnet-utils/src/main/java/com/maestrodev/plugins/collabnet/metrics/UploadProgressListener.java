@@ -0,0 +1,40 @@
+package com.maestrodev.plugins.collabnet.metrics;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+/**
+ * Listener for the progress of large file uploads, so that a long upload can be told apart from a stalled one.
+ * Implementations must be thread-safe, as files may be uploaded concurrently.
+ */
+public interface UploadProgressListener {
+    /**
+     * A listener that discards all progress.
+     */
+    UploadProgressListener NONE = new UploadProgressListener() {
+        public void uploadProgress(UploadProgress progress) {
+        }
+    };
+
+    /**
+     * Report the progress of an upload. Reports are limited to one per interval for each file, and an upload that
+     * completes within the first interval is not reported at all.
+     *
+     * @param progress the progress of the upload
+     */
+    void uploadProgress(UploadProgress progress);
+}
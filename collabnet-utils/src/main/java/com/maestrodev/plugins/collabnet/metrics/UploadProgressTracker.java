@@ -0,0 +1,107 @@
+package com.maestrodev.plugins.collabnet.metrics;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+/**
+ * Follows the bytes sent by a single upload and reports its progress to a listener, at most once per interval. The
+ * completion of the upload is only reported if its progress was, so that uploads of many small files are quiet.
+ */
+public class UploadProgressTracker {
+    private final String name;
+
+    private final long totalBytes;
+
+    private final UploadProgressListener listener;
+
+    private final long intervalNanos;
+
+    private long startTime;
+
+    private long lastReportTime;
+
+    private long lastReportBytes;
+
+    private long bytesSent;
+
+    private boolean reported;
+
+    /**
+     * @param name           the name of the file being uploaded
+     * @param totalBytes     the size of the file, or <code>-1</code> if it is not known
+     * @param listener       the listener to report to
+     * @param intervalMillis the minimum time in milliseconds between reports
+     */
+    public UploadProgressTracker(String name, long totalBytes, UploadProgressListener listener, long intervalMillis) {
+        this.name = name;
+        this.totalBytes = totalBytes;
+        this.listener = listener;
+        this.intervalNanos = intervalMillis * 1000000;
+        this.startTime = System.nanoTime();
+        this.lastReportTime = startTime;
+    }
+
+    /**
+     * Record the number of bytes sent so far. A count lower than the previous one means the upload was restarted.
+     *
+     * @param bytesSent the number of bytes sent since the upload started
+     */
+    public void update(long bytesSent) {
+        UploadProgress progress = null;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (bytesSent < this.bytesSent) {
+                // a retried upload sends the content again
+                startTime = now;
+                lastReportTime = now;
+                lastReportBytes = 0;
+            }
+            this.bytesSent = bytesSent;
+            if (now - lastReportTime >= intervalNanos) {
+                progress = new UploadProgress(name, bytesSent, totalBytes,
+                        rate(bytesSent - lastReportBytes, now - lastReportTime), rate(bytesSent, now - startTime),
+                        false);
+                lastReportTime = now;
+                lastReportBytes = bytesSent;
+                reported = true;
+            }
+        }
+        if (progress != null) {
+            listener.uploadProgress(progress);
+        }
+    }
+
+    /**
+     * Record that the upload has completed, reporting it if its progress was reported.
+     */
+    public void complete() {
+        UploadProgress progress = null;
+        synchronized (this) {
+            if (reported) {
+                long elapsed = System.nanoTime() - startTime;
+                progress = new UploadProgress(name, bytesSent, totalBytes, 0, rate(bytesSent, elapsed), true);
+            }
+        }
+        if (progress != null) {
+            listener.uploadProgress(progress);
+        }
+    }
+
+    private static long rate(long bytes, long nanos) {
+        return nanos > 0 ? (long) (bytes * 1000000000.0 / nanos) : 0;
+    }
+}
@@ -0,0 +1,129 @@
+package com.maestrodev.plugins.collabnet.retry;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.rmi.RemoteException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Stops calls to a TeamForge instance that is clearly unavailable, so that clients fail fast instead of each waiting
+ * out their own timeouts and retries. After a number of consecutive transient failures the circuit opens, and calls
+ * are rejected with a {@linkplain CircuitOpenException} until the open period has passed. A single trial call is then
+ * let through, which closes the circuit if it succeeds or opens it again if it fails.
+ */
+public class CircuitBreaker {
+    private static final ConcurrentMap<String, CircuitBreaker> SHARED = new ConcurrentHashMap<String, CircuitBreaker>();
+
+    private final String name;
+
+    private final int failureThreshold;
+
+    private final long openTime;
+
+    private int consecutiveFailures;
+
+    private long openUntil;
+
+    private boolean trialInProgress;
+
+    /**
+     * @param name             a name for the service protected by the circuit breaker, used in error messages
+     * @param failureThreshold the number of consecutive failures that opens the circuit
+     * @param openTime         the time in milliseconds to reject calls for once the circuit has opened
+     */
+    public CircuitBreaker(String name, int failureThreshold, long openTime) {
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.openTime = openTime;
+    }
+
+    /**
+     * Obtain a circuit breaker shared by all clients of the same TeamForge instance in this process, creating it with
+     * the given settings if it does not exist.
+     *
+     * @param teamForgeUrl     the URL of the TeamForge instance
+     * @param failureThreshold the number of consecutive failures that opens the circuit
+     * @param openTime         the time in milliseconds to reject calls for once the circuit has opened
+     * @return the circuit breaker
+     */
+    public static CircuitBreaker getShared(String teamForgeUrl, int failureThreshold, long openTime) {
+        CircuitBreaker breaker = SHARED.get(teamForgeUrl);
+        if (breaker == null) {
+            breaker = new CircuitBreaker(teamForgeUrl, failureThreshold, openTime);
+            CircuitBreaker existing = SHARED.putIfAbsent(teamForgeUrl, breaker);
+            if (existing != null) {
+                breaker = existing;
+            }
+        }
+        return breaker;
+    }
+
+    /**
+     * Check that a call may be made.
+     *
+     * @throws CircuitOpenException if the circuit is open
+     */
+    public synchronized void beforeCall() throws CircuitOpenException {
+        if (consecutiveFailures < failureThreshold) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now < openUntil || trialInProgress) {
+            throw new CircuitOpenException("TeamForge at " + name + " is unavailable after " + consecutiveFailures +
+                    " consecutive failures - not calling it again until " + new java.util.Date(openUntil));
+        }
+        trialInProgress = true;
+    }
+
+    /**
+     * Record a successful call, closing the circuit.
+     */
+    public synchronized void onSuccess() {
+        consecutiveFailures = 0;
+        trialInProgress = false;
+    }
+
+    /**
+     * Record a failed call. Only failures that suggest the server is unavailable count towards opening the circuit.
+     *
+     * @param failure the failure
+     */
+    public synchronized void onFailure(RemoteException failure) {
+        trialInProgress = false;
+        if (!ExponentialBackoffRetryPolicy.isTransient(failure)) {
+            consecutiveFailures = 0;
+            return;
+        }
+        consecutiveFailures++;
+        if (consecutiveFailures >= failureThreshold) {
+            openUntil = System.currentTimeMillis() + openTime;
+        }
+    }
+
+    /**
+     * Record a call that failed for a reason unrelated to the availability of the server, so that another call may be
+     * made if it was the trial call.
+     */
+    public synchronized void onAbort() {
+        trialInProgress = false;
+    }
+
+    public synchronized boolean isOpen() {
+        return consecutiveFailures >= failureThreshold && System.currentTimeMillis() < openUntil;
+    }
+}
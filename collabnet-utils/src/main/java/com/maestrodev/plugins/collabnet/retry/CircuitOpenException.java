@@ -0,0 +1,29 @@
+package com.maestrodev.plugins.collabnet.retry;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.rmi.RemoteException;
+
+/**
+ * Thrown instead of calling TeamForge when a {@linkplain CircuitBreaker circuit breaker} has found it to be
+ * unavailable.
+ */
+public class CircuitOpenException extends RemoteException {
+    public CircuitOpenException(String msg) {
+        super(msg);
+    }
+}
@@ -0,0 +1,110 @@
+package com.maestrodev.plugins.collabnet.retry;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.rmi.RemoteException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Retries calls that failed for reasons likely to be temporary - timeouts, refused or dropped connections, and
+ * <code>502</code>, <code>503</code> and <code>504</code> responses from TeamForge or a proxy in front of it. Faults
+ * reported by TeamForge itself, such as an invalid ID or missing permission, are not retried.
+ *
+ * The delay before each retry doubles from the initial delay up to the maximum, and a random delay of up to the same
+ * amount again is added so that concurrent clients do not retry in lockstep. The policy also holds a budget of retries
+ * shared by all calls it is used for, so a deploy against a struggling server gives up rather than retrying each of its
+ * calls in turn. Create a new policy for each deploy.
+ */
+public class ExponentialBackoffRetryPolicy implements RetryPolicy {
+    private static final Pattern TRANSIENT_HTTP_STATUS = Pattern.compile(".*\\((502|503|504)\\).*", Pattern.DOTALL);
+
+    private final int maxAttempts;
+
+    private final long initialDelay;
+
+    private final long maxDelay;
+
+    private final AtomicInteger budget;
+
+    private final Random random = new Random();
+
+    /**
+     * @param maxAttempts  the maximum number of times to attempt each call, including the first
+     * @param initialDelay the time in milliseconds to wait before the first retry
+     * @param maxDelay     the maximum time in milliseconds to wait before a retry, excluding the random delay
+     * @param budget       the maximum number of retries to make over all calls
+     */
+    public ExponentialBackoffRetryPolicy(int maxAttempts, long initialDelay, long maxDelay, int budget) {
+        this.maxAttempts = maxAttempts;
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.budget = new AtomicInteger(budget);
+    }
+
+    public long getRetryDelay(int attempt, RemoteException failure) {
+        if (attempt >= maxAttempts || !isTransient(failure)) {
+            return -1;
+        }
+        if (budget.getAndDecrement() <= 0) {
+            return -1;
+        }
+
+        long delay = initialDelay;
+        for (int i = 1; i < attempt && delay < maxDelay; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, maxDelay);
+        synchronized (random) {
+            return delay + (long) (random.nextDouble() * delay);
+        }
+    }
+
+    /**
+     * @return the number of retries left in the budget
+     */
+    public int getRemainingBudget() {
+        return Math.max(budget.get(), 0);
+    }
+
+    /**
+     * Determine whether a failure is likely to be temporary.
+     *
+     * @param failure the failure
+     * @return <code>true</code> if the failure was caused by a network problem or an overloaded server
+     */
+    public static boolean isTransient(RemoteException failure) {
+        for (Throwable t = failure; t != null; t = t.getCause()) {
+            if (t instanceof IOException && !(t instanceof RemoteException) && !(t instanceof UnknownHostException)
+                    && !(t instanceof FileNotFoundException)) {
+                // timeouts, and refused, reset or dropped connections
+                return true;
+            }
+            if (t.getMessage() != null && TRANSIENT_HTTP_STATUS.matcher(t.getMessage()).matches()) {
+                return true;
+            }
+            if (t.getCause() == t) {
+                break;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,43 @@
+package com.maestrodev.plugins.collabnet.retry;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.rmi.RemoteException;
+
+/**
+ * Decides whether, and after how long, a failed call to TeamForge should be attempted again. Only calls that can
+ * safely be repeated are offered to the policy.
+ */
+public interface RetryPolicy {
+    /**
+     * A policy that never retries.
+     */
+    RetryPolicy NEVER = new RetryPolicy() {
+        public long getRetryDelay(int attempt, RemoteException failure) {
+            return -1;
+        }
+    };
+
+    /**
+     * Decide whether to retry a failed call.
+     *
+     * @param attempt the number of attempts made so far, starting at <code>1</code>
+     * @param failure the failure of the last attempt
+     * @return the time in milliseconds to wait before the next attempt, or <code>-1</code> to give up
+     */
+    long getRetryDelay(int attempt, RemoteException failure);
+}
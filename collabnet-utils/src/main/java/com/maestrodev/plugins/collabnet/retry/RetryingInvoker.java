@@ -0,0 +1,181 @@
+package com.maestrodev.plugins.collabnet.retry;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.maestrodev.plugins.collabnet.log.Log;
+import com.maestrodev.plugins.collabnet.metrics.FrsMetrics;
+
+import java.rmi.RemoteException;
+import java.util.regex.Pattern;
+
+/**
+ * Makes calls to TeamForge through a {@linkplain CircuitBreaker circuit breaker}, retrying those that can safely be
+ * repeated according to a {@linkplain RetryPolicy retry policy}. A call rejected because the session has expired is
+ * repeated once, whether or not it is idempotent, if a new session can be {@linkplain #renewSession() obtained}.
+ */
+public class RetryingInvoker {
+    private static final Pattern SESSION_EXPIRED = Pattern.compile(
+            ".*(InvalidSessionFault|[Ss]ession is invalid|[Ss]ession .*timed out).*", Pattern.DOTALL);
+
+    private final RetryPolicy retryPolicy;
+
+    private final CircuitBreaker circuitBreaker;
+
+    private final FrsMetrics metrics;
+
+    private final Log log;
+
+    /**
+     * @param retryPolicy    the policy for retrying failed calls
+     * @param circuitBreaker the circuit breaker to check before each call, or <code>null</code> to always call
+     * @param metrics        the listener to report the time taken by each call to
+     * @param log            the log to report retries to
+     */
+    public RetryingInvoker(RetryPolicy retryPolicy, CircuitBreaker circuitBreaker, FrsMetrics metrics, Log log) {
+        this.retryPolicy = retryPolicy;
+        this.circuitBreaker = circuitBreaker;
+        this.metrics = metrics;
+        this.log = log;
+    }
+
+    /**
+     * Make a call, retrying it on failure if it is idempotent.
+     *
+     * @param operation  the name of the SOAP operation called, for log messages and metrics
+     * @param idempotent whether the call can be repeated without changing its outcome
+     * @param call       the call to make
+     * @return the result of the call
+     * @throws RemoteException the failure of the last attempt, or a {@linkplain CircuitOpenException} if the circuit
+     *                         breaker has stopped calls to TeamForge
+     */
+    public <T> T invoke(String operation, boolean idempotent, SoapCall<T> call) throws RemoteException {
+        boolean renewed = false;
+        for (int attempt = 1; ; attempt++) {
+            if (circuitBreaker != null) {
+                circuitBreaker.beforeCall();
+            }
+
+            RemoteException failure;
+            long start = System.nanoTime();
+            try {
+                T result = call.call();
+                metrics.callCompleted(operation, System.nanoTime() - start, true);
+                if (circuitBreaker != null) {
+                    circuitBreaker.onSuccess();
+                }
+                return result;
+            } catch (RemoteException e) {
+                metrics.callCompleted(operation, System.nanoTime() - start, false);
+                if (circuitBreaker != null) {
+                    circuitBreaker.onFailure(e);
+                }
+                failure = e;
+            } catch (RuntimeException e) {
+                metrics.callCompleted(operation, System.nanoTime() - start, false);
+                if (circuitBreaker != null) {
+                    circuitBreaker.onAbort();
+                }
+                throw e;
+            }
+
+            if (!renewed && isSessionExpired(failure)) {
+                // the call was refused, so it can be made again with a new session even if it is not idempotent
+                renewed = true;
+                if (renewSession()) {
+                    log.info("Retrying " + operation + " with a new session after the session expired");
+                    attempt--;
+                    continue;
+                }
+            }
+
+            if (!idempotent) {
+                throw failure;
+            }
+            awaitRetry(operation, attempt, failure);
+        }
+    }
+
+    /**
+     * Make a sequence of calls that has to be started again from the beginning if any of them fails, such as the calls
+     * that upload a file in chunks. Each call in the sequence should be made with {@linkplain #invoke} as not
+     * idempotent, so that it is checked with the circuit breaker and reported on its own, and the retry policy is
+     * applied to the sequence as a whole.
+     *
+     * @param description a description of the sequence, for log messages
+     * @param calls       the sequence of calls to make
+     * @return the result of the sequence
+     * @throws RemoteException the failure of the last attempt
+     */
+    public <T> T invokeSequence(String description, SoapCall<T> calls) throws RemoteException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return calls.call();
+            } catch (RemoteException e) {
+                awaitRetry(description, attempt, e);
+            }
+        }
+    }
+
+    /**
+     * Wait before making another attempt, if the retry policy allows one.
+     *
+     * @throws RemoteException the failure, if there should be no further attempt
+     */
+    private void awaitRetry(String operation, int attempt, RemoteException failure) throws RemoteException {
+        long delay = retryPolicy.getRetryDelay(attempt, failure);
+        if (delay < 0) {
+            throw failure;
+        }
+        log.info("Retrying " + operation + " in " + delay + "ms after attempt " + attempt + " failed: " +
+                failure.getLocalizedMessage());
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw failure;
+        }
+    }
+
+    /**
+     * Obtain a new session after a call was rejected because its session expired. By default no new session is
+     * obtained and the failure is reported.
+     *
+     * @return whether the call should be made again with a new session
+     * @throws RemoteException if there was a problem logging in again
+     */
+    protected boolean renewSession() throws RemoteException {
+        return false;
+    }
+
+    /**
+     * Determine whether a failure was caused by TeamForge no longer accepting the session the call was made with.
+     *
+     * @param failure the failure
+     * @return <code>true</code> if the session has expired or been logged off
+     */
+    public static boolean isSessionExpired(RemoteException failure) {
+        for (Throwable t = failure; t != null; t = t.getCause()) {
+            if (t.getMessage() != null && SESSION_EXPIRED.matcher(t.getMessage()).matches()) {
+                return true;
+            }
+            if (t.getCause() == t) {
+                break;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,34 @@
+package com.maestrodev.plugins.collabnet.retry;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.rmi.RemoteException;
+
+/**
+ * Logs in to TeamForge again when a session expires while it is in use, so that a long task is not failed by it.
+ */
+public interface SessionRenewer {
+    /**
+     * Obtain a new session to replace one that TeamForge rejected as expired. If the session has already been
+     * replaced, for example by another thread sharing it, the replacement is returned without logging in again.
+     *
+     * @param expiredSessionId the ID of the session that was rejected
+     * @return the ID of the session to use instead, or <code>null</code> if no new session can be obtained
+     * @throws RemoteException if there was a problem logging in
+     */
+    String renewSession(String expiredSessionId) throws RemoteException;
+}
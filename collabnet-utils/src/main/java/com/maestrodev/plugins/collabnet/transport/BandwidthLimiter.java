@@ -0,0 +1,145 @@
+package com.maestrodev.plugins.collabnet.transport;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.InterruptedIOException;
+
+/**
+ * Caps the rate at which uploads send data, using a token bucket. Tokens are added at the given rate up to a small
+ * burst allowance, and each upload takes a token for every byte before sending it, waiting if there are not enough.
+ * Uploads reserve their tokens in the order they ask for them, so concurrent uploads sharing a limiter get an even
+ * share of the bandwidth rather than whichever reads first taking it all.
+ *
+ * A limiter may have a parent, whose limit applies as well - for example a per-session limit within the limit shared
+ * by every upload in the process. The shared limit is set with the <code>collabnet.upload.bandwidth</code> system
+ * property, in bytes per second, and is unlimited by default.
+ */
+public class BandwidthLimiter {
+    /**
+     * A limiter that never waits.
+     */
+    public static final BandwidthLimiter UNLIMITED = new BandwidthLimiter(0, null);
+
+    private static final BandwidthLimiter SHARED = create(Long.getLong("collabnet.upload.bandwidth", 0), UNLIMITED);
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private final long bytesPerSecond;
+
+    private final long burstBytes;
+
+    private final BandwidthLimiter parent;
+
+    /**
+     * The tokens available as of {@link #updated}. Negative when uploads have reserved tokens that have not been added
+     * yet, and are waiting for them.
+     */
+    private double tokens;
+
+    private long updated = System.nanoTime();
+
+    /**
+     * Create a limiter that allows bursts of up to a tenth of a second's worth of data.
+     *
+     * @param bytesPerSecond the maximum rate, or <code>0</code> for no limit of its own
+     * @param parent         a limiter whose limit applies as well, or <code>null</code> for none
+     */
+    public BandwidthLimiter(long bytesPerSecond, BandwidthLimiter parent) {
+        this(bytesPerSecond, Math.max(1, bytesPerSecond / 10), parent);
+    }
+
+    /**
+     * Create a limiter.
+     *
+     * @param bytesPerSecond the maximum rate, or <code>0</code> for no limit of its own
+     * @param burstBytes     the number of bytes that can be sent at once after a pause, without waiting
+     * @param parent         a limiter whose limit applies as well, or <code>null</code> for none
+     */
+    public BandwidthLimiter(long bytesPerSecond, long burstBytes, BandwidthLimiter parent) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.burstBytes = burstBytes;
+        this.parent = parent;
+        this.tokens = burstBytes;
+    }
+
+    /**
+     * @return the limiter shared by all uploads in the process
+     */
+    public static BandwidthLimiter getShared() {
+        return SHARED;
+    }
+
+    /**
+     * Create a limiter within a parent, or reuse the parent if no limit of its own is needed.
+     *
+     * @param bytesPerSecond the maximum rate, or <code>0</code> for no limit of its own
+     * @param parent         a limiter whose limit applies as well
+     * @return the limiter
+     */
+    public static BandwidthLimiter create(long bytesPerSecond, BandwidthLimiter parent) {
+        return bytesPerSecond > 0 ? new BandwidthLimiter(bytesPerSecond, parent) : parent;
+    }
+
+    /**
+     * @return the maximum rate in bytes per second of this limiter alone, or <code>0</code> if it has no limit of its
+     *         own
+     */
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Wait until the given number of bytes may be sent under this limit and those of its parents. The tokens are
+     * reserved from every limiter first, and then the upload waits once for whichever has the longest debt to pay off,
+     * as the debts are paid off at the same time.
+     *
+     * @param bytes the number of bytes about to be sent
+     * @throws InterruptedIOException if the thread was interrupted while waiting
+     */
+    public void acquire(long bytes) throws InterruptedIOException {
+        if (bytes <= 0) {
+            return;
+        }
+        long waitNanos = 0;
+        for (BandwidthLimiter limiter = this; limiter != null; limiter = limiter.parent) {
+            if (limiter.bytesPerSecond > 0) {
+                waitNanos = Math.max(waitNanos, limiter.reserve(bytes));
+            }
+        }
+        if (waitNanos > 0) {
+            try {
+                Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for upload bandwidth");
+            }
+        }
+    }
+
+    /**
+     * Take tokens for the bytes, going into debt if there are not enough.
+     *
+     * @return the time in nanoseconds until the debt is paid off and the bytes may be sent
+     */
+    private synchronized long reserve(long bytes) {
+        long now = System.nanoTime();
+        tokens = Math.min(burstBytes, tokens + (double) (now - updated) * bytesPerSecond / NANOS_PER_SECOND);
+        updated = now;
+        tokens -= bytes;
+        return tokens < 0 ? (long) (-tokens * NANOS_PER_SECOND / bytesPerSecond) : 0;
+    }
+}
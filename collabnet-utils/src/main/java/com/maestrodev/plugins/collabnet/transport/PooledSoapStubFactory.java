@@ -0,0 +1,196 @@
+package com.maestrodev.plugins.collabnet.transport;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.collabnet.ce.soap60.webservices.ClientSoapStubFactory;
+import org.apache.axis.SimpleTargetedChain;
+import org.apache.axis.client.AxisClient;
+import org.apache.axis.client.Stub;
+import org.apache.axis.configuration.SimpleProvider;
+import org.apache.axis.transport.http.CommonsHTTPSender;
+import org.apache.axis.transport.http.HTTPConstants;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Creates SOAP stubs that share a pool of persistent HTTP connections.
+ *
+ * Axis stubs hold per-call state and are not safe to use from several threads at once, but sessions share their stubs
+ * between upload threads. The factory therefore hands out one proxy per interface and TeamForge URL, which passes each
+ * call to a stub of the calling thread's own. Only the Axis engine, and with it the HTTP sender and its connection
+ * manager, is shared by all stubs.
+ *
+ * The SDK's default Axis transport opens a new connection for each call and does not request compressed responses.
+ * The stubs from this factory instead send through Commons HttpClient with a multi-threaded connection manager, so
+ * connections to TeamForge are kept alive between calls and shared by all sessions in the process, and ask TeamForge
+ * to gzip its responses, which greatly reduces the size of list calls such as <code>getReleaseList</code>.
+ *
+ * The limits of the shared factory can be set with the <code>collabnet.http.maxConnections</code>,
+ * <code>collabnet.http.maxConnectionsPerHost</code>, <code>collabnet.http.connectionTimeout</code>,
+ * <code>collabnet.http.socketTimeout</code> and <code>collabnet.http.acceptGzip</code> system properties, with the
+ * timeouts in milliseconds.
+ */
+public class PooledSoapStubFactory implements SoapStubFactory {
+    private static final PooledSoapStubFactory INSTANCE = new PooledSoapStubFactory(
+            Integer.getInteger("collabnet.http.maxConnections", 32),
+            Integer.getInteger("collabnet.http.maxConnectionsPerHost", 8),
+            Integer.getInteger("collabnet.http.connectionTimeout", 30 * 1000),
+            Integer.getInteger("collabnet.http.socketTimeout", 10 * 60 * 1000),
+            Boolean.valueOf(System.getProperty("collabnet.http.acceptGzip", "true")));
+
+    /**
+     * The proxies handed out, by interface and TeamForge URL.
+     */
+    private final ConcurrentMap<String, Object> stubs = new ConcurrentHashMap<String, Object>();
+
+    /**
+     * The stubs that calls through the proxies are made with, by interface and TeamForge URL, for each thread.
+     */
+    private final ThreadLocal<Map<String, Object>> threadStubs = new ThreadLocal<Map<String, Object>>() {
+        @Override
+        protected Map<String, Object> initialValue() {
+            return new HashMap<String, Object>();
+        }
+    };
+
+    private final AxisClient engine;
+
+    private final boolean acceptGzip;
+
+    /**
+     * Create a factory with its own connection pool.
+     *
+     * @param maxConnections        the maximum number of connections to keep open in total
+     * @param maxConnectionsPerHost the maximum number of connections to keep open to each TeamForge host
+     * @param connectionTimeout     the time in milliseconds to wait to establish a connection, or <code>0</code> to
+     *                              wait indefinitely
+     * @param socketTimeout         the time in milliseconds to wait for data from TeamForge, or <code>0</code> to wait
+     *                              indefinitely
+     * @param acceptGzip            whether to ask TeamForge to compress its responses
+     */
+    public PooledSoapStubFactory(int maxConnections, int maxConnectionsPerHost, int connectionTimeout,
+                                 int socketTimeout, boolean acceptGzip) {
+        this.acceptGzip = acceptGzip;
+
+        PooledHttpSender sender = new PooledHttpSender(maxConnections, maxConnectionsPerHost, connectionTimeout,
+                socketTimeout);
+        SimpleProvider provider = new SimpleProvider();
+        provider.deployTransport("http", new SimpleTargetedChain(sender));
+        provider.deployTransport("https", new SimpleTargetedChain(sender));
+        engine = new AxisClient(provider);
+    }
+
+    /**
+     * @return the factory shared by the whole process
+     */
+    public static PooledSoapStubFactory getInstance() {
+        return INSTANCE;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T getSoapStub(Class<T> type, String teamForgeUrl) {
+        String key = type.getName() + "@" + teamForgeUrl;
+        Object stub = stubs.get(key);
+        if (stub == null) {
+            stub = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+                    new ThreadStubHandler(type, teamForgeUrl, key));
+            Object existing = stubs.putIfAbsent(key, stub);
+            if (existing != null) {
+                stub = existing;
+            }
+        }
+        return (T) stub;
+    }
+
+    private Object getThreadStub(Class<?> type, String teamForgeUrl, String key) {
+        Map<String, Object> stubs = threadStubs.get();
+        Object stub = stubs.get(key);
+        if (stub == null) {
+            stub = ClientSoapStubFactory.getSoapStub(type, teamForgeUrl);
+            configure((Stub) stub);
+            stubs.put(key, stub);
+        }
+        return stub;
+    }
+
+    private void configure(Stub stub) {
+        stub._getService().setEngine(engine);
+        if (acceptGzip) {
+            stub._setProperty(HTTPConstants.MC_ACCEPT_GZIP, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Passes each call to the calling thread's stub.
+     */
+    private class ThreadStubHandler implements InvocationHandler {
+        private final Class<?> type;
+
+        private final String teamForgeUrl;
+
+        private final String key;
+
+        private ThreadStubHandler(Class<?> type, String teamForgeUrl, String key) {
+            this.type = type;
+            this.teamForgeUrl = teamForgeUrl;
+            this.key = key;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                // equality and hashing are of the proxy itself, rather than of any one thread's stub
+                if ("equals".equals(method.getName())) {
+                    return proxy == args[0];
+                } else if ("hashCode".equals(method.getName())) {
+                    return System.identityHashCode(proxy);
+                } else if ("toString".equals(method.getName())) {
+                    return "SOAP stub for " + key;
+                }
+            }
+            try {
+                return method.invoke(getThreadStub(type, teamForgeUrl, key), args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    /**
+     * Commons HttpClient transport with the connection limits given to the factory, rather than those read from the
+     * global Axis properties.
+     */
+    private static class PooledHttpSender extends CommonsHTTPSender {
+        private PooledHttpSender(int maxConnections, int maxConnectionsPerHost, int connectionTimeout,
+                                 int socketTimeout) {
+            HttpConnectionManagerParams params = connectionManager.getParams();
+            params.setMaxTotalConnections(maxConnections);
+            params.setDefaultMaxConnectionsPerHost(maxConnectionsPerHost);
+            params.setConnectionTimeout(connectionTimeout);
+            params.setSoTimeout(socketTimeout);
+            // connections may have been closed by TeamForge or a proxy while idle in the pool
+            params.setStaleCheckingEnabled(true);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.maestrodev.plugins.collabnet.transport;
+
+/*
+ * Copyright 2012 MaestroDev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Source of the SOAP stubs used to call TeamForge.
+ */
+public interface SoapStubFactory {
+    /**
+     * Obtain a stub for one of the TeamForge SOAP interfaces. The stub may be shared with other callers, so it must
+     * not be used to hold per-session state.
+     *
+     * @param type         the SOAP interface, such as <code>IFrsAppSoap</code>
+     * @param teamForgeUrl the URL of the TeamForge instance
+     * @return the stub
+     */
+    <T> T getSoapStub(Class<T> type, String teamForgeUrl);
+}